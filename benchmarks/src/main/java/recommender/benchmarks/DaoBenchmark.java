@@ -0,0 +1,99 @@
+package recommender.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import recommender.DAO;
+
+/**
+ * Loading a data set, from text and from the binary rating file, and looking up training ratings.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DaoBenchmark {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final int LOOKUPS = 1024;
+
+	@Param({ "u1" })
+	private String dataset;
+
+	private File[] files;
+	private File binary;
+	private DAO dao;
+	private int[] users;
+	private int[] items;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	@Setup
+	public void setup ()
+			throws IOException
+	{
+		files = Datasets.files(dataset);
+		dao = new DAO(files[0].getPath(), files[1].getPath(), "\t");
+		binary = File.createTempFile("recsys-" + dataset, ".dao");
+		binary.deleteOnExit();
+		dao.save(binary.getPath());
+
+		// Random (user, item) pairs that have a training rating
+		List<int[]> pairs = new ArrayList<>();
+		for (int user : dao.getTrainUsers())
+			for (int item : dao.getTrainItems(user))
+				pairs.add(new int[] { user, item });
+		Collections.shuffle(pairs, new Random(42));
+		users = new int[LOOKUPS];
+		items = new int[LOOKUPS];
+		for (int k = 0; k < LOOKUPS; k++)	{
+			users[k] = pairs.get(k % pairs.size())[0];
+			items[k] = pairs.get(k % pairs.size())[1];
+		}
+	}
+
+	@TearDown
+	public void tearDown ()
+	{
+		binary.delete();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public DAO loadText ()
+			throws IOException
+	{
+		return new DAO(files[0].getPath(), files[1].getPath(), "\t");
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public DAO loadBinary ()
+			throws IOException
+	{
+		return new DAO(binary.getPath());
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(LOOKUPS)
+	public double getTrainRating ()
+	{
+		double sum = 0.0;
+		for (int k = 0; k < LOOKUPS; k++)
+			sum += dao.getTrainRating(users[k], items[k]);
+		return sum;
+	}
+}
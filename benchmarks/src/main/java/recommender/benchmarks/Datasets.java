@@ -0,0 +1,96 @@
+package recommender.benchmarks;
+
+import java.io.*;
+import java.util.*;
+
+import recommender.DAO;
+import recommender.SyntheticRatingGenerator;
+
+/**
+ * The data sets the benchmarks run on, by name:
+ * <pre>
+ * u1                                the bundled MovieLens 100K split, data/u1.base and data/u1.test
+ * synthetic-USERSxITEMSxRATINGS     power-law ratings from SyntheticRatingGenerator, generated once into
+ *                                   the temporary directory
+ * </pre>
+ * The bundled data is looked up in the directory named by the recsys.data system property, or else in data
+ * or ../data, so the benchmarks can be run from the project or the benchmarks directory.
+ */
+final class Datasets {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final String SYNTHETIC = "synthetic-";
+	private static final long SEED = 42L;
+	private static final double USER_EXPONENT = 0.6;
+	private static final double ITEM_EXPONENT = 0.8;
+	private static final double TEST_FRACTION = 0.2;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the training and test files of the data set @name, generating them first if needed
+	 * @throws IOException if the files cannot be found or generated
+	 */
+	static File[] files ( String name )
+			throws IOException
+	{
+		if (name.equals("u1"))
+			return new File[] { dataFile("u1.base"), dataFile("u1.test") };
+		if (!name.startsWith(SYNTHETIC))
+			throw new IllegalArgumentException("Unknown data set " + name);
+
+		String[] sizes = name.substring(SYNTHETIC.length()).split("x");
+		if (sizes.length != 3)
+			throw new IllegalArgumentException("Expected " + SYNTHETIC + "USERSxITEMSxRATINGS, not " + name);
+		int numUsers = Integer.parseInt(sizes[0]), numItems = Integer.parseInt(sizes[1]);
+		long numRatings = Long.parseLong(sizes[2]);
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "recsys-benchmarks");
+		File train = new File(dir, name + ".base"), test = new File(dir, name + ".test");
+		if (!train.exists() || !test.exists())	{
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create " + dir);
+			// Generated under temporary names first, so an interrupted run leaves no partial data set behind
+			File trainTmp = new File(dir, name + ".base.tmp"), testTmp = new File(dir, name + ".test.tmp");
+			new SyntheticRatingGenerator(numUsers, numItems, numRatings, USER_EXPONENT, ITEM_EXPONENT, null, TEST_FRACTION, SEED)
+				.write(trainTmp.getPath(), testTmp.getPath());
+			if (!trainTmp.renameTo(train) || !testTmp.renameTo(test))
+				throw new IOException("Cannot rename the generated files of " + name);
+		}
+		return new File[] { train, test };
+	}
+
+	/**
+	 * @return a DAO over the data set @name
+	 * @throws IOException if the files cannot be found, generated or read
+	 */
+	static DAO load ( String name )
+			throws IOException
+	{
+		File[] files = files(name);
+		return new DAO(files[0].getPath(), files[1].getPath(), "\t");
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static File dataFile ( String fileName )
+			throws FileNotFoundException
+	{
+		String property = System.getProperty("recsys.data");
+		String[] dirs = property != null ? new String[] { property } : new String[] { "data", "../data" };
+		for (String dir : dirs)	{
+			File file = new File(dir, fileName);
+			if (file.isFile())
+				return file;
+		}
+		throw new FileNotFoundException(fileName + " not found in " + Arrays.toString(dirs) + "; set -Drecsys.data");
+	}
+}
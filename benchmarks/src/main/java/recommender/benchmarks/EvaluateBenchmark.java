@@ -0,0 +1,80 @@
+package recommender.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import recommender.BaseRecommender;
+import recommender.CommandLine;
+
+/**
+ * A full evaluate() over the test data set, on a recommender trained once per trial, with and without
+ * writing the prediction file.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EvaluateBenchmark {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	@Param({ "u1" })
+	private String dataset;
+
+	@Param({ "base", "uu", "ii", "slopeone", "funksvd" })
+	private String algorithm;
+
+	@Param({ "1", "0" })
+	private int threads;
+
+	private BaseRecommender recommender;
+	private java.io.File predictions;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	@Setup
+	public void setup ()
+			throws IOException
+	{
+		recommender = CommandLine.createRecommender(algorithm, Datasets.load(dataset));
+		recommender.train();
+		predictions = java.io.File.createTempFile("recsys", ".predict");
+		predictions.deleteOnExit();
+	}
+
+	@TearDown
+	public void tearDown ()
+	{
+		predictions.delete();
+	}
+
+	/**
+	 * @param threads 0 for one thread per available processor
+	 */
+	private int numThreads ()
+	{
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	@Benchmark
+	public void evaluate ()
+			throws IOException
+	{
+		recommender.evaluate(predictions.getPath(), numThreads());
+	}
+
+	@Benchmark
+	public void evaluateWithoutFile ()
+			throws IOException
+	{
+		recommender.evaluate(null, numThreads());
+	}
+}
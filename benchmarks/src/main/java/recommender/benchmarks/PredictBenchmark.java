@@ -0,0 +1,89 @@
+package recommender.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import recommender.BaseRecommender;
+import recommender.CommandLine;
+import recommender.DAO;
+
+/**
+ * The throughput and latency of predict() on the pairs of the test data set, and of a top-10 recommend(),
+ * on a recommender trained once per trial. Run with -t to measure several threads sharing the recommender.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PredictBenchmark {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	@Param({ "u1" })
+	private String dataset;
+
+	@Param({ "base", "uu", "ii", "slopeone", "slopeone-lazy", "funksvd" })
+	private String algorithm;
+
+	private BaseRecommender recommender;
+	private int[] users;
+	private int[] items;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * The position of each thread in the test pairs.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Setup
+	public void setup ()
+			throws IOException
+	{
+		DAO dao = Datasets.load(dataset);
+		recommender = CommandLine.createRecommender(algorithm, dao);
+		recommender.train();
+
+		int count = 0;
+		for (int user : dao.getTestUsers())
+			for (@SuppressWarnings("unused") int item : dao.getTestItems(user))
+				count++;
+		users = new int[count];
+		items = new int[count];
+		int k = 0;
+		for (int user : dao.getTestUsers())
+			for (int item : dao.getTestItems(user))	{
+				users[k] = user;
+				items[k++] = item;
+			}
+	}
+
+	@Benchmark
+	public double predict ( Cursor cursor )
+	{
+		int k = cursor.next;
+		cursor.next = k + 1 == users.length ? 0 : k + 1;
+		return recommender.predict(users[k], items[k]);
+	}
+
+	@Benchmark
+	public void recommend (	Cursor cursor,
+							Blackhole blackhole )
+	{
+		int k = cursor.next;
+		cursor.next = k + 1 == users.length ? 0 : k + 1;
+		blackhole.consume(recommender.recommend(users[k], 10, null));
+	}
+}
@@ -0,0 +1,61 @@
+package recommender.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import recommender.BaseRecommender;
+import recommender.CommandLine;
+import recommender.DAO;
+
+/**
+ * The time to train each recommender from scratch. Each measurement trains a new recommender once, so the
+ * results include the first, cold run of train() as it happens in practice.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class TrainBenchmark {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	@Param({ "u1" })
+	private String dataset;
+
+	@Param({ "uu", "uu-topk", "ii", "ii-topk", "slopeone", "slopeone-lazy", "funksvd" })
+	private String algorithm;
+
+	private DAO dao;
+	private BaseRecommender recommender;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	@Setup(Level.Trial)
+	public void loadData ()
+			throws IOException
+	{
+		dao = Datasets.load(dataset);
+	}
+
+	@Setup(Level.Iteration)
+	public void createRecommender ()
+			throws IOException
+	{
+		recommender = CommandLine.createRecommender(algorithm, dao);
+	}
+
+	@Benchmark
+	public BaseRecommender train ()
+	{
+		recommender.train();
+		return recommender;
+	}
+}
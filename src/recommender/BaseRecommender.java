@@ -1,6 +1,8 @@
 package recommender;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * It is the base class that each recommender class must extend. It provides implementation for 
@@ -9,10 +11,20 @@ import java.io.*;
  */
 public class BaseRecommender {
 	
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// Test users are split into about this many blocks per thread so that blocks of slow users even out
+	private static final int BLOCKS_PER_THREAD = 16;
+	// Set once by freeze(), after which the model never changes
+	private volatile boolean frozen;
+	
+	
 	/*********************************************************************************************************/
 	/* 										Inheritable members											 	 */
 	/*********************************************************************************************************/
 	protected DAO dao;
+	protected RecommenderMetrics metrics;
 	
 	/**
 	 * @param prediction a double value representing a predicted rating
@@ -27,6 +39,25 @@ public class BaseRecommender {
 		return prediction;
 	}
 	
+	/**
+	 * Each inheriting recommender algorithm will override this method.
+	 * @return an estimate of the heap taken by the trained model, in bytes, not counting the DAO, which
+	 * BaseRecommender has nothing else besides
+	 */
+	protected long modelBytes ()
+	{
+		return 0L;
+	}
+	
+	/**
+	 * @throws IllegalStateException if the recommender is frozen, for the methods that change the model
+	 */
+	protected final void checkNotFrozen ()
+	{
+		if (frozen)
+			throw new IllegalStateException("A frozen recommender cannot be trained or updated.");
+	}
+	
 	
 	/*********************************************************************************************************/
 	/* 											Public methods											 	 */
@@ -38,6 +69,16 @@ public class BaseRecommender {
 	public BaseRecommender ( DAO dao )	
 	{
 		this.dao = dao;
+		metrics = new RecommenderMetrics(getClass().getSimpleName());
+	}
+	
+	/**
+	 * @return the metrics of this recommender: the phases of train() and evaluate(), the latencies of the
+	 * predictions and recommendations made by evaluate() and evaluateRanking(), and the model footprint
+	 */
+	public RecommenderMetrics getMetrics ()
+	{
+		return metrics;
 	}
 	
 	/**
@@ -45,6 +86,36 @@ public class BaseRecommender {
 	 */
 	public void train ()	{	}
 	
+	/**
+	 * Freezes the trained model, which must not change from then on: train() and any method that updates the
+	 * model throw an IllegalStateException instead. predict() and recommend() of a frozen recommender can be
+	 * called from any number of threads without any locking. Each inheriting recommender algorithm whose model
+	 * can change after train() overrides this method to wait for the changes in progress and to stop taking
+	 * the locks that guard them. Freezing a frozen recommender does nothing.
+	 */
+	public void freeze ()
+	{
+		frozen = true;
+	}
+	
+	/**
+	 * @return whether freeze() has been called
+	 */
+	public final boolean isFrozen ()
+	{
+		return frozen;
+	}
+	
+	/**
+	 * Each inheriting recommender algorithm that learns a model in train() will override this method.
+	 * @return whether the model has been trained or read, so that predictions can be made, which in case of
+	 * BaseRecommender is always
+	 */
+	public boolean isTrained ()
+	{
+		return true;
+	}
+	
 	/**
 	 * Each inheriting recommender algorithm will override this method.
 	 * @return the predicted rating that @user will assign to @item, which in case of BaseRecommender is the
@@ -57,38 +128,110 @@ public class BaseRecommender {
 	}
 	
 	/**
-	 * Evaluate the performance of the recommender over the test data set and compute performance statistics.
+	 * Predicts the ratings that @user will assign to each of @items into @predictions, at the same positions,
+	 * as predict() would one at a time. Each inheriting recommender algorithm may override this method with
+	 * one that does the work that only depends on @user once for all the items; by itself, it calls predict()
+	 * for every item.
+	 * 
+	 * @param predictions receives the predicted ratings, or Double.NEGATIVE_INFINITY where a prediction cannot
+	 * be made; at least as long as @items
+	 */
+	public void predict (	int user,
+							int[] items,
+							double[] predictions )
+	{
+		for (int k = 0; k < items.length; k++)
+			predictions[k] = predict(user, items[k]);
+	}
+
+	/**
+	 * Recommends to @user the @n items with the highest predicted ratings, among the items of the training
+	 * data set that @user has not rated there. Items for which a prediction cannot be made are left out, so
+	 * fewer than @n items may be returned. Of items with equal predicted ratings, those with smaller ids come
+	 * first. Each inheriting recommender algorithm may override this method with one that scores all the
+	 * candidate items at once; by itself, it calls predict() for every candidate item.
+	 *
+	 * @param filter decides which other items must not be recommended, or null to recommend any item
+	 */
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
+	{
+		IdIndex items = dao.trainItems();
+		TopKHeap heap = new TopKHeap(Math.max(n, 0));
+		for (int i = 0; i < items.size(); i++)	{
+			int item = items.idAt(i);
+			if (dao.containsTrainRating(user, item) || (filter != null && filter.exclude(item)))
+				continue;
+			double P = predict(user, item);
+			if (P != Double.NEGATIVE_INFINITY)
+				heap.offer(item, P);
+		}
+		return TopNList.of(heap);
+	}
+
+	/**
+	 * Evaluate the performance of the recommender over the test data set and compute performance statistics,
+	 * on the calling thread only, so that predict() is never called concurrently. See
+	 * evaluate(@predictionFileName, NUM_THREADS) to predict on several threads.
 	 * 
 	 * @param predictionFileName The output file where predicted outputs for test data set will be stored as
-	 * [user item actual_rating predicted_rating] tuples
+	 * [user item actual_rating predicted_rating] tuples, or null to not store them
 	 * 
 	 * @throws IOException if @predictionFileName cannot be opened for writing or written to.
 	 */
 	public void evaluate ( String predictionFileName ) 
 				throws IOException	
 	{
-		double MAE = 0.0, RMSE = 0.0;
-		int countRatings = 0, countTotal = 0;
-				
-		BufferedWriter wr = new BufferedWriter(new FileWriter(predictionFileName));
-		for (Integer user : dao.getTestUsers())	{
-			for (Integer item : dao.getTestItems(user))	{
-				countTotal++;
-				double P = predict(user, item);
-				// A prediction of -INF is used to indicate that the prediction cannot be made
-				if (P == Double.NEGATIVE_INFINITY)
-					continue;
-				countRatings++;
-				double R = dao.getTestRating(user, item);
-				double tmp = P - R;
-				MAE += Math.abs(tmp);
-				RMSE += tmp * tmp;
-				wr.write(String.format("%d %d %f %f\n", user, item, R, P));
-			}
+		evaluate(predictionFileName, 1);
+	}
+	
+	/**
+	 * Evaluate the performance of the recommender over the test data set and compute performance statistics.
+	 * The test users are split into blocks that are predicted in parallel, each block accumulating its own
+	 * errors and formatting its own predictions. The calling thread writes the blocks out in order as they
+	 * complete, so the output file does not depend on @NUM_THREADS. With more than one thread, predict() is
+	 * called concurrently, which all recommenders in this package allow; a subclass must allow it as well before
+	 * it is evaluated on more than one thread. The latency of every prediction is
+	 * recorded in the "predict" histogram of getMetrics(), and the whole evaluation in its "evaluate" phase.
+	 * 
+	 * @param predictionFileName The output file where predicted outputs for test data set will be stored as
+	 * [user item actual_rating predicted_rating] tuples, or null to not store them
+	 * 
+	 * @param NUM_THREADS The number of threads predicting the test ratings. With 1, all predictions are made
+	 * by the calling thread.
+	 * 
+	 * @throws IOException if @predictionFileName cannot be opened for writing or written to.
+	 */
+	public void evaluate (	String predictionFileName,
+							int NUM_THREADS ) 
+				throws IOException	
+	{
+		final boolean write = predictionFileName != null;
+		final OutputStream out = write ? new BufferedOutputStream(new FileOutputStream(predictionFileName), 1 << 16) : null;
+		final EvaluationBlock total = new EvaluationBlock();
+		long start = System.nanoTime();
+		try	{
+			runInBlocks(new BlockEvaluator<EvaluationBlock>() {
+				public EvaluationBlock evaluate (	int from,
+													int to )	{
+					return evaluateBlock(from, to, write);
+				}
+				public void merge ( EvaluationBlock block )
+						throws IOException	{
+					total.add(block, out);
+				}
+			}, NUM_THREADS);
+			if (out != null)
+				out.flush();
+		} finally	{
+			if (out != null)
+				out.close();
 		}
-		wr.flush();
-		wr.close();
-
+		metrics.endPhase("evaluate", start);
+		
+		double MAE = total.absError, RMSE = total.squaredError;
+		int countRatings = total.countRatings, countTotal = total.countTotal;
 		System.out.println("Recommender evaluation on test data...");
 		if (countRatings == 0)
 			System.out.println("Coverage : 0%");
@@ -100,4 +243,309 @@ public class BaseRecommender {
 			System.out.printf("RMSE : %f\n", RMSE);
 		}		
 	}
+
+	
+	/**
+	 * Evaluate the ranking quality of the recommender over the test data set, on the calling thread only, so
+	 * that recommend() is never called concurrently. See evaluateRanking(@K, @RELEVANT_RATING, NUM_THREADS).
+	 */
+	public void evaluateRanking (	int K,
+									double RELEVANT_RATING )
+	{
+		evaluateRanking(K, RELEVANT_RATING, 1);
+	}
+	
+	/**
+	 * Evaluate the ranking quality of the recommender over the test data set. For each test user, a single
+	 * list of the top @K items is computed with recommend(), from the items of the training data set the
+	 * user has not rated there. The test items the user rated at least @RELEVANT_RATING are the relevant
+	 * ones, and precision@K, recall@K, NDCG@K and MAP@K are all computed from the same list and averaged
+	 * over the test users with at least one relevant item. The test users are split into blocks that are
+	 * evaluated in parallel, each block accumulating its own sums. The time spent recommending and computing
+	 * each metric, summed over all threads, is reported along with the overall throughput. The latency of
+	 * every recommend() call is recorded in the "recommend" histogram of getMetrics().
+	 * 
+	 * @param K The length of the recommended lists, at least 1.
+	 * 
+	 * @param RELEVANT_RATING The lowest test rating of a relevant item, such as 4.0 on a 1 to 5 scale.
+	 * 
+	 * @param NUM_THREADS The number of threads computing the recommendations. With 1, all recommendations are
+	 * computed by the calling thread. With more, recommend() is called concurrently, which all recommenders in
+	 * this package allow, but a subclass may not.
+	 * 
+	 * @throws IllegalArgumentException if @K is less than 1
+	 */
+	public void evaluateRanking (	final int K,
+									final double RELEVANT_RATING,
+									int NUM_THREADS )
+	{
+		if (K < 1)
+			throw new IllegalArgumentException(String.format("The length of the recommended lists must be at least 1, not %d.", K));
+		final RankingBlock total = new RankingBlock();
+		long start = System.nanoTime();
+		try	{
+			runInBlocks(new BlockEvaluator<RankingBlock>() {
+				public RankingBlock evaluate (	int from,
+												int to )	{
+					return evaluateRankingBlock(from, to, K, RELEVANT_RATING);
+				}
+				public void merge ( RankingBlock block )	{
+					total.add(block);
+				}
+			}, NUM_THREADS);
+		} catch (IOException e)	{
+			// Nothing is written, so only an interrupt can end up here
+			throw new IllegalStateException(e);
+		}
+		double seconds = (metrics.endPhase("evaluateRanking", start) - start) / 1e9;
+		
+		System.out.printf("Ranking evaluation on test data, top %d, relevant ratings >= %f...\n", K, RELEVANT_RATING);
+		if (total.countUsers == 0)	{
+			System.out.println("No test user has a relevant item");
+			return;
+		}
+		int n = total.countUsers;
+		System.out.printf("Users : %d\n", n);
+		System.out.printf("Precision@%d : %f\n", K, total.precision / n);
+		System.out.printf("Recall@%d : %f\n", K, total.recall / n);
+		System.out.printf("NDCG@%d : %f\n", K, total.ndcg / n);
+		System.out.printf("MAP@%d : %f\n", K, total.averagePrecision / n);
+		System.out.printf("Time : %.3f s, %.1f users/s\n", seconds, n / seconds);
+		System.out.printf("Recommend : %.3f ms, %.1f us/user\n", total.recommendNanos / 1e6, total.recommendNanos / 1e3 / n);
+		System.out.printf("Relevance : %.3f ms, %.1f us/user\n", total.relevanceNanos / 1e6, total.relevanceNanos / 1e3 / n);
+		System.out.printf("Precision/Recall : %.3f ms, %.1f us/user\n", total.precisionNanos / 1e6, total.precisionNanos / 1e3 / n);
+		System.out.printf("NDCG : %.3f ms, %.1f us/user\n", total.ndcgNanos / 1e6, total.ndcgNanos / 1e3 / n);
+		System.out.printf("MAP : %.3f ms, %.1f us/user\n", total.mapNanos / 1e6, total.mapNanos / 1e3 / n);
+	}	
+	
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+	
+	/**
+	 * Evaluates a block of test users and merges the results of the blocks, in order of test user index.
+	 */
+	private interface BlockEvaluator<T> {
+		
+		/**
+		 * @return the results of the test users with dense indices @from, ..., @to - 1
+		 */
+		T evaluate (	int from,
+						int to );
+		
+		/**
+		 * Merges the results of the next block. Called by one thread only.
+		 */
+		void merge ( T block )
+				throws IOException;
+	}
+	
+	/**
+	 * Splits the test users into blocks, evaluates them with @evaluator on @NUM_THREADS threads and merges the
+	 * results on the calling thread, in order of test user index, as they complete.
+	 * @throws IOException if merging a block throws it, or if interrupted
+	 */
+	private <T> void runInBlocks (	final BlockEvaluator<T> evaluator,
+									int NUM_THREADS )
+			throws IOException
+	{
+		int numUsers = dao.testUsers().size();
+		int numBlocks = Math.max(1, NUM_THREADS <= 1 ? 1 : Math.min(numUsers, NUM_THREADS * BLOCKS_PER_THREAD));
+		ExecutorService pool = NUM_THREADS > 1 ? Executors.newFixedThreadPool(NUM_THREADS) : null;
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		try	{
+			for (int b = 0; b < numBlocks; b++)	{
+				final int from = (int) ((long) numUsers * b / numBlocks), to = (int) ((long) numUsers * (b + 1) / numBlocks);
+				if (pool == null)	{
+					evaluator.merge(evaluator.evaluate(from, to));
+					continue;
+				}
+				futures.add(pool.submit(new Callable<T>() {
+					public T call ()	{
+						return evaluator.evaluate(from, to);
+					}
+				}));
+			}
+			for (Future<T> future : futures)
+				evaluator.merge(future.get());
+		} catch (InterruptedException e)	{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while evaluating");
+		} catch (ExecutionException e)	{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		} finally	{
+			if (pool != null)
+				pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * The errors summed over a block of test users and, if the predictions are stored, their text.
+	 */
+	private static final class EvaluationBlock {
+		double absError;
+		double squaredError;
+		int countRatings;
+		int countTotal;
+		TextBuffer text;
+		
+		/**
+		 * Adds the errors of @block to this block's and writes its text to @out, if not null.
+		 */
+		void add (	EvaluationBlock block,
+					OutputStream out )
+				throws IOException
+		{
+			absError += block.absError;
+			squaredError += block.squaredError;
+			countRatings += block.countRatings;
+			countTotal += block.countTotal;
+			if (out != null)
+				block.text.writeTo(out);
+		}
+	}
+	
+	/**
+	 * Predicts the test ratings of the test users with dense indices @from, ..., @to - 1.
+	 * @param write whether to format the predictions as text
+	 */
+	private EvaluationBlock evaluateBlock (	int from,
+											int to,
+											boolean write )
+	{
+		IdIndex users = dao.testUsers(), items = dao.testItems();
+		RatingMatrix test = dao.testMatrix();
+		EvaluationBlock block = new EvaluationBlock();
+		LatencyHistogram latency = metrics.latency("predict");
+		if (write)
+			block.text = new TextBuffer(32 * (test.rowStart(to) - test.rowStart(from)));
+		
+		for (int u = from; u < to; u++)	{
+			int user = users.idAt(u);
+			for (int k = test.rowStart(u); k < test.rowEnd(u); k++)	{
+				int item = items.idAt(test.col(k));
+				block.countTotal++;
+				long start = System.nanoTime();
+				double P = predict(user, item);
+				latency.record(System.nanoTime() - start);
+				// A prediction of -INF is used to indicate that the prediction cannot be made
+				if (P == Double.NEGATIVE_INFINITY)
+					continue;
+				block.countRatings++;
+				double R = test.value(k);
+				double tmp = P - R;
+				block.absError += Math.abs(tmp);
+				block.squaredError += tmp * tmp;
+				if (write)
+					block.text.append(user).append(' ').append(item).append(' ')
+						.appendFixed6(R).append(' ').appendFixed6(P).append('\n');
+			}
+		}
+		return block;
+	}
+	
+	/**
+	 * The ranking metrics and the time spent computing each, summed over a block of test users.
+	 */
+	private static final class RankingBlock {
+		int countUsers;
+		double precision;
+		double recall;
+		double ndcg;
+		double averagePrecision;
+		long recommendNanos;
+		long relevanceNanos;
+		long precisionNanos;
+		long ndcgNanos;
+		long mapNanos;
+		
+		/**
+		 * Adds the sums of @block to this block's.
+		 */
+		void add ( RankingBlock block )
+		{
+			countUsers += block.countUsers;
+			precision += block.precision;
+			recall += block.recall;
+			ndcg += block.ndcg;
+			averagePrecision += block.averagePrecision;
+			recommendNanos += block.recommendNanos;
+			relevanceNanos += block.relevanceNanos;
+			precisionNanos += block.precisionNanos;
+			ndcgNanos += block.ndcgNanos;
+			mapNanos += block.mapNanos;
+		}
+	}
+	
+	/**
+	 * Computes the ranking metrics of the top @K lists of the test users with dense indices @from, ..., @to - 1.
+	 */
+	private RankingBlock evaluateRankingBlock (	int from,
+												int to,
+												int K,
+												double RELEVANT_RATING )
+	{
+		IdIndex users = dao.testUsers(), items = dao.testItems();
+		RatingMatrix test = dao.testMatrix();
+		RankingBlock block = new RankingBlock();
+		LatencyHistogram latency = metrics.latency("recommend");
+		boolean[] hit = new boolean[Math.max(K, 0)];
+		// discount[r] = 1 / log2(r + 2), the weight of a relevant item at rank r in the DCG
+		double[] discount = new double[hit.length];
+		for (int r = 0; r < discount.length; r++)
+			discount[r] = Math.log(2) / Math.log(r + 2);
+		
+		for (int u = from; u < to; u++)	{
+			int numRelevant = 0;
+			for (int k = test.rowStart(u); k < test.rowEnd(u); k++)
+				if (test.value(k) >= RELEVANT_RATING)
+					numRelevant++;
+			if (numRelevant == 0)
+				continue;
+			block.countUsers++;
+			
+			long t0 = System.nanoTime();
+			TopNList list = recommend(users.idAt(u), K, null);
+			long t1 = System.nanoTime();
+			latency.record(t1 - t0);
+			int length = list.size(), numHits = 0;
+			for (int r = 0; r < length; r++)	{
+				int i = items.indexOf(list.item(r));
+				int k = i < 0 ? -1 : test.find(u, i);
+				hit[r] = k >= 0 && test.value(k) >= RELEVANT_RATING;
+				if (hit[r])
+					numHits++;
+			}
+			long t2 = System.nanoTime();
+			block.precision += (double) numHits / K;
+			block.recall += (double) numHits / numRelevant;
+			long t3 = System.nanoTime();
+			double dcg = 0.0, idcg = 0.0;
+			for (int r = 0; r < length; r++)
+				if (hit[r])
+					dcg += discount[r];
+			for (int r = 0; r < Math.min(numRelevant, K); r++)
+				idcg += discount[r];
+			block.ndcg += dcg / idcg;
+			long t4 = System.nanoTime();
+			double sumPrecision = 0.0;
+			for (int r = 0, hits = 0; r < length; r++)
+				if (hit[r])
+					sumPrecision += (double) ++hits / (r + 1);
+			block.averagePrecision += sumPrecision / Math.min(numRelevant, K);
+			long t5 = System.nanoTime();
+			
+			block.recommendNanos += t1 - t0;
+			block.relevanceNanos += t2 - t1;
+			block.precisionNanos += t3 - t2;
+			block.ndcgNanos += t4 - t3;
+			block.mapNanos += t5 - t4;
+		}
+		return block;
+	}
 }
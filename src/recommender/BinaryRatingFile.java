@@ -0,0 +1,578 @@
+package recommender;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads and writes the binary rating file format of the DAO. A file holds everything the DAO needs, so
+ * opening one involves no parsing at all: each section is memory-mapped read-only and accessed in place,
+ * which also lets processes that open the same file share it through the OS page cache.
+ *
+ * The file is a little-endian header followed by the sections below, each aligned to 8 bytes. The rating
+ * counts of each user and item are the differences between consecutive row offsets.
+ * <pre>
+ * header         int magic, int version, int numTrainUsers, int numTrainItems, int numTrainRatings,
+ *                int numTestUsers, int numTestItems, int numTestRatings
+ * train users    int[numTrainUsers]       sorted external user ids
+ * train items    int[numTrainItems]       sorted external item ids
+ * user means     double[numTrainUsers]
+ * item means     double[numTrainItems]
+ * user-major     int[numTrainUsers + 1] row offsets, int[numTrainRatings] item indices, float[numTrainRatings] ratings
+ * item-major     int[numTrainItems + 1] row offsets, int[numTrainRatings] user indices, float[numTrainRatings] ratings
+ * test users     int[numTestUsers]        sorted external user ids
+ * test items     int[numTestItems]        sorted external item ids
+ * test           int[numTestUsers + 1] row offsets, int[numTestRatings] item indices, float[numTestRatings] ratings
+ * </pre>
+ *
+ * A file is never rewritten in place, since a DAO in this or another process may have it mapped: truncating a
+ * mapped file makes the next access to the pages cut off fail with SIGBUS. It is written to a temporary file
+ * next to it instead, which is then renamed over it, so that existing mappings keep the old contents.
+ */
+final class BinaryRatingFile {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final int MAGIC = 0x52534C44;		// "RSLD"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 8 * 4;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+	// Streamed files are written through mappings of at most this many bytes, a multiple of 8
+	private static final int WINDOW_BYTES = 1 << 30;
+
+	private final FileChannel channel;
+	private final ByteBuffer writeBuffer;
+	private long offset;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * The contents of a binary rating file.
+	 */
+	static final class Contents {
+		IdIndex trainUsers;
+		IdIndex trainItems;
+		DoubleBuffer userMeans;
+		DoubleBuffer itemMeans;
+		RatingMatrix byUser;
+		RatingMatrix byItem;
+		IdIndex testUsers;
+		IdIndex testItems;
+		RatingMatrix test;
+	}
+
+	/**
+	 * Ratings that can be visited any number of times, in the same order every time. The ratings of each user
+	 * are visited together, the users in ascending order of their ids, and no user rates an item twice.
+	 */
+	interface Source {
+
+		/**
+		 * Passes every rating to @visitor.
+		 */
+		void visit ( Visitor visitor )
+				throws IOException;
+	}
+
+	interface Visitor {
+
+		/**
+		 * Visits the rating @rating of @user for @item, which belongs to the test data set if @test and to the
+		 * training data set otherwise.
+		 */
+		void rating (	int user,
+						int item,
+						float rating,
+						boolean test )
+				throws IOException;
+	}
+
+	/**
+	 * Writes @contents to @fileName, atomically replacing any existing file.
+	 * @throws IOException if the file cannot be opened for writing or written to
+	 */
+	static void write (	Contents contents,
+						String fileName )
+			throws IOException
+	{
+		Path target = Paths.get(fileName), temp = Paths.get(fileName + ".tmp");
+		boolean written = false;
+		RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+		try	{
+			file.setLength(0);
+			BinaryRatingFile writer = new BinaryRatingFile(file.getChannel());
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION)
+				.putInt(contents.trainUsers.size()).putInt(contents.trainItems.size()).putInt(contents.byUser.nnz())
+				.putInt(contents.testUsers.size()).putInt(contents.testItems.size()).putInt(contents.test.nnz());
+			header.flip();
+			writer.writeBytes(header);
+
+			writer.writeInts(contents.trainUsers.idBuffer());
+			writer.writeInts(contents.trainItems.idBuffer());
+			writer.writeDoubles(contents.userMeans);
+			writer.writeDoubles(contents.itemMeans);
+			writer.writeMatrix(contents.byUser);
+			writer.writeMatrix(contents.byItem);
+			writer.writeInts(contents.testUsers.idBuffer());
+			writer.writeInts(contents.testItems.idBuffer());
+			writer.writeMatrix(contents.test);
+			file.getChannel().force(true);
+			file.close();
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			written = true;
+		} finally	{
+			file.close();
+			if (!written)
+				Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Writes the ratings of @source to @fileName, atomically replacing any existing file, without holding the
+	 * ratings in memory: a first visit counts the ratings of each user and item and a second one writes them
+	 * in place through mappings of the file. The memory used grows with @numUserIds and @numItemIds and with
+	 * the ratings of a single user, and the file is the one a DAO over the same ratings would save.
+	 * @param numUserIds the user ids are between 0 and numUserIds - 1
+	 * @param numItemIds the item ids are between 0 and numItemIds - 1
+	 * @return the number of ratings written, training and test together
+	 * @throws IOException if the file cannot be opened for writing or written to, or @source fails
+	 * @throws IllegalArgumentException if the users are not in ascending order or a user rates an item twice
+	 */
+	static long write (	Source source,
+						int numUserIds,
+						int numItemIds,
+						String fileName )
+			throws IOException
+	{
+		// First visit: the ratings of each user and item, and the sums of the training ratings
+		final int[] trainUserCounts = new int[numUserIds], trainItemCounts = new int[numItemIds];
+		final int[] testUserCounts = new int[numUserIds], testItemCounts = new int[numItemIds];
+		final double[] userSums = new double[numUserIds], itemSums = new double[numItemIds];
+		source.visit(new Visitor() {
+			private int lastUser = Integer.MIN_VALUE;
+
+			public void rating ( int user, int item, float rating, boolean test )	{
+				if (user < lastUser)
+					throw new IllegalArgumentException(String.format("User %d comes after user %d.", user, lastUser));
+				lastUser = user;
+				if (test)	{
+					testUserCounts[user]++;
+					testItemCounts[item]++;
+				} else	{
+					trainUserCounts[user]++;
+					trainItemCounts[item]++;
+					userSums[user] += rating;
+					itemSums[item] += rating;
+				}
+			}
+		});
+
+		int[] trainUsers = idsOf(trainUserCounts), trainItems = idsOf(trainItemCounts);
+		int[] testUsers = idsOf(testUserCounts), testItems = idsOf(testItemCounts);
+		long numTrain = 0, numTest = 0;
+		for (int user : trainUsers)
+			numTrain += trainUserCounts[user];
+		for (int user : testUsers)
+			numTest += testUserCounts[user];
+		if (numTrain > Integer.MAX_VALUE || numTest > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(String.format("Too many ratings for a binary rating file: %d training and %d test.", numTrain, numTest));
+
+		// The offsets of the sections, in the order write(Contents, String) writes them
+		long[] sections = new long[17];
+		long[] bytes = {
+			HEADER_BYTES, 4L * trainUsers.length, 4L * trainItems.length, 8L * trainUsers.length, 8L * trainItems.length,
+			4L * (trainUsers.length + 1), 4 * numTrain, 4 * numTrain, 4L * (trainItems.length + 1), 4 * numTrain, 4 * numTrain,
+			4L * testUsers.length, 4L * testItems.length, 4L * (testUsers.length + 1), 4 * numTest, 4 * numTest };
+		for (int s = 0; s < bytes.length; s++)
+			sections[s + 1] = align(sections[s] + bytes[s]);
+
+		Path target = Paths.get(fileName), temp = Paths.get(fileName + ".tmp");
+		boolean written = false;
+		RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+		try	{
+			file.setLength(0);
+			file.setLength(sections[16]);
+			MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((sections[16] + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+			for (int w = 0; w < windows.length; w++)	{
+				long start = (long) w * WINDOW_BYTES;
+				windows[w] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_BYTES, sections[16] - start));
+				windows[w].order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			int[] header = { MAGIC, VERSION, trainUsers.length, trainItems.length, (int) numTrain, testUsers.length, testItems.length, (int) numTest };
+			for (int k = 0; k < header.length; k++)
+				putInt(windows, 4L * k, header[k]);
+			putInts(windows, sections[1], trainUsers);
+			putInts(windows, sections[2], trainItems);
+			for (int k = 0; k < trainUsers.length; k++)
+				putDouble(windows, sections[3] + 8L * k, userSums[trainUsers[k]] / trainUserCounts[trainUsers[k]]);
+			for (int k = 0; k < trainItems.length; k++)
+				putDouble(windows, sections[4] + 8L * k, itemSums[trainItems[k]] / trainItemCounts[trainItems[k]]);
+			putInts(windows, sections[5], rowPtr(trainUsers, trainUserCounts));
+			putInts(windows, sections[8], rowPtr(trainItems, trainItemCounts));
+			putInts(windows, sections[11], testUsers);
+			putInts(windows, sections[12], testItems);
+			putInts(windows, sections[13], rowPtr(testUsers, testUserCounts));
+
+			// Second visit: the ratings themselves. The counts are no longer needed and become the dense indices
+			int[] itemCursors = rowPtr(trainItems, trainItemCounts);
+			RowWriter rows = new RowWriter(windows, sections, itemCursors, denseIndex(trainUsers, trainUserCounts),
+					denseIndex(trainItems, trainItemCounts), denseIndex(testItems, testItemCounts));
+			source.visit(rows);
+			rows.flush();
+			if (rows.trainPosition != numTrain || rows.testPosition != numTest)
+				throw new IllegalStateException("The ratings changed between visits.");
+
+			for (MappedByteBuffer window : windows)
+				window.force();
+			file.close();
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			written = true;
+		} finally	{
+			file.close();
+			if (!written)
+				Files.deleteIfExists(temp);
+		}
+		return numTrain + numTest;
+	}
+
+	/**
+	 * Maps @fileName into memory. The returned buffers remain valid after the file is closed.
+	 * @throws IOException if the file cannot be opened for reading or is not a binary rating file
+	 */
+	static Contents read ( String fileName )
+			throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try	{
+			if (file.length() < HEADER_BYTES)
+				throw new IOException(String.format("%s is not a binary rating file.", fileName));
+			BinaryRatingFile reader = new BinaryRatingFile(file.getChannel());
+			ByteBuffer header = reader.map(HEADER_BYTES);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException(String.format("%s is not a binary rating file.", fileName));
+			if (header.getInt(4) != VERSION)
+				throw new IOException(String.format("%s has unsupported format version %d.", fileName, header.getInt(4)));
+			int numTrainUsers = header.getInt(8), numTrainItems = header.getInt(12), numTrainRatings = header.getInt(16);
+			int numTestUsers = header.getInt(20), numTestItems = header.getInt(24), numTestRatings = header.getInt(28);
+
+			Contents contents = new Contents();
+			contents.trainUsers = new IdIndex(reader.mapInts(numTrainUsers));
+			contents.trainItems = new IdIndex(reader.mapInts(numTrainItems));
+			contents.userMeans = reader.mapDoubles(numTrainUsers);
+			contents.itemMeans = reader.mapDoubles(numTrainItems);
+			contents.byUser = reader.mapMatrix(numTrainUsers, numTrainItems, numTrainRatings);
+			contents.byItem = reader.mapMatrix(numTrainItems, numTrainUsers, numTrainRatings);
+			contents.testUsers = new IdIndex(reader.mapInts(numTestUsers));
+			contents.testItems = new IdIndex(reader.mapInts(numTestItems));
+			contents.test = reader.mapMatrix(numTestUsers, numTestItems, numTestRatings);
+			return contents;
+		} finally	{
+			file.close();
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private BinaryRatingFile ( FileChannel channel )
+	{
+		this.channel = channel;
+		this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		this.offset = 0;
+	}
+
+	/**
+	 * @return the next @bytes bytes of the file mapped read-only, after which the offset is advanced to the
+	 * next 8-byte boundary
+	 */
+	private ByteBuffer map ( long bytes )
+			throws IOException
+	{
+		if (offset + bytes > channel.size())
+			throw new EOFException("Binary rating file is truncated.");
+		ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+		offset = align(offset + bytes);
+		return buf;
+	}
+
+	private IntBuffer mapInts ( int count )
+			throws IOException
+	{
+		return map(4L * count).asIntBuffer();
+	}
+
+	private FloatBuffer mapFloats ( int count )
+			throws IOException
+	{
+		return map(4L * count).asFloatBuffer();
+	}
+
+	private DoubleBuffer mapDoubles ( int count )
+			throws IOException
+	{
+		return map(8L * count).asDoubleBuffer();
+	}
+
+	private RatingMatrix mapMatrix (	int numRows,
+										int numCols,
+										int nnz )
+			throws IOException
+	{
+		IntBuffer rowPtr = mapInts(numRows + 1);
+		IntBuffer colIdx = mapInts(nnz);
+		FloatBuffer values = mapFloats(nnz);
+		return new RatingMatrix(numRows, numCols, rowPtr, colIdx, values);
+	}
+
+	private void writeBytes ( ByteBuffer buf )
+			throws IOException
+	{
+		while (buf.hasRemaining())
+			offset += channel.write(buf, offset);
+		long aligned = align(offset);
+		if (aligned > offset)
+			writeBytes(ByteBuffer.allocate((int) (aligned - offset)));
+	}
+
+	/**
+	 * Writes the remaining elements of the given buffers through the fixed-size write buffer, so that sections
+	 * of any size are written without a section-sized temporary copy.
+	 */
+	private void writeInts ( IntBuffer src )
+			throws IOException
+	{
+		while (src.hasRemaining())	{
+			writeBuffer.clear();
+			IntBuffer dst = writeBuffer.asIntBuffer();
+			int n = Math.min(dst.remaining(), src.remaining());
+			IntBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			src.position(src.position() + n);
+			writeChunk(4 * n, !src.hasRemaining());
+		}
+	}
+
+	private void writeFloats ( FloatBuffer src )
+			throws IOException
+	{
+		while (src.hasRemaining())	{
+			writeBuffer.clear();
+			FloatBuffer dst = writeBuffer.asFloatBuffer();
+			int n = Math.min(dst.remaining(), src.remaining());
+			FloatBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			src.position(src.position() + n);
+			writeChunk(4 * n, !src.hasRemaining());
+		}
+	}
+
+	private void writeDoubles ( DoubleBuffer src )
+			throws IOException
+	{
+		while (src.hasRemaining())	{
+			writeBuffer.clear();
+			DoubleBuffer dst = writeBuffer.asDoubleBuffer();
+			int n = Math.min(dst.remaining(), src.remaining());
+			DoubleBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			src.position(src.position() + n);
+			writeChunk(8 * n, !src.hasRemaining());
+		}
+	}
+
+	/**
+	 * Writes the first @bytes bytes of the write buffer, padding to the next 8-byte boundary if the section
+	 * ends with them.
+	 */
+	private void writeChunk (	int bytes,
+								boolean endOfSection )
+			throws IOException
+	{
+		writeBuffer.position(0).limit(bytes);
+		while (writeBuffer.hasRemaining())
+			offset += channel.write(writeBuffer, offset);
+		if (endOfSection)	{
+			long aligned = align(offset);
+			if (aligned > offset)
+				writeBytes(ByteBuffer.allocate((int) (aligned - offset)));
+		}
+	}
+
+	private void writeMatrix ( RatingMatrix matrix )
+			throws IOException
+	{
+		writeInts(matrix.rowPtrBuffer());
+		writeInts(matrix.colIdxBuffer());
+		writeFloats(matrix.valueBuffer());
+	}
+
+	/**
+	 * @return the ids whose entries of @counts are not 0, in ascending order
+	 */
+	private static int[] idsOf ( int[] counts )
+	{
+		int n = 0;
+		for (int count : counts)
+			if (count > 0)
+				n++;
+		int[] ids = new int[n];
+		n = 0;
+		for (int id = 0; id < counts.length; id++)
+			if (counts[id] > 0)
+				ids[n++] = id;
+		return ids;
+	}
+
+	/**
+	 * @return the row offsets of rows @ids with @counts ratings each
+	 */
+	private static int[] rowPtr (	int[] ids,
+									int[] counts )
+	{
+		int[] rowPtr = new int[ids.length + 1];
+		for (int k = 0; k < ids.length; k++)
+			rowPtr[k + 1] = rowPtr[k] + counts[ids[k]];
+		return rowPtr;
+	}
+
+	/**
+	 * Overwrites the entries of @ids in @counts with their positions in @ids.
+	 * @return @counts
+	 */
+	private static int[] denseIndex (	int[] ids,
+										int[] counts )
+	{
+		for (int k = 0; k < ids.length; k++)
+			counts[ids[k]] = k;
+		return counts;
+	}
+
+	private static void putInt (	MappedByteBuffer[] windows,
+									long position,
+									int value )
+	{
+		windows[(int) (position / WINDOW_BYTES)].putInt((int) (position % WINDOW_BYTES), value);
+	}
+
+	private static void putDouble (	MappedByteBuffer[] windows,
+									long position,
+									double value )
+	{
+		windows[(int) (position / WINDOW_BYTES)].putDouble((int) (position % WINDOW_BYTES), value);
+	}
+
+	private static void putInts (	MappedByteBuffer[] windows,
+									long position,
+									int[] values )
+	{
+		for (int k = 0; k < values.length; k++)
+			putInt(windows, position + 4L * k, values[k]);
+	}
+
+	/**
+	 * The second visit of write(Source, ...). It buffers the ratings of each user and writes them sorted by item
+	 * to the user-major training and test rows once the next user comes, and writes each training rating
+	 * straight to the item-major rows, which are filled from the front as the users come and so stay sorted.
+	 */
+	private static final class RowWriter implements Visitor {
+
+		private final MappedByteBuffer[] windows;
+		private final long[] sections;
+		private final int[] itemCursors;
+		private final int[] userIndex;
+		private final int[] itemIndex;
+		private final int[] testItemIndex;
+		// The item index of each rating of the current user in the high half, the rating in the low half
+		private long[] train = new long[16];
+		private long[] test = new long[16];
+		private int numTrain;
+		private int numTest;
+		private int user;
+		long trainPosition;
+		long testPosition;
+
+		RowWriter (	MappedByteBuffer[] windows,
+					long[] sections,
+					int[] itemCursors,
+					int[] userIndex,
+					int[] itemIndex,
+					int[] testItemIndex )
+		{
+			this.windows = windows;
+			this.sections = sections;
+			this.itemCursors = itemCursors;
+			this.userIndex = userIndex;
+			this.itemIndex = itemIndex;
+			this.testItemIndex = testItemIndex;
+		}
+
+		public void rating (	int user,
+								int item,
+								float rating,
+								boolean test )
+		{
+			if (user != this.user)	{
+				flush();
+				this.user = user;
+			}
+			long bits = Float.floatToRawIntBits(rating) & 0xFFFFFFFFL;
+			if (test)	{
+				if (numTest == this.test.length)
+					this.test = Arrays.copyOf(this.test, 2 * numTest);
+				this.test[numTest++] = ((long) testItemIndex[item] << 32) | bits;
+			} else	{
+				if (numTrain == train.length)
+					train = Arrays.copyOf(train, 2 * numTrain);
+				train[numTrain++] = ((long) itemIndex[item] << 32) | bits;
+				long position = itemCursors[itemIndex[item]]++;
+				putInt(windows, sections[9] + 4 * position, userIndex[user]);
+				putInt(windows, sections[10] + 4 * position, (int) bits);
+			}
+		}
+
+		/**
+		 * Writes out the buffered ratings of the current user.
+		 */
+		void flush ()
+		{
+			trainPosition = putRow(sections[6], sections[7], trainPosition, train, numTrain);
+			testPosition = putRow(sections[14], sections[15], testPosition, test, numTest);
+			numTrain = numTest = 0;
+		}
+
+		private long putRow (	long colIdx,
+								long values,
+								long position,
+								long[] ratings,
+								int length )
+		{
+			Arrays.sort(ratings, 0, length);
+			for (int k = 0; k < length; k++, position++)	{
+				int col = (int) (ratings[k] >>> 32);
+				if (k > 0 && col == (int) (ratings[k - 1] >>> 32))
+					throw new IllegalArgumentException(String.format("User %d rates an item twice.", user));
+				putInt(windows, colIdx + 4 * position, col);
+				putInt(windows, values + 4 * position, (int) ratings[k]);
+			}
+			return position;
+		}
+	}
+
+	private static long align ( long offset )
+	{
+		return (offset + 7) & ~7L;
+	}
+}
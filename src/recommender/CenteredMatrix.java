@@ -0,0 +1,102 @@
+package recommender;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A read-only view of a RatingMatrix in which every rating has a per-row and a per-column shift subtracted,
+ * computed on access. With the row or column means as shifts this centers the ratings without touching the
+ * underlying matrix; with all-zero shifts it exposes the raw ratings.
+ */
+final class CenteredMatrix {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final RatingMatrix matrix;
+	private final DoubleBuffer rowShift;
+	private final DoubleBuffer colShift;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param rowShift the value subtracted from every rating of each row
+	 * @param colShift the value subtracted from every rating of each column
+	 */
+	CenteredMatrix (	RatingMatrix matrix,
+						DoubleBuffer rowShift,
+						DoubleBuffer colShift )
+	{
+		this.matrix = matrix;
+		this.rowShift = rowShift;
+		this.colShift = colShift;
+	}
+
+	/**
+	 * @return the shifted rating at position @k, which lies in @row
+	 */
+	double value (	int row,
+					int k )
+	{
+		return matrix.value(k) - rowShift.get(row) - colShift.get(matrix.col(k));
+	}
+
+	/**
+	 * @return the position of (@row, @col), or -1 if it holds no rating
+	 */
+	int find (	int row,
+				int col )
+	{
+		return matrix.find(row, col);
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	int numRows ()
+	{
+		return matrix.numRows();
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	int numCols ()
+	{
+		return matrix.numCols();
+	}
+
+	/**
+	 * @return the position of the first rating of @row
+	 */
+	int rowStart ( int row )
+	{
+		return matrix.rowStart(row);
+	}
+
+	/**
+	 * @return the position one past the last rating of @row
+	 */
+	int rowEnd ( int row )
+	{
+		return matrix.rowEnd(row);
+	}
+
+	/**
+	 * @return the number of ratings in @row
+	 */
+	int rowLength ( int row )
+	{
+		return matrix.rowLength(row);
+	}
+
+	/**
+	 * @return the column index of the rating at position @k
+	 */
+	int col ( int k )
+	{
+		return matrix.col(k);
+	}
+}
@@ -0,0 +1,106 @@
+package recommender;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * What the command-line tools of the library, such as RecommenderServer, RecommenderLoadGenerator and
+ * SyntheticRatingGenerator, and the benchmarks share: name=value arguments, and the recommenders by name with
+ * the parameters CompareRecommenders uses on MovieLens 100K.
+ */
+public final class CommandLine {
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the name=value pairs of @args, by name; a name given twice keeps its last value
+	 * @throws IllegalArgumentException if an argument is not a name=value pair
+	 */
+	public static Map<String, String> parse ( String[] args )
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args)	{
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected name=value, not " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return options;
+	}
+
+	/**
+	 * @return the value of @name in @options
+	 * @throws IllegalArgumentException if @options has no @name
+	 */
+	public static String required (	Map<String, String> options,
+									String name )
+	{
+		String value = options.get(name);
+		if (value == null)
+			throw new IllegalArgumentException("Missing " + name + "=...");
+		return value;
+	}
+
+	/**
+	 * @return the value of @name in @options, or @defaultValue if it has none
+	 */
+	public static String value (	Map<String, String> options,
+									String name,
+									String defaultValue )
+	{
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @return the DAO of the binary rating file dao=FILE of @options, or else of the tab-separated files
+	 * train=FILE and test=FILE
+	 * @throws IOException if the files cannot be read
+	 */
+	public static DAO loadDAO ( Map<String, String> options )
+			throws IOException
+	{
+		if (options.containsKey("dao"))
+			return new DAO(options.get("dao"));
+		return new DAO(required(options, "train"), required(options, "test"), "\t");
+	}
+
+	/**
+	 * @return a new, untrained recommender @name over @dao: base, uu, uu-topk, ii, ii-topk, slopeone,
+	 * slopeone-lazy or funksvd. The neighborhood models compute their similarities on all processors, and
+	 * FunkSVD writes its features to temporary files.
+	 * @throws IOException if the temporary files cannot be created
+	 * @throws IllegalArgumentException if there is no recommender @name
+	 */
+	public static BaseRecommender createRecommender (	String name,
+														DAO dao )
+			throws IOException
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		switch (name)	{
+			case "base":
+				return new BaseRecommender(dao);
+			case "uu":
+				return new UUCollaborativeFiltering(dao, 378, 12, threads);
+			case "uu-topk":
+				return new UUCollaborativeFiltering(dao, 378, 12, threads, true);
+			case "ii":
+				return new IICollaborativeFiltering(dao, 1116, 10, threads);
+			case "ii-topk":
+				return new IICollaborativeFiltering(dao, 1116, 10, threads, true);
+			case "slopeone":
+				return new SlopeOneRecommender(dao);
+			case "slopeone-lazy":
+				return new SlopeOneRecommender(dao, true, 0);
+			case "funksvd":
+				File users = File.createTempFile("funksvd-users", ".features"), items = File.createTempFile("funksvd-items", ".features");
+				users.deleteOnExit();
+				items.deleteOnExit();
+				return new FunkSVDRecommender(dao, 20, 100, 0.1, 0.0001, 0.001, 0.015, users.getPath(), items.getPath());
+			default:
+				throw new IllegalArgumentException("Unknown recommender " + name);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package recommender;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -12,9 +13,11 @@ public class CompareRecommenders {
 			throws IOException	
 	{
 		BaseRecommender baserec = null;	
+		// All the recommenders of the package allow concurrent predictions, so they are evaluated on every processor
+		int threads = Runtime.getRuntime().availableProcessors();
 		
 		System.out.println("Creating data access object...");
-		DAO dao = new DAO("data/u1.base", "data/u1.test", "\t");
+		DAO dao = loadCached("data/u1.base", "data/u1.test", "data/u1.dao");
 		System.out.println("Data access object created.");
 		
 		System.out.println("\nBase Recommender");
@@ -22,30 +25,32 @@ public class CompareRecommenders {
 		System.out.println("Training...");
 		baserec.train();
 		System.out.println("Testing...");
-		baserec.evaluate("data\\baserec.predict");
+		baserec.evaluate("data\\baserec.predict", threads);
+		baserec.evaluateRanking(10, 4.0, threads);
 		
 		System.out.println("\nUser User Collaborative Filtering Recommender");
 		baserec = new UUCollaborativeFiltering(dao, 378, 12);
 		System.out.println("Training...");
 		baserec.train();
 		System.out.println("Testing...");
-		baserec.evaluate("data\\uucf.predict");
-		dao.userMeanDeNormalize();
+		baserec.evaluate("data\\uucf.predict", threads);
+		baserec.evaluateRanking(10, 4.0, threads);
 		
 		System.out.println("\nItem Item Collaborative Filtering Recommender");
 		baserec = new IICollaborativeFiltering(dao, 1116, 10);
 		System.out.println("Training...");
 		baserec.train();
 		System.out.println("Testing...");
-		baserec.evaluate("data\\iicf.predict");
-		dao.itemMeanDeNormalize();
+		baserec.evaluate("data\\iicf.predict", threads);
+		baserec.evaluateRanking(10, 4.0, threads);
 		
 		System.out.println("\nSlope One Recommender");
 		baserec = new SlopeOneRecommender(dao);
 		System.out.println("Training...");
 		baserec.train();
 		System.out.println("Testing...");
-		baserec.evaluate("data\\slopeone.predict");
+		baserec.evaluate("data\\slopeone.predict", threads);
+		baserec.evaluateRanking(10, 4.0, threads);
 		
 	
 		System.out.println("\nFunk SVD Recommender");
@@ -54,7 +59,27 @@ public class CompareRecommenders {
 		System.out.println("Training...");
 		baserec.train();
 		System.out.println("Testing...");
-		baserec.evaluate("data\\funksvd.predict");
+		baserec.evaluate("data\\funksvd.predict", threads);
+		baserec.evaluateRanking(10, 4.0, threads);
 	
 	}
+
+	/**
+	 * @return the DAO of @trainFile and @testFile, loaded from the binary rating file @cacheFile if it is not
+	 * older than either, or else parsed from the text files and saved to @cacheFile for the next run
+	 */
+	private static DAO loadCached (	String trainFile,
+									String testFile,
+									String cacheFile )
+			throws IOException
+	{
+		File cache = new File(cacheFile);
+		if (cache.exists() && cache.lastModified() >= new File(trainFile).lastModified()
+				&& cache.lastModified() >= new File(testFile).lastModified())
+			return new DAO(cacheFile);
+
+		DAO dao = new DAO(trainFile, testFile, "\t");
+		dao.save(cacheFile);
+		return dao;
+	}
 }
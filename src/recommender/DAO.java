@@ -2,24 +2,33 @@ package recommender;
 
 import java.util.*;
 import java.io.*;
+import java.nio.DoubleBuffer;
 
 /**
- * Class to represent and provide access to training and test data set
+ * Class to represent and provide access to training and test data set. Ratings are held in compressed sparse
+ * row form over dense user and item indices: user-major for the training and test data and item-major for
+ * the transposed training data. A DAO is immutable once created, so it can be shared by any number of
+ * recommenders and threads; mean-centered ratings are read through a RatingView.
+ *
+ * Every iterator returns users and items in ascending order of their ids.
  */
 public class DAO {
 	
 	/*********************************************************************************************************/
 	/* 										Private data members											 */
 	/*********************************************************************************************************/
-	private HashMap<Integer, HashMap<Integer, Double>> trainData; 
-	private HashMap<Integer, HashMap<Integer, Double>> testData;
-	private HashMap<Integer, Double> userMeanRatings;
-	private HashMap<Integer, Double> itemMeanRatings;
-	private HashMap<Integer, Integer> countItemRatings;
-    private HashMap<Integer, HashMap<Integer, Double>> transposed_trainData; 
-    private int numOfUsers;
-    private int numOfItems;
-    private int numOfRatings;
+	private final IdIndex trainUsers;
+	private final IdIndex trainItems;
+	private final IdIndex testUsers;
+	private final IdIndex testItems;
+	private final RatingMatrix trainData; 
+	private final RatingMatrix testData;
+	private final DoubleBuffer userMeanRatings;
+	private final DoubleBuffer itemMeanRatings;
+    private final RatingMatrix transposed_trainData; 
+    private final RatingView rawView;
+    private final RatingView userCenteredView;
+    private final RatingView itemCenteredView;
     
     
     /*********************************************************************************************************/
@@ -27,7 +36,8 @@ public class DAO {
 	/*********************************************************************************************************/	
 
     /**
-     * Create a DAO object on top of the training and test data sets.
+     * Create a DAO object on top of the training and test data sets, reading them with one thread per
+     * available processor.
      * @param trainFileName The file containing [user, item, rating] training tuples
      * @param testFileName The file containing [user, item, rating] test tuples
      * @param delim Deliminator(s) that separate(s) user, item and rating
@@ -38,85 +48,91 @@ public class DAO {
 				String delim) 
 						throws IOException	
 	{
-		// allocate memory for data members
-		trainData = new HashMap<Integer, HashMap<Integer, Double>>(); 
-		testData = new HashMap<Integer, HashMap<Integer, Double>>();
-		userMeanRatings = new HashMap<Integer, Double>();
-		itemMeanRatings = new HashMap<Integer, Double>();
-		countItemRatings = new HashMap<Integer, Integer>();
-		transposed_trainData = new HashMap<Integer, HashMap<Integer, Double>>();
-		
+		this(trainFileName, testFileName, delim, Runtime.getRuntime().availableProcessors());
+	}
+	
+    /**
+     * Create a DAO object on top of the training and test data sets.
+     * @param trainFileName The file containing [user, item, rating] training tuples
+     * @param testFileName The file containing [user, item, rating] test tuples
+     * @param delim Deliminator(s) that separate(s) user, item and rating
+     * @param NUM_THREADS The number of threads used to parse the files. Each file is split into chunks at
+     * line boundaries, which are parsed and merged in parallel.
+     * @throws IOException if training or test file could not be opened for reading or read from
+     */
+	public DAO (String trainFileName, 
+				String testFileName, 
+				String delim,
+				int NUM_THREADS) 
+						throws IOException	
+	{
 		// read training data
-		BufferedReader trainFile = new BufferedReader(new FileReader(trainFileName));
-		String line = null;
-		
-		numOfRatings = 0;
-		while ((line = trainFile.readLine()) != null)	{
-			StringTokenizer st = new StringTokenizer(line, delim);
-			int user = Integer.parseInt(st.nextToken());
-			int item = Integer.parseInt(st.nextToken());
-			double rating = Double.parseDouble(st.nextToken());
-			numOfRatings++;
-			
-			if (trainData.containsKey(user))
-				trainData.get(user).put(item, rating);
-			else	{
-				HashMap<Integer, Double> userRatings = new HashMap<Integer, Double>();
-				userRatings.put(item, rating);
-				trainData.put(user, userRatings);
-			}
-			
-			if(transposed_trainData.containsKey(item))
-                transposed_trainData.get(item).put(user, rating);
-            else    {
-                HashMap<Integer, Double> userRatings = new HashMap<Integer, Double>();
-                userRatings.put(user, rating);
-                transposed_trainData.put(item, userRatings);
-            }
-			
-			if (userMeanRatings.containsKey(user))
-				userMeanRatings.put(user, userMeanRatings.get(user) + rating);
-			else
-				userMeanRatings.put(user, rating);
-			if (itemMeanRatings.containsKey(item))	{
-				itemMeanRatings.put(item, itemMeanRatings.get(item) + rating);
-				countItemRatings.put(item, countItemRatings.get(item) + 1);
-			} else	{
-				itemMeanRatings.put(item, rating);
-				countItemRatings.put(item, 1);
-			}
-		}
-		trainFile.close();
-		
-		numOfUsers = trainData.keySet().size();
-		numOfItems = transposed_trainData.keySet().size();
-		
-		// compute mean user and item ratings
-		for (Integer user : userMeanRatings.keySet())
-			userMeanRatings.put(user, userMeanRatings.get(user) / trainData.get(user).size());
-		
-		for (Integer item : itemMeanRatings.keySet())
-			itemMeanRatings.put(item, itemMeanRatings.get(item) / countItemRatings.get(item));
+		RatingFileLoader.Ratings train = new RatingFileLoader(trainFileName, delim, NUM_THREADS).load(true);
+		trainUsers = train.users;
+		trainItems = train.items;
+		trainData = train.byUser;
+		transposed_trainData = train.byItem;
+		userMeanRatings = DoubleBuffer.wrap(train.userMeans);
+		itemMeanRatings = DoubleBuffer.wrap(train.itemMeans);
 		
 		// read test data
-		BufferedReader testFile = new BufferedReader(new FileReader(testFileName));
-		line = null;
+		RatingFileLoader.Ratings test = new RatingFileLoader(testFileName, delim, NUM_THREADS).load(false);
+		testUsers = test.users;
+		testItems = test.items;
+		testData = test.byUser;
 		
-		while ((line = testFile.readLine()) != null)	{
-			StringTokenizer st = new StringTokenizer(line, delim);
-			int user = Integer.parseInt(st.nextToken());
-			int item = Integer.parseInt(st.nextToken());
-			double rating = Double.parseDouble(st.nextToken());
-			
-			if (testData.containsKey(user))
-				testData.get(user).put(item, rating);
-			else	{
-				HashMap<Integer, Double> userRatings = new HashMap<Integer, Double>();
-				userRatings.put(item, rating);
-				testData.put(user, userRatings);
-			}
-		}
-		testFile.close();
+		rawView = new RatingView(this, zeros(trainUsers.size()), zeros(trainItems.size()));
+		userCenteredView = new RatingView(this, userMeanRatings, zeros(trainItems.size()));
+		itemCenteredView = new RatingView(this, zeros(trainUsers.size()), itemMeanRatings);
+	}
+	
+	/**
+	 * Create a DAO object on top of a binary rating file previously written by {@link #save(String)}. The file
+	 * is memory-mapped read-only and accessed in place rather than parsed, so this is nearly instant and
+	 * processes opening the same file share its pages in the OS page cache.
+	 * @param dataFileName The binary rating file holding the training and test data sets
+	 * @throws IOException if the file could not be opened for reading or is not a binary rating file
+	 */
+	public DAO ( String dataFileName )
+			throws IOException
+	{
+		BinaryRatingFile.Contents contents = BinaryRatingFile.read(dataFileName);
+		trainUsers = contents.trainUsers;
+		trainItems = contents.trainItems;
+		trainData = contents.byUser;
+		transposed_trainData = contents.byItem;
+		userMeanRatings = contents.userMeans;
+		itemMeanRatings = contents.itemMeans;
+		testUsers = contents.testUsers;
+		testItems = contents.testItems;
+		testData = contents.test;
+		
+		rawView = new RatingView(this, zeros(trainUsers.size()), zeros(trainItems.size()));
+		userCenteredView = new RatingView(this, userMeanRatings, zeros(trainItems.size()));
+		itemCenteredView = new RatingView(this, zeros(trainUsers.size()), itemMeanRatings);
+	}
+	
+	/**
+	 * Write the training and test data sets to a binary rating file, which can be opened later with
+	 * {@link #DAO(String)} without parsing the text files again.
+	 * @param dataFileName The binary rating file to write. An existing file is replaced atomically, so a DAO
+	 * already open on it keeps reading the old data.
+	 * @throws IOException if the file could not be opened for writing or written to
+	 */
+	public void save ( String dataFileName )
+			throws IOException
+	{
+		BinaryRatingFile.Contents contents = new BinaryRatingFile.Contents();
+		contents.trainUsers = trainUsers;
+		contents.trainItems = trainItems;
+		contents.byUser = trainData;
+		contents.byItem = transposed_trainData;
+		contents.userMeans = userMeanRatings.duplicate();
+		contents.itemMeans = itemMeanRatings.duplicate();
+		contents.testUsers = testUsers;
+		contents.testItems = testItems;
+		contents.test = testData;
+		BinaryRatingFile.write(contents, dataFileName);
 	}
 
 	/**
@@ -128,10 +144,12 @@ public class DAO {
 	public double getTrainRating (	int user, 
 									int item )	
 	{
-		if (trainData.containsKey(user))	{
-			HashMap<Integer, Double> userRatings = trainData.get(user);
-			if (userRatings.containsKey(item))
-				return userRatings.get(item);
+		int u = trainUsers.indexOf(user);
+		if (u >= 0)	{
+			int i = trainItems.indexOf(item);
+			int k = i >= 0 ? trainData.find(u, i) : -1;
+			if (k >= 0)
+				return trainData.value(k);
 			else
 				return 0;
 		} else
@@ -147,10 +165,12 @@ public class DAO {
 	public double getTestRating (	int user, 
 									int item )	
 	{
-		if (testData.containsKey(user))	{
-			HashMap<Integer, Double> userRatings = testData.get(user);
-			if (userRatings.containsKey(item))
-				return userRatings.get(item);
+		int u = testUsers.indexOf(user);
+		if (u >= 0)	{
+			int i = testItems.indexOf(item);
+			int k = i >= 0 ? testData.find(u, i) : -1;
+			if (k >= 0)
+				return testData.value(k);
 			else
 				throw new IllegalArgumentException(String.format("Test data does not contain rating for item %d for user %d.", item, user));
 		} else
@@ -162,8 +182,9 @@ public class DAO {
 	 */
 	public double getUserMeanRating ( int user )	
 	{
-		if (userMeanRatings.containsKey(user))
-			return userMeanRatings.get(user);
+		int u = trainUsers.indexOf(user);
+		if (u >= 0)
+			return userMeanRatings.get(u);
 		else
 			return 3.5;
 	}
@@ -173,66 +194,71 @@ public class DAO {
 	 */
 	public double getItemMeanRating ( int item )	
 	{
-		if (itemMeanRatings.containsKey(item))
-			return itemMeanRatings.get(item);
+		int i = trainItems.indexOf(item);
+		if (i >= 0)
+			return itemMeanRatings.get(i);
 		else
 			return 3.5;
 	}
 	
 	/**
-	 * @return an iterator over all users in the training data set
+	 * @return an iterator over all users in the training data set, in ascending order of id
 	 */
 	public Iterable<Integer> getTrainUsers ()	
 	{
-		return trainData.keySet();
+		return trainUsers;
 	}
 	
 	/**
-	 * @return an iterator over all users in the test data set
+	 * @return an iterator over all users in the test data set, in ascending order of id
 	 */
 	public Iterable<Integer> getTestUsers ()	
 	{
-		return testData.keySet();
+		return testUsers;
 	}
 	
 	/**
-	 * @return an iterator over all items rated by @user in the training data set
+	 * @return an iterator over all items rated by @user in the training data set, in ascending order of id
 	 */
 	public Iterable<Integer> getTrainItems ( int user )	
 	{
-		return trainData.get(user).keySet();
+		return trainData.rowIds(trainUserIndex(user), trainItems);
 	}
 	
 	/**
-	 * @return an iterator over all items rated by @user in the test data set
+	 * @return an iterator over all items rated by @user in the test data set, in ascending order of id
 	 */
 	public Iterable<Integer> getTestItems ( int user )	
 	{
-		return testData.get(user).keySet();
+		int u = testUsers.indexOf(user);
+		if (u < 0)
+			throw new IllegalArgumentException(String.format("Test data does not contain any rating for user %d.", user));
+		return testData.rowIds(u, testItems);
 	}
 	
 	/**
-	 * @return an iterator over all items in the transposed training data set
+	 * @return an iterator over all items in the transposed training data set, in ascending order of id
 	 */
 	public Iterable<Integer> getTransposedTrainItems ()
 	{
-        return transposed_trainData.keySet();
+        return trainItems;
     }
 	
 	/**
-	 * @return an iterator over all users who have rated @item in the transposed training data set
+	 * @return an iterator over all users who have rated @item in the transposed training data set, in ascending order
+	 * of id
 	 */
 	public Iterable<Integer> getTransposedTrainUsers ( int item )	
 	{
-		return transposed_trainData.get(item).keySet();
+		return transposed_trainData.rowIds(trainItemIndex(item), trainUsers);
 	}
 
 	/**
-	 * @return an iterator over all items in the training data set
+	 * @return an iterator over all items in the training data set, in ascending order of id
 	 */
 	public Iterable<Integer> getAllItems ()
 	{
-		return transposed_trainData.keySet();
+		return trainItems;
 	}
 
 	/**
@@ -241,16 +267,23 @@ public class DAO {
 	public boolean containsTransposedTrainRating (	int item, 
 													int user )	
 	{
-		return transposed_trainData.containsKey(item) && transposed_trainData.get(item).containsKey(user);
+		int i = trainItems.indexOf(item), u = trainUsers.indexOf(user);
+		return i >= 0 && u >= 0 && transposed_trainData.find(i, u) >= 0;
 	}
 	
 	/**
 	 * @return the rating associated with (@item, @user) in the transposed training data set
+	 * 
+	 * @throws IllegalArgumentException if (@item, @user) has no rating in the transposed training data set
 	 */
 	public double getTransposedTrainRating (int item, 
 											int user )	
 	{
-		return transposed_trainData.get(item).get(user);
+		int i = trainItems.indexOf(item), u = trainUsers.indexOf(user);
+		int k = (i >= 0 && u >= 0) ? transposed_trainData.find(i, u) : -1;
+		if (k < 0)
+			throw new IllegalArgumentException(String.format("Training data does not contain rating for item %d for user %d.", item, user));
+		return transposed_trainData.value(k);
 	}
 
 	/**
@@ -258,7 +291,7 @@ public class DAO {
 	 */
 	public boolean containsTrainUser ( int user )	
 	{
-		return trainData.containsKey(user);
+		return trainUsers.indexOf(user) >= 0;
 	}
 		
 	/**
@@ -267,51 +300,34 @@ public class DAO {
 	public boolean containsTrainRating (int user, 
 										int item )	
 	{
-		return trainData.containsKey(user) && trainData.get(user).containsKey(item);
+		int u = trainUsers.indexOf(user), i = trainItems.indexOf(item);
+		return u >= 0 && i >= 0 && trainData.find(u, i) >= 0;
 	}
 
 	/**
-	 * Normalize the training data by subtracting user mean rating for each rating in the data set.
+	 * @return a view of the raw training ratings
 	 */
-	public void userMeanNormalize ()	
+	public RatingView rawView ()
 	{
-		for (Integer user : trainData.keySet())	{
-			double userMean = userMeanRatings.get(user);
-			for (Integer item : trainData.get(user).keySet())
-				trainData.get(user).put(item, trainData.get(user).get(item) - userMean);
-		}			
+		return rawView;
 	}
 	
 	/**
-	 * Normalize the transposed training data by subtracting item mean rating for each rating in the data set.
+	 * @return a view of the training ratings normalized by subtracting the user mean rating from each rating.
+	 * The DAO itself is left unchanged.
 	 */
-	public void itemMeanNormalize ()
+	public RatingView userCenteredView ()
 	{
-		for (Integer item : transposed_trainData.keySet())
-			for (Integer user : transposed_trainData.get(item).keySet())
-				transposed_trainData.get(item).put(user, transposed_trainData.get(item).get(user) - itemMeanRatings.get(item));
-	}
-
-	/**
-	 * Denormalize the training data by adding user mean rating for each rating in the data set.
-	 */
-	public void userMeanDeNormalize ()
-	{
-		for (Integer user : trainData.keySet())	{
-			double userMean = userMeanRatings.get(user);
-			for (Integer item : trainData.get(user).keySet())
-				trainData.get(user).put(item, trainData.get(user).get(item) + userMean);
-		}
+		return userCenteredView;
 	}
 	
 	/**
-	 * Denormalize the transposed training data by adding item mean rating for each rating in the data set.
+	 * @return a view of the training ratings normalized by subtracting the item mean rating from each rating.
+	 * The DAO itself is left unchanged.
 	 */
-	public void itemMeanDeNormalize ()
+	public RatingView itemCenteredView ()
 	{
-		for (Integer item : transposed_trainData.keySet())
-			for (Integer user : transposed_trainData.get(item).keySet())
-				transposed_trainData.get(item).put(user, transposed_trainData.get(item).get(user) + itemMeanRatings.get(item));
+		return itemCenteredView;
 	}
 	
 	/**
@@ -319,7 +335,7 @@ public class DAO {
 	 */
 	public int numTrainUsers ()
 	{
-		return numOfUsers;
+		return trainUsers.size();
 	}
 	
 	/**
@@ -327,7 +343,7 @@ public class DAO {
 	 */
 	public int numTrainItems ()
 	{
-		return numOfItems;
+		return trainItems.size();
 	}
 
 	/**
@@ -335,7 +351,7 @@ public class DAO {
 	 */
 	public int numTrainRatings ()
 	{
-		return numOfRatings;
+		return trainData.nnz();
 	}
 	
 	/**
@@ -343,7 +359,7 @@ public class DAO {
 	 */
 	public int numTrainRatingsForUser ( int user )	
 	{
-		return trainData.get(user).size();
+		return trainData.rowLength(trainUserIndex(user));
 	}
 	
 	/**
@@ -351,7 +367,120 @@ public class DAO {
 	 */
 	public int numTrainRatingsForItem ( int item )	
 	{
-		return transposed_trainData.get(item).size();
+		return transposed_trainData.rowLength(trainItemIndex(item));
+	}
+	
+	
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+	
+	/**
+	 * @return the dense index of @user in the training data set
+	 * @throws IllegalArgumentException if @user is not present in the training data set
+	 */
+	int trainUserIndex ( int user )
+	{
+		int u = trainUsers.indexOf(user);
+		if (u < 0)
+			throw new IllegalArgumentException(String.format("Training data does not contain any rating for user %d.", user));
+		return u;
+	}
+	
+	/**
+	 * @return the dense index of @item in the training data set
+	 * @throws IllegalArgumentException if @item is not present in the training data set
+	 */
+	int trainItemIndex ( int item )
+	{
+		int i = trainItems.indexOf(item);
+		if (i < 0)
+			throw new IllegalArgumentException(String.format("Training data does not contain any rating for item %d.", item));
+		return i;
 	}
 	
+	/**
+	 * @return the dense index to external id mapping of the users in the training data set
+	 */
+	IdIndex trainUsers ()
+	{
+		return trainUsers;
+	}
+	
+	/**
+	 * @return the dense index to external id mapping of the items in the training data set
+	 */
+	IdIndex trainItems ()
+	{
+		return trainItems;
+	}
+	
+	/**
+	 * @return the dense index to external id mapping of the users in the test data set
+	 */
+	IdIndex testUsers ()
+	{
+		return testUsers;
+	}
+	
+	/**
+	 * @return the dense index to external id mapping of the items in the test data set
+	 */
+	IdIndex testItems ()
+	{
+		return testItems;
+	}
+	
+	/**
+	 * @return the user-major test ratings, indexed by dense test user and test item indices
+	 */
+	RatingMatrix testMatrix ()
+	{
+		return testData;
+	}
+	
+	/**
+	 * @return the user-major training ratings, indexed by dense user and item indices
+	 */
+	RatingMatrix trainMatrix ()
+	{
+		return trainData;
+	}
+	
+	/**
+	 * @return the item-major training ratings, indexed by dense item and user indices
+	 */
+	RatingMatrix transposedTrainMatrix ()
+	{
+		return transposed_trainData;
+	}
+	
+	/**
+	 * @return the mean training rating of the user with dense index @u
+	 */
+	double userMean ( int u )
+	{
+		return userMeanRatings.get(u);
+	}
+	
+	/**
+	 * @return the mean training rating of the item with dense index @i
+	 */
+	double itemMean ( int i )
+	{
+		return itemMeanRatings.get(i);
+	}
+	
+	
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+	
+	/**
+	 * @return a buffer of @n zeros, used as the shift of the uncentered side of a view
+	 */
+	private static DoubleBuffer zeros ( int n )
+	{
+		return DoubleBuffer.wrap(new double[n]);
+	}
 }
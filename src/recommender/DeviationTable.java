@@ -0,0 +1,252 @@
+package recommender;
+
+import java.util.Arrays;
+
+/**
+ * The item-item deviation table of Slope One in its sums-and-counts form: for every pair of items (i, j)
+ * rated by at least one common user, the sum over those users of r_i - r_j and the number of such users.
+ * The average deviation of i from j is then sum / count. Only co-rated pairs are stored, as sorted sparse
+ * rows over dense item indices, so the table grows with the number of co-rated pairs rather than with
+ * items^2. The diagonal is not stored.
+ *
+ * The table is built through the item to users index: for an item i, every user who rated i and, through
+ * the user to items index, every item j > i that user rated are visited, accumulating into dense scratch
+ * arrays. Since sum(j, i) = -sum(i, j) and count(j, i) = count(i, j), only the pairs i < j are computed and
+ * each is then mirrored into the row of j.
+ *
+ * Since sums and counts are additive, the table can also be updated in place, one pair at a time, as ratings
+ * are added or removed. The table is not thread-safe: updates must not run concurrently with reads.
+ */
+final class DeviationTable {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private int[][] cols;
+	private double[][] sums;
+	private int[][] counts;
+	private int[] lengths;
+	private int numItems;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Builds the deviation table of the ratings in @byUser.
+	 * @param byUser the ratings, user-major over dense user and item indices
+	 * @param byItem the transpose of @byUser
+	 */
+	static DeviationTable build (	RatingMatrix byUser,
+									RatingMatrix byItem )
+	{
+		int n = byItem.numRows();
+		int[][] upperCols = new int[n][];
+		double[][] upperSums = new double[n][];
+		int[][] upperCounts = new int[n][];
+
+		// Sparse accumulation of the pairs (i, j), j > i, one row i at a time
+		double[] sum = new double[n];
+		int[] count = new int[n];
+		int[] touched = new int[n];
+		int[] lowerLength = new int[n];
+		for (int i = 0; i < n; i++)	{
+			int numTouched = 0;
+			for (int k = byItem.rowStart(i); k < byItem.rowEnd(i); k++)	{
+				int u = byItem.col(k);
+				double r_i = byItem.value(k);
+				for (int kk = byUser.find(u, i) + 1; kk < byUser.rowEnd(u); kk++)	{
+					int j = byUser.col(kk);
+					if (count[j] == 0)
+						touched[numTouched++] = j;
+					sum[j] += r_i - byUser.value(kk);
+					count[j]++;
+				}
+			}
+
+			Arrays.sort(touched, 0, numTouched);
+			upperCols[i] = Arrays.copyOf(touched, numTouched);
+			upperSums[i] = new double[numTouched];
+			upperCounts[i] = new int[numTouched];
+			for (int t = 0; t < numTouched; t++)	{
+				int j = touched[t];
+				upperSums[i][t] = sum[j];
+				upperCounts[i][t] = count[j];
+				lowerLength[j]++;
+				sum[j] = 0.0;
+				count[j] = 0;
+			}
+		}
+
+		// Mirror every pair (i, j), j > i, into row j. Rows are visited by increasing i, so the mirrored
+		// entries land in each row already sorted, ahead of the row's own entries, which all lie above i.
+		int[][] cols = new int[n][];
+		double[][] sums = new double[n][];
+		int[][] counts = new int[n][];
+		for (int i = 0; i < n; i++)	{
+			int length = lowerLength[i] + upperCols[i].length;
+			cols[i] = new int[length];
+			sums[i] = new double[length];
+			counts[i] = new int[length];
+		}
+		int[] fill = new int[n];
+		for (int i = 0; i < n; i++)	{
+			for (int t = 0; t < upperCols[i].length; t++)	{
+				int j = upperCols[i][t], k = fill[j]++;
+				cols[j][k] = i;
+				sums[j][k] = -upperSums[i][t];
+				counts[j][k] = upperCounts[i][t];
+			}
+			System.arraycopy(upperCols[i], 0, cols[i], lowerLength[i], upperCols[i].length);
+			System.arraycopy(upperSums[i], 0, sums[i], lowerLength[i], upperCols[i].length);
+			System.arraycopy(upperCounts[i], 0, counts[i], lowerLength[i], upperCols[i].length);
+			upperCols[i] = null;
+			upperSums[i] = null;
+			upperCounts[i] = null;
+		}
+		return new DeviationTable(cols, sums, counts);
+	}
+
+	/**
+	 * @return the number of items
+	 */
+	int numItems ()
+	{
+		return numItems;
+	}
+
+	/**
+	 * @return an estimate of the heap taken by the table, in bytes, counting the spare capacity of every row
+	 */
+	long bytes ()
+	{
+		// 16 bytes of header per array, and 4 per reference or int
+		long bytes = 4 * 16L + 4L * (cols.length + sums.length + counts.length + lengths.length);
+		for (int i = 0; i < numItems; i++)
+			bytes += 3 * 16L + 4L * cols[i].length + 8L * sums[i].length + 4L * counts[i].length;
+		return bytes;
+	}
+
+	/**
+	 * Adds items with empty rows until there are @n items.
+	 */
+	void ensureItems ( int n )
+	{
+		if (n > cols.length)	{
+			int capacity = Math.max(n, cols.length + (cols.length >> 1));
+			cols = Arrays.copyOf(cols, capacity);
+			sums = Arrays.copyOf(sums, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		for (; numItems < n; numItems++)	{
+			cols[numItems] = new int[0];
+			sums[numItems] = new double[0];
+			counts[numItems] = new int[0];
+		}
+	}
+
+	/**
+	 * Adds @sum and @count to the pair (@i, @j) and their negation and @count to the pair (@j, @i). A pair is
+	 * inserted if it is not stored yet and dropped once its count falls to 0.
+	 */
+	void add (	int i,
+				int j,
+				double sum,
+				int count )
+	{
+		addToRow(i, j, sum, count);
+		addToRow(j, i, -sum, count);
+	}
+
+	/**
+	 * @return the number of items co-rated with @item
+	 */
+	int rowLength ( int item )
+	{
+		return lengths[item];
+	}
+
+	/**
+	 * @return the k-th item co-rated with @item, in order of increasing index
+	 */
+	int col (	int item,
+				int k )
+	{
+		return cols[item][k];
+	}
+
+	/**
+	 * @return the sum of r_item - r_j over the users who rated both @item and its k-th co-rated item j
+	 */
+	double sum (	int item,
+					int k )
+	{
+		return sums[item][k];
+	}
+
+	/**
+	 * @return the number of users who rated both @item and its k-th co-rated item
+	 */
+	int count (	int item,
+				int k )
+	{
+		return counts[item][k];
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private DeviationTable (	int[][] cols,
+								double[][] sums,
+								int[][] counts )
+	{
+		this.cols = cols;
+		this.sums = sums;
+		this.counts = counts;
+		this.numItems = cols.length;
+		lengths = new int[numItems];
+		for (int i = 0; i < numItems; i++)
+			lengths[i] = cols[i].length;
+	}
+
+	private void addToRow (	int i,
+							int j,
+							double sum,
+							int count )
+	{
+		int length = lengths[i];
+		int k = Arrays.binarySearch(cols[i], 0, length, j);
+		if (k >= 0)	{
+			sums[i][k] += sum;
+			counts[i][k] += count;
+			if (counts[i][k] <= 0)	{
+				System.arraycopy(cols[i], k + 1, cols[i], k, length - k - 1);
+				System.arraycopy(sums[i], k + 1, sums[i], k, length - k - 1);
+				System.arraycopy(counts[i], k + 1, counts[i], k, length - k - 1);
+				lengths[i]--;
+			}
+			return;
+		}
+		if (count <= 0)
+			return;
+
+		k = -k - 1;
+		if (length == cols[i].length)	{
+			int capacity = Math.max(4, length + (length >> 1));
+			cols[i] = Arrays.copyOf(cols[i], capacity);
+			sums[i] = Arrays.copyOf(sums[i], capacity);
+			counts[i] = Arrays.copyOf(counts[i], capacity);
+		}
+		System.arraycopy(cols[i], k, cols[i], k + 1, length - k);
+		System.arraycopy(sums[i], k, sums[i], k + 1, length - k);
+		System.arraycopy(counts[i], k, counts[i], k + 1, length - k);
+		cols[i][k] = j;
+		sums[i][k] = sum;
+		counts[i][k] = count;
+		lengths[i]++;
+	}
+}
@@ -0,0 +1,205 @@
+package recommender;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Reads and writes one side, users or items, of a trained FunkSVD model in a binary format. Each section is
+ * memory-mapped read-only and used in place, so loading a model involves no parsing and processes that load
+ * the same model share it through the OS page cache.
+ *
+ * The file is a little-endian header followed by the sections below, each aligned to 8 bytes. The feature
+ * vector of the k-th id is the k-th run of numFeatures floats.
+ * <pre>
+ * header         int magic, int version, int count, int numFeatures, double glAverage, long reserved
+ * ids            int[count]                  sorted external user or item ids
+ * pseudo avgs    double[count]               pseudo average rating of each id
+ * features       float[count * numFeatures]  feature vectors, one after the other
+ * </pre>
+ *
+ * A model being served keeps its files mapped, so retraining another model with the same file names must not
+ * touch them: a new model is written to a temporary file, which is then atomically renamed over the old one.
+ */
+final class FunkSVDModelFile {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final int MAGIC = 0x44565346;		// "FSVD"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * The contents of a model file.
+	 */
+	static final class Contents {
+		int numFeatures;
+		double glAverage;
+		IdIndex ids;
+		DoubleBuffer pseudoAvgs;
+		FloatBuffer features;
+	}
+
+	/**
+	 * @return true if @fileName starts like a binary model file, false if it is shorter or starts otherwise
+	 * @throws IOException if the file cannot be opened for reading
+	 */
+	static boolean isModelFile ( String fileName )
+			throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try	{
+			if (file.length() < 4)
+				return false;
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			file.getChannel().read(magic, 0);
+			return magic.getInt(0) == MAGIC;
+		} finally	{
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes @contents to @fileName.tmp, then renames it to @fileName, atomically replacing any existing file.
+	 * @throws IOException if the file cannot be opened for writing, written to or renamed
+	 */
+	static void write (	Contents contents,
+						String fileName )
+			throws IOException
+	{
+		Path target = Paths.get(fileName), temp = Paths.get(fileName + ".tmp");
+		boolean written = false;
+		RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+		try	{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			int count = contents.ids.size();
+
+			buf.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(contents.numFeatures)
+				.putDouble(contents.glAverage).putLong(0L);
+			for (int k = 0; k < count; k++)
+				buf = put(channel, buf, 4).putInt(contents.ids.idAt(k));
+			buf = pad(channel, buf);
+			for (int k = 0; k < count; k++)
+				buf = put(channel, buf, 8).putDouble(contents.pseudoAvgs.get(k));
+			buf = pad(channel, buf);
+			for (int k = 0; k < count * contents.numFeatures; k++)
+				buf = put(channel, buf, 4).putFloat(contents.features.get(k));
+			buf = pad(channel, buf);
+			flush(channel, buf);
+			channel.force(true);
+			file.close();
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			written = true;
+		} finally	{
+			file.close();
+			if (!written)
+				Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Maps @fileName into memory. The returned buffers remain valid after the file is closed.
+	 * @throws IOException if the file cannot be opened for reading, is not a model file or has a feature
+	 * section larger than a single mapping allows
+	 */
+	static Contents read ( String fileName )
+			throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try	{
+			FileChannel channel = file.getChannel();
+			if (channel.size() < HEADER_BYTES)
+				throw new IOException(String.format("%s is not a FunkSVD model file.", fileName));
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException(String.format("%s is not a FunkSVD model file.", fileName));
+			if (header.getInt(4) != VERSION)
+				throw new IOException(String.format("%s has unsupported format version %d.", fileName, header.getInt(4)));
+
+			Contents contents = new Contents();
+			int count = header.getInt(8);
+			contents.numFeatures = header.getInt(12);
+			contents.glAverage = header.getDouble(16);
+
+			long idsOffset = HEADER_BYTES;
+			long avgsOffset = align(idsOffset + 4L * count);
+			long featuresOffset = align(avgsOffset + 8L * count);
+			long featureBytes = 4L * count * contents.numFeatures;
+			if (featureBytes > Integer.MAX_VALUE)
+				throw new IOException(String.format("%s has %d bytes of features, more than can be mapped at once.", fileName, featureBytes));
+			if (featuresOffset + featureBytes > channel.size())
+				throw new EOFException(String.format("%s is truncated.", fileName));
+
+			contents.ids = new IdIndex(map(channel, idsOffset, 4L * count).asIntBuffer());
+			contents.pseudoAvgs = map(channel, avgsOffset, 8L * count).asDoubleBuffer();
+			contents.features = map(channel, featuresOffset, featureBytes).asFloatBuffer();
+			return contents;
+		} finally	{
+			file.close();
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static ByteBuffer map (	FileChannel channel,
+									long offset,
+									long bytes )
+			throws IOException
+	{
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return @buf, flushed to @channel first if it has less than @bytes bytes left
+	 */
+	private static ByteBuffer put (	FileChannel channel,
+									ByteBuffer buf,
+									int bytes )
+			throws IOException
+	{
+		if (buf.remaining() < bytes)
+			flush(channel, buf);
+		return buf;
+	}
+
+	/**
+	 * Pads the data written so far to the next 8-byte boundary. The write buffer holds a multiple of 8 bytes,
+	 * so the position within it is aligned exactly when the file offset is.
+	 */
+	private static ByteBuffer pad (	FileChannel channel,
+									ByteBuffer buf )
+			throws IOException
+	{
+		while ((buf.position() & 7) != 0)
+			put(channel, buf, 1).put((byte) 0);
+		return buf;
+	}
+
+	private static void flush (	FileChannel channel,
+								ByteBuffer buf )
+			throws IOException
+	{
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	private static long align ( long offset )
+	{
+		return (offset + 7) & ~7L;
+	}
+}
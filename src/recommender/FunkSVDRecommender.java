@@ -1,8 +1,9 @@
 package recommender;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 /**
  * The Funk SVD recommender algorithm, as described by Simon Funk for the Netflix Prize Challenge.
@@ -17,20 +18,86 @@ public class FunkSVDRecommender extends BaseRecommender {
 	private double MIN_IMPROVEMENT;
 	private double ALPHA;
 	private double BETA;
+	private double INIT;
+	private int NUM_THREADS;
+	private boolean DETERMINISTIC;
 	private double glAverage;
-	private HashMap <Integer, Double> U[];
-	private HashMap <Integer, Double> V[];
-	private HashMap <Integer, Double> userPseudoAvg;
-	private HashMap <Integer, Double> itemPseudoAvg;
+	// User and item feature vectors while training, user-major and item-major: the features of the user with
+	// dense index u are U[u * NUM_FEATURES], ..., U[u * NUM_FEATURES + NUM_FEATURES - 1], and likewise for V
+	private double[] U;
+	private double[] V;
+	// The users and items of the model and, in the same layout as U and V, the feature vectors predictions
+	// are made with. These are either copies of U and V or mapped from model files.
+	private IdIndex users;
+	private IdIndex items;
+	private FloatBuffer userFeatures;
+	private FloatBuffer itemFeatures;
+	// Users and items whose feature vectors are known, when read from text feature files
+	private boolean[] userKnown;
+	private boolean[] itemKnown;
+	private DoubleBuffer userPseudoAvg;
+	private DoubleBuffer itemPseudoAvg;
 	private boolean featuresKnown;
 	private String userFeaturesFileName;
 	private String itemFeaturesFileName;
+	private ScratchPool<ScoreBuffer> buffers;
+	// The optional index over the item feature vectors for top-N recommendation, and the lists it probes
+	private InnerProductIndex itemIndex;
+	private int NUM_PROBES;
 	
 	
 	/*********************************************************************************************************/
 	/* 											Public methods											 	 */
 	/*********************************************************************************************************/	
 	
+	/**
+	 * This constructor should be used when user preferences and item characteristics in terms of features are
+	 * not known and require to be learned over the training data set. The features are learned on a single thread.
+	 * 
+	 * @param dao The Data Access Object providing access to the training and test data set.
+	 * 
+	 * @param NUM_FEATURES The number of features to represent the user tastes and movie attributes. 
+	 * A value between 30-50 is good enough. Increases this value improves the recommender accuracy
+	 * but slows it down.
+	 * 
+	 * @param MIN_ITER The minimum number of iterations for which each feature should be trained. A value of 
+	 * 100-200 is good enough. Increases this value improves the recommender accuracy but slows it down.
+	 * 
+	 * @param INIT The initial value with which the matrices representing user tastes and movie
+	 * attributes are initialized. Typically a value of 0.1 is used.
+	 * 
+	 * @param MIN_IMPROVEMENT The minimum improvement in RMSE so that next iteration is attempted. Training of 
+	 * each feature continues at least MIN_ITER times or while improvement in RMSE is greater than MIN_IMPROVEMENT.
+	 * A value of 0.0001 is good enough.
+	 * 
+	 * @param ALPHA The learning rate. It controls the step size or the amount of feature adjustment at each 
+	 * iteration. A value of 0.001 is good enough. A large learning rate will speed up the learning process but
+	 * might not converge. A small learning rate will slow down the learning process.
+	 *  
+	 * @param BETA The regularization parameter. It helps to smooth out the variations in the learning process. 
+	 * A value of 0.015 is good enough.
+	 * 
+	 * @param userFeaturesFile File name where matrix representing user preferences U[NUM_USERS x NUM_FEATURES] 
+	 * is to be stored, along with the user ids and pseudo averages, in binary model file format. These features
+	 * can be used for recommendation later.
+	 *  
+	 * @param itemFeaturesFile File name where matrix representing item characteristics V[NUM_ITEMS x NUM_FEATURES] 
+	 * is to be stored, along with the item ids and pseudo averages, in binary model file format. These features
+	 * can be used for recommendation later.
+	 */
+	public FunkSVDRecommender (	DAO dao, 
+								int NUM_FEATURES, 
+								int MIN_ITER, 
+								double INIT, 
+								double MIN_IMPROVEMENT, 
+								double ALPHA, 
+								double BETA,
+								String userFeaturesFile, 
+								String itemFeaturesFile )	
+	{
+		this(dao, NUM_FEATURES, MIN_ITER, INIT, MIN_IMPROVEMENT, ALPHA, BETA, 1, true, userFeaturesFile, itemFeaturesFile);
+	}
+	
 	/**
 	 * This constructor should be used when user preferences and item characteristics in terms of features are
 	 * not known and require to be learned over the training data set.
@@ -58,13 +125,24 @@ public class FunkSVDRecommender extends BaseRecommender {
 	 * @param BETA The regularization parameter. It helps to smooth out the variations in the learning process. 
 	 * A value of 0.015 is good enough.
 	 * 
-	 * @param userFeaturesFile File name where matrix representing user preferences U[NUM_FEATURES x NUM_USERS] 
-	 * is to be stored. These features can be used for recommendation later.
+	 * @param NUM_THREADS The number of threads the features are learned with. With a single thread, every iteration
+	 * goes over the ratings in user-major order.
+	 * 
+	 * @param DETERMINISTIC Only used with more than one thread. If false, the threads run Hogwild!-style stochastic
+	 * gradient descent: each thread takes a block of users and updates the shared item features without any
+	 * locking, so the result varies slightly from run to run. If true, the ratings are split into NUM_THREADS x
+	 * NUM_THREADS blocks of users and items, and each iteration runs in NUM_THREADS rounds in which every thread
+	 * trains on a block that shares neither users nor items with those of the other threads (DSGD). No feature is
+	 * then ever updated concurrently and, for a given NUM_THREADS, the learned features are the same on every run.
+	 * 
+	 * @param userFeaturesFile File name where matrix representing user preferences U[NUM_USERS x NUM_FEATURES] 
+	 * is to be stored, along with the user ids and pseudo averages, in binary model file format. These features
+	 * can be used for recommendation later.
 	 *  
-	 * @param itemFeaturesFile File name where matrix representing item characteristics V[NUM_FEATURES x NUM_ITEMS] 
-	 * is to be stored. These features can be used for recommendation later.
+	 * @param itemFeaturesFile File name where matrix representing item characteristics V[NUM_ITEMS x NUM_FEATURES] 
+	 * is to be stored, along with the item ids and pseudo averages, in binary model file format. These features
+	 * can be used for recommendation later.
 	 */
-	@SuppressWarnings("unchecked")
 	public FunkSVDRecommender (	DAO dao, 
 								int NUM_FEATURES, 
 								int MIN_ITER, 
@@ -72,6 +150,8 @@ public class FunkSVDRecommender extends BaseRecommender {
 								double MIN_IMPROVEMENT, 
 								double ALPHA, 
 								double BETA,
+								int NUM_THREADS, 
+								boolean DETERMINISTIC, 
 								String userFeaturesFile, 
 								String itemFeaturesFile )	
 	{
@@ -82,43 +162,47 @@ public class FunkSVDRecommender extends BaseRecommender {
 		this.MIN_IMPROVEMENT = MIN_IMPROVEMENT;
 		this.ALPHA = ALPHA;
 		this.BETA = BETA;
+		this.INIT = INIT;
+		this.NUM_THREADS = Math.max(1, NUM_THREADS);
+		this.DETERMINISTIC = DETERMINISTIC;
 		userFeaturesFileName = userFeaturesFile;
 		itemFeaturesFileName = itemFeaturesFile;
 		
-		U = new HashMap[NUM_FEATURES];
-		V = new HashMap[NUM_FEATURES];
 		featuresKnown = false;
+		buffers = newBufferPool();
 		
 		// Initialize U and V matrices to INIT
-		for (int f = 0; f < NUM_FEATURES; f++)	{
-			U[f] = new HashMap<Integer, Double>();
-			for (int user : dao.getTrainUsers())
-				U[f].put(user, INIT);
-			V[f] = new HashMap<Integer, Double>();
-			for (int item : dao.getAllItems())
-				V[f].put(item, INIT);
-		}
+		U = new double[dao.numTrainUsers() * NUM_FEATURES];
+		V = new double[dao.numTrainItems() * NUM_FEATURES];
+		Arrays.fill(U, INIT);
+		Arrays.fill(V, INIT);
 		
+		users = dao.trainUsers();
+		items = dao.trainItems();
 		computeAvgs();
+		publishFeatures();
 	}
 	
 	/**
 	 * This constructor should be used when user preferences and item characteristics are known in terms of features
-	 * and predictions need to be generated for users.
+	 * and predictions need to be generated for users. Files in binary model file format, as written by train(), are
+	 * memory-mapped and used in place; they carry their own user and item ids and pseudo averages, so predictions
+	 * do not depend on @dao. Files in the text format written by earlier versions are parsed, and the pseudo
+	 * averages are then computed over the training data set of @dao.
 	 * 
 	 * @param dao The Data Access Object built on top of the training and test data set.
 	 * 
-	 * @param userFeaturesFile File name where matrix representing user preferences U[NUM_FEATURES x NUM_USERS] 
+	 * @param userFeaturesFile File name where matrix representing user preferences U[NUM_USERS x NUM_FEATURES] 
 	 * is stored. These features are used for recommendation.
 	 * 
-	 * @param itemFeaturesFile File name where matrix representing item characteristics V[NUM_FEATURES x NUM_ITEMS] 
+	 * @param itemFeaturesFile File name where matrix representing item characteristics V[NUM_ITEMS x NUM_FEATURES] 
 	 * is stored. These features are used for recommendation.
 	 * 
 	 * @throws FileNotFoundException if the feature files cannot be opened
-	 * @throws IOException if any error occurs during reading the files
-	 * @throws NoSuchElementException if the feature files have improper format
+	 * @throws IOException if any error occurs during reading the files, or if binary feature files have improper
+	 * format or do not belong together
+	 * @throws NoSuchElementException if text feature files have improper format
 	 */
-	@SuppressWarnings("unchecked")
 	public FunkSVDRecommender (	DAO dao, 
 								String userFeaturesFile, 
 								String itemFeaturesFile ) 
@@ -127,22 +211,45 @@ public class FunkSVDRecommender extends BaseRecommender {
 		super(dao);
 		
 		featuresKnown = true;
+		buffers = newBufferPool();
+		
+		if (FunkSVDModelFile.isModelFile(userFeaturesFile))	{
+			FunkSVDModelFile.Contents userModel = FunkSVDModelFile.read(userFeaturesFile);
+			FunkSVDModelFile.Contents itemModel = FunkSVDModelFile.read(itemFeaturesFile);
+			if (userModel.numFeatures != itemModel.numFeatures || userModel.glAverage != itemModel.glAverage)
+				throw new IOException(String.format("%s and %s do not belong to the same model.", userFeaturesFile, itemFeaturesFile));
+			NUM_FEATURES = userModel.numFeatures;
+			glAverage = userModel.glAverage;
+			users = userModel.ids;
+			items = itemModel.ids;
+			userPseudoAvg = userModel.pseudoAvgs;
+			itemPseudoAvg = itemModel.pseudoAvgs;
+			userFeatures = userModel.features;
+			itemFeatures = itemModel.features;
+			return;
+		}
 		
 		// Read user features
 		BufferedReader br = new BufferedReader(new FileReader(userFeaturesFile));
 		StringTokenizer st = new StringTokenizer(br.readLine());
 		NUM_FEATURES = Integer.parseInt(st.nextToken());
 		int numUsers = Integer.parseInt(st.nextToken());
-		int users[] = new int[numUsers];
+		int fileUsers[] = new int[numUsers];
 		st = new StringTokenizer(br.readLine());
 		for (int i = 0; i < numUsers; i++)
-			users[i] = Integer.parseInt(st.nextToken());
-		U = new HashMap[NUM_FEATURES];
+			fileUsers[i] = dao.trainUsers().indexOf(Integer.parseInt(st.nextToken()));
+		U = new double[dao.numTrainUsers() * NUM_FEATURES];
+		userKnown = new boolean[dao.numTrainUsers()];
 		for (int f = 0; f < NUM_FEATURES; f++)	{
-			U[f] = new HashMap<Integer, Double>();
 			st = new StringTokenizer(br.readLine());
-			for (int i = 0; i < numUsers; i++)
-				U[f].put(users[i], Double.parseDouble(st.nextToken()));
+			for (int i = 0; i < numUsers; i++)	{
+				double value = Double.parseDouble(st.nextToken());
+				// Features of users absent from the training data set are never used
+				if (fileUsers[i] >= 0)	{
+					U[fileUsers[i] * NUM_FEATURES + f] = value;
+					userKnown[fileUsers[i]] = true;
+				}
+			}
 		}
 		br.close();
 		
@@ -151,94 +258,127 @@ public class FunkSVDRecommender extends BaseRecommender {
 		st = new StringTokenizer(br.readLine());
 		NUM_FEATURES = Integer.parseInt(st.nextToken());
 		int numItems = Integer.parseInt(st.nextToken());		
-		int items[] = new int[numItems];
+		int fileItems[] = new int[numItems];
 		st = new StringTokenizer(br.readLine());
 		for (int i = 0; i < numItems; i++)
-			items[i] = Integer.parseInt(st.nextToken());
-		V = new HashMap[NUM_FEATURES];
+			fileItems[i] = dao.trainItems().indexOf(Integer.parseInt(st.nextToken()));
+		V = new double[dao.numTrainItems() * NUM_FEATURES];
+		itemKnown = new boolean[dao.numTrainItems()];
 		for (int f = 0; f < NUM_FEATURES; f++)	{
-			V[f] = new HashMap<Integer, Double>();
 			st = new StringTokenizer(br.readLine());
-			for (int i = 0; i < numItems; i++)
-				V[f].put(items[i], Double.parseDouble(st.nextToken()));
+			for (int i = 0; i < numItems; i++)	{
+				double value = Double.parseDouble(st.nextToken());
+				if (fileItems[i] >= 0)	{
+					V[fileItems[i] * NUM_FEATURES + f] = value;
+					itemKnown[fileItems[i]] = true;
+				}
+			}
 		}
 		br.close();
 		
+		users = dao.trainUsers();
+		items = dao.trainItems();
 		computeAvgs();
+		publishFeatures();
+		U = V = null;
 	}
 	
 	/**
 	 * This method overrides the train() method in the BaseRecommender class, learns user preferences and item
 	 * characteristics in terms of features and writes out the learned features to userFeaturesFileName and 
-	 * itemFeaturesFileName. It can cause an exception if the files cannot be opened for writing.
+	 * itemFeaturesFileName in binary model file format. An error writing the files is reported but does not
+	 * prevent the learned features from being used. The phases "residuals", "features", "write" and the whole
+	 * "train" are timed in getMetrics(), and every step over the ratings is recorded as an epoch with its
+	 * training RMSE and ratings per second.
 	 */
 	public void train ()	
 	{
 		// If the features are already known, then there is no need to train.
-		if (featuresKnown)
+		if (featuresKnown)	{
+			metrics.setModelBytes(modelBytes());
 			return;	
+		}
 		
-		double rmse = 2.0, rmse_last = 10.0, sq, R, P, err, cf, mf;
+		metrics.resetTraining();
+		long start = System.nanoTime();
+		double rmse = 2.0, rmse_last = 10.0, sq;
 		int numTotalRatings = dao.numTrainRatings();
+		RatingMatrix byUser = dao.trainMatrix();
+		int numUsers = byUser.numRows(), numItems = byUser.numCols();
+		
+		Schedule schedule = new Schedule(byUser, dao.transposedTrainMatrix(), NUM_THREADS, DETERMINISTIC && NUM_THREADS > 1);
 		
-		// learn values for the features
-		for (int f = 0; f < NUM_FEATURES; f++)	{			
-			for (int step = 0; (step < MIN_ITER) || (rmse <= rmse_last - MIN_IMPROVEMENT); step++)	{
-				sq = 0.0;
-				rmse_last = rmse;
+		// The residual of each rating, by its position in the user-major matrix, after subtracting the baseline
+		// and the contribution of the features trained so far. The features not trained yet still hold INIT, so
+		// each step only needs the residual and the feature being trained instead of a full dot product.
+		float[] residuals = new float[byUser.nnz()];
+		for (int u = 0; u < numUsers; u++)
+			for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)	{
+				int i = byUser.col(k);
+				residuals[k] = (float) (byUser.value(k) - (glAverage+(glAverage-itemPseudoAvg.get(i))+(glAverage-userPseudoAvg.get(u))) - 1.0);
+			}
+		long t = metrics.endPhase("residuals", start);
+		
+		ExecutorService pool = NUM_THREADS > 1 ? Executors.newFixedThreadPool(NUM_THREADS) : null;
+		try	{
+			// learn values for the features
+			for (int f = 0; f < NUM_FEATURES; f++)	{			
+				for (int step = 0; (step < MIN_ITER) || (rmse <= rmse_last - MIN_IMPROVEMENT); step++)	{
+					rmse_last = rmse;
+					long stepStart = System.nanoTime();
+					sq = runIteration(f, schedule, residuals, pool);
+					rmse = Math.sqrt(sq / numTotalRatings);
+					metrics.addEpoch(f, step, rmse, System.nanoTime() - stepStart, numTotalRatings);
+				}
 				
-				for (int user : dao.getTrainUsers())	{
-					for (int item : dao.getTrainItems(user))	{
-						R = dao.getTrainRating(user, item);
-						P = dotProduct(user, item);
-						err = (R - (glAverage+(glAverage-itemPseudoAvg.get(item))+(glAverage-userPseudoAvg.get(user))) - P);
-						sq += err * err;
-						
-						cf = U[f].get(user);
-						mf = V[f].get(item);
-						
-						U[f].put(user, cf + ALPHA * (err * mf - BETA * cf));
-						V[f].put(item, mf + ALPHA * (err * cf - BETA * mf));
-					}
-				}				
-				rmse = Math.sqrt(sq / numTotalRatings);
+				// Feature @f is final: fold it into the residuals
+				for (int u = 0; u < numUsers; u++)
+					for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)
+						residuals[k] -= (float) (U[u * NUM_FEATURES + f] * V[byUser.col(k) * NUM_FEATURES + f]);
 			}
+		} finally	{
+			if (pool != null)
+				pool.shutdown();
 		}
 		
+		publishFeatures();
+		U = V = null;
+		itemIndex = null;
+		t = metrics.endPhase("features", t);
+		
 		// Write out learned features to file
 		try {
 			// write out user preferences
-			BufferedWriter wr = new BufferedWriter(new FileWriter(userFeaturesFileName));
-			wr.write(String.format("%d %d\n", NUM_FEATURES, U[0].size()));
-			for (Entry<Integer, Double> entry : U[0].entrySet())
-				wr.write(String.format("%d\t", entry.getKey()));
-			wr.write("\b\n");
-			for (int f = 0; f < NUM_FEATURES; f++)	{
-				for (Entry<Integer, Double> entry : U[f].entrySet())
-					wr.write(String.format("%f\t", entry.getValue()));
-				wr.write("\b\n");
-			}
-			wr.flush();
-			wr.close();
+			FunkSVDModelFile.Contents model = new FunkSVDModelFile.Contents();
+			model.numFeatures = NUM_FEATURES;
+			model.glAverage = glAverage;
+			model.ids = users;
+			model.pseudoAvgs = userPseudoAvg;
+			model.features = userFeatures;
+			FunkSVDModelFile.write(model, userFeaturesFileName);
 			
 			// write out item characteristics
-			wr = new BufferedWriter(new FileWriter(itemFeaturesFileName));
-			wr.write(String.format("%d %d\n", NUM_FEATURES, V[0].size()));
-			for (Entry<Integer, Double> entry : V[0].entrySet())
-				wr.write(String.format("%d\t", entry.getKey()));
-			wr.write("\b\n");
-			for (int f = 0; f < NUM_FEATURES; f++)	{
-				for (Entry<Integer, Double> entry : V[f].entrySet())
-					wr.write(String.format("%f\t", entry.getValue()));
-				wr.write("\b\n");
-			}
-			wr.flush();
-			wr.close();
+			model.ids = items;
+			model.pseudoAvgs = itemPseudoAvg;
+			model.features = itemFeatures;
+			FunkSVDModelFile.write(model, itemFeaturesFileName);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		metrics.endPhase("write", t);
 		
 		featuresKnown = true;
+		metrics.setModelBytes(modelBytes());
+		metrics.endPhase("train", start);
+	}
+	
+	/**
+	 * This method overrides the isTrained() method in the BaseRecommender class.
+	 * @return whether the features have been learned by train() or read from feature files
+	 */
+	public boolean isTrained ()	
+	{
+		return userFeatures != null;
 	}
 	
 	/**
@@ -249,9 +389,208 @@ public class FunkSVDRecommender extends BaseRecommender {
 	public double predict (	int user, 
 							int item )	
 	{
-		if (!U[0].containsKey(user) || !V[0].containsKey(item) || !itemPseudoAvg.containsKey(item) || !userPseudoAvg.containsKey(user))
+		int u = users.indexOf(user), i = items.indexOf(item);
+		if (u < 0 || i < 0 || (userKnown != null && !userKnown[u]) || (itemKnown != null && !itemKnown[i]))
 			return Double.NEGATIVE_INFINITY;
-		return ceilPrediction((glAverage+(glAverage-itemPseudoAvg.get(item))+(glAverage-userPseudoAvg.get(user))) + dotProduct(user, item));
+		return ceilPrediction((glAverage+(glAverage-itemPseudoAvg.get(i))+(glAverage-userPseudoAvg.get(u))) + dotProduct(u, i));
+	}
+	
+	/**
+	 * This method overrides the batch predict() method in the BaseRecommender class. The feature vector of
+	 * @user is looked up once and multiplied with the feature vector of each item, which gives the same
+	 * predictions as predict().
+	 */
+	public void predict (	int user,
+							int[] items,
+							double[] predictions )
+	{
+		int u = users.indexOf(user);
+		if (u < 0 || (userKnown != null && !userKnown[u]))	{
+			Arrays.fill(predictions, 0, items.length, Double.NEGATIVE_INFINITY);
+			return;
+		}
+		
+		double[] userVector = new double[NUM_FEATURES];
+		for (int f = 0; f < NUM_FEATURES; f++)
+			userVector[f] = userFeatures.get(u * NUM_FEATURES + f);
+		double userBias = glAverage - userPseudoAvg.get(u);
+		for (int k = 0; k < items.length; k++)	{
+			int i = this.items.indexOf(items[k]);
+			if (i < 0 || (itemKnown != null && !itemKnown[i]))	{
+				predictions[k] = Double.NEGATIVE_INFINITY;
+				continue;
+			}
+			double sum = 1.0;
+			for (int f = 0, offset = i * NUM_FEATURES; f < NUM_FEATURES; f++)
+				sum += userVector[f] * itemFeatures.get(offset + f);
+			predictions[k] = ceilPrediction((glAverage+(glAverage-itemPseudoAvg.get(i))+userBias) + sum);
+		}
+	}
+
+	/**
+	 * This method overrides the recommend() method in the BaseRecommender class. Without an item index, the
+	 * feature vector of @user is multiplied with the item feature matrix in one sequential pass over it, and
+	 * the best @n items are kept in a bounded heap as they are scored. With an item index built by
+	 * buildItemIndex(), only the items of the lists it probes are scored. Either way, the scores are the same
+	 * as those of predict().
+	 */
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
+	{
+		return recommend(user, n, filter, itemIndex == null ? 0 : NUM_PROBES);
+	}
+	
+	/**
+	 * Same as recommend(@user, @n, @filter), with the item index probing @NUM_PROBES lists instead of the
+	 * number it was built with. 0 scans all the items without the index.
+	 * 
+	 * @throws IllegalStateException if @NUM_PROBES is positive and no item index has been built
+	 */
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter,
+								int NUM_PROBES )
+	{
+		InnerProductIndex index = itemIndex;
+		if (NUM_PROBES > 0 && index == null)
+			throw new IllegalStateException("The item index must be built before it is probed.");
+		
+		TopKHeap heap = new TopKHeap(Math.max(n, 0));
+		int u = users.indexOf(user);
+		if (u < 0 || (userKnown != null && !userKnown[u]))
+			return TopNList.of(heap);
+		
+		// A buffer left behind by an exception thrown from @filter is simply not returned to the pool
+		ScoreBuffer buffer = buffers.acquire();
+		// The model's items need not be the items of the DAO when the model was read from files
+		int du = dao.trainUsers().indexOf(user);
+		if (du >= 0)	{
+			RatingMatrix byUser = dao.trainMatrix();
+			for (int k = byUser.rowStart(du); k < byUser.rowEnd(du); k++)	{
+				int i = items.indexOf(dao.trainItems().idAt(byUser.col(k)));
+				if (i >= 0)
+					buffer.exclude(i);
+			}
+		}
+		
+		double[] userVector = new double[NUM_FEATURES];
+		for (int f = 0; f < NUM_FEATURES; f++)
+			userVector[f] = userFeatures.get(u * NUM_FEATURES + f);
+		
+		if (NUM_PROBES <= 0)	{
+			for (int i = 0, offset = 0; i < items.size(); i++, offset += NUM_FEATURES)	{
+				int item = items.idAt(i);
+				if (buffer.excluded[i] || (itemKnown != null && !itemKnown[i]) || (filter != null && filter.exclude(item)))
+					continue;
+				double sum = 1.0;
+				for (int f = 0; f < NUM_FEATURES; f++)
+					sum += userVector[f] * itemFeatures.get(offset + f);
+				heap.offer(item, ceilPrediction((glAverage+(glAverage-itemPseudoAvg.get(i))+(glAverage-userPseudoAvg.get(u))) + sum));
+			}
+		} else	{
+			// The index holds copies of the item feature vectors, so the scores are the same as from the scan
+			int[] lists = new int[Math.min(NUM_PROBES, index.numLists())];
+			int numLists = index.probe(userVector, lists);
+			for (int l = 0; l < numLists; l++)	{
+				for (int k = index.listStart(lists[l]); k < index.listEnd(lists[l]); k++)	{
+					int i = index.id(k), item = items.idAt(i);
+					if (buffer.excluded[i] || (itemKnown != null && !itemKnown[i]) || (filter != null && filter.exclude(item)))
+						continue;
+					double sum = 1.0;
+					for (int f = 0; f < NUM_FEATURES; f++)
+						sum += userVector[f] * index.component(k, f);
+					heap.offer(item, ceilPrediction((glAverage+(glAverage-itemPseudoAvg.get(i))+(glAverage-userPseudoAvg.get(u))) + sum));
+				}
+			}
+		}
+		buffer.clear();
+		buffers.release(buffer);
+		return TopNList.of(heap);
+	}
+	
+	/**
+	 * Builds an inverted file index over the item feature vectors for approximate top-N recommendation, which
+	 * recommend() then uses: the items are clustered into @NUM_LISTS lists by k-means and each recommendation
+	 * only scores the items of the @NUM_PROBES lists the best items for the user most likely lie in. It takes
+	 * time proportional to items x min(items, 256 @NUM_LISTS) x NUM_FEATURES and memory for a copy of the item
+	 * feature vectors. The index must be built after the features are trained or read, and not while
+	 * recommend() is running.
+	 * 
+	 * @param NUM_LISTS The number of lists. About sqrt(NUM_ITEMS) is a good start. More lists make each
+	 * recommendation faster, but miss more of the best items for the same fraction of probed lists.
+	 * 
+	 * @param NUM_PROBES The number of lists probed for each recommendation. Increasing this value finds more
+	 * of the best items but slows recommendations down, up to @NUM_LISTS, which scores every item. Use
+	 * measureIndexRecall() to choose it.
+	 * 
+	 * @throws IllegalStateException if the recommender is frozen
+	 */
+	public void buildItemIndex (	int NUM_LISTS,
+									int NUM_PROBES )
+	{
+		checkNotFrozen();
+		// The item bias enters the index as the offset of each vector; the user bias does not change the order
+		double[] offsets = new double[items.size()];
+		for (int i = 0; i < offsets.length; i++)
+			offsets[i] = glAverage - itemPseudoAvg.get(i);
+		long start = System.nanoTime();
+		itemIndex = InnerProductIndex.build(itemFeatures, offsets, NUM_FEATURES, NUM_LISTS);
+		this.NUM_PROBES = Math.max(1, NUM_PROBES);
+		metrics.endPhase("itemIndex", start);
+		metrics.setModelBytes(modelBytes());
+	}
+	
+	/**
+	 * Measures the recall of the item index when it probes @NUM_PROBES lists, against scanning all the items:
+	 * the fraction of the top @n items of each user that the index finds as well, averaged over the users of
+	 * the model. An item the index finds instead of one with the same predicted rating counts as found, since
+	 * many items tie at the highest rating.
+	 * 
+	 * @throws IllegalStateException if no item index has been built
+	 */
+	public double measureIndexRecall (	int n,
+										int NUM_PROBES )
+	{
+		if (itemIndex == null)
+			throw new IllegalStateException("The item index must be built before its recall is measured.");
+		
+		double recall = 0.0;
+		int count = 0;
+		for (int user : users)	{
+			TopNList exact = recommend(user, n, null, 0);
+			if (exact.size() == 0)
+				continue;
+			TopNList approximate = recommend(user, n, null, Math.max(1, NUM_PROBES));
+			double threshold = exact.score(exact.size() - 1);
+			int found = 0;
+			for (int k = 0; k < approximate.size(); k++)
+				if (approximate.score(k) >= threshold)
+					found++;
+			recall += (double) found / exact.size();
+			count++;
+		}
+		return count == 0 ? 1.0 : recall / count;
+	}
+	
+	/**
+	 * This method overrides the modelBytes() method in the BaseRecommender class.
+	 * @return the bytes taken by the feature vectors, pseudo averages and item index on the heap; feature
+	 * vectors mapped from model files are not on the heap and not counted
+	 */
+	protected long modelBytes ()
+	{
+		long bytes = 0L;
+		for (Buffer buffer : new Buffer[] { userFeatures, itemFeatures, userPseudoAvg, itemPseudoAvg })
+			if (buffer != null && buffer.hasArray())
+				bytes += 16L + (buffer instanceof DoubleBuffer ? 8L : 4L) * buffer.capacity();
+		if (userKnown != null)
+			bytes += 16L + userKnown.length;
+		if (itemKnown != null)
+			bytes += 16L + itemKnown.length;
+		if (itemIndex != null)
+			bytes += itemIndex.bytes();
+		return bytes;
 	}
 
 	
@@ -259,6 +598,201 @@ public class FunkSVDRecommender extends BaseRecommender {
 	/* 										Private helper methods											 */
 	/*********************************************************************************************************/	
 	
+	/**
+	 * @return a pool of score buffers over the items of the model, which are only known once the features are
+	 * trained or read, that drops the buffers sized for other items
+	 */
+	private ScratchPool<ScoreBuffer> newBufferPool ()
+	{
+		return new ScratchPool<ScoreBuffer>() {
+			ScoreBuffer create ()	{
+				return new ScoreBuffer(items.size());
+			}
+			boolean fits ( ScoreBuffer buffer )	{
+				return buffer.numItems() == items.size();
+			}
+		};
+	}
+	
+	/**
+	 * The order in which the ratings are visited in each iteration, cut into blocks. Without stratification
+	 * there is one block of users per thread, which keeps the ratings in user-major order: block b is the range
+	 * of users [blockPtr[b], blockPtr[b + 1]), walked straight off the user-major training matrix. With
+	 * stratification, users and items are each cut into one range per thread and block (b, c) holds the ratings
+	 * of user range b for item range c, in user-major order, as positions [blockPtr[b * numBlocks + c],
+	 * blockPtr[b * numBlocks + c + 1]) into users and positions, the user and the position in the user-major
+	 * matrix of each rating. Ranges are cut so that they hold about equally many ratings.
+	 */
+	private static final class Schedule {
+		final int numBlocks;
+		final boolean stratified;
+		final int[] users;
+		final int[] positions;
+		final int[] blockPtr;
+		
+		Schedule (	RatingMatrix byUser, 
+					RatingMatrix byItem, 
+					int numBlocks, 
+					boolean stratified )
+		{
+			this.numBlocks = numBlocks;
+			this.stratified = stratified;
+			int[] userBlock = ranges(byUser, numBlocks);
+			
+			if (!stratified)	{
+				// Only the user ranges are needed, so no permutation of the ratings is built
+				users = null;
+				positions = null;
+				blockPtr = new int[numBlocks + 1];
+				for (int u = 0; u < byUser.numRows(); u++)
+					blockPtr[userBlock[u] + 1] = u + 1;
+				for (int b = 1; b <= numBlocks; b++)
+					blockPtr[b] = Math.max(blockPtr[b], blockPtr[b - 1]);
+				return;
+			}
+			
+			// Counting sort of the ratings by (user range, item range), stable in user-major order
+			int nnz = byUser.nnz();
+			users = new int[nnz];
+			positions = new int[nnz];
+			int[] itemBlock = ranges(byItem, numBlocks);
+			blockPtr = new int[numBlocks * numBlocks + 1];
+			for (int u = 0; u < byUser.numRows(); u++)
+				for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)
+					blockPtr[userBlock[u] * numBlocks + itemBlock[byUser.col(k)] + 1]++;
+			for (int b = 0; b < numBlocks * numBlocks; b++)
+				blockPtr[b + 1] += blockPtr[b];
+			int[] fill = Arrays.copyOf(blockPtr, numBlocks * numBlocks);
+			for (int u = 0; u < byUser.numRows(); u++)	{
+				for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)	{
+					int n = fill[userBlock[u] * numBlocks + itemBlock[byUser.col(k)]]++;
+					users[n] = u;
+					positions[n] = k;
+				}
+			}
+		}
+		
+		/**
+		 * @return the range, 0 to @numRanges - 1, of each row of @matrix, with consecutive rows in the same or
+		 * the next range and about equally many ratings in each range
+		 */
+		private static int[] ranges (	RatingMatrix matrix, 
+										int numRanges )
+		{
+			int[] range = new int[matrix.numRows()];
+			long nnz = matrix.nnz(), seen = 0;
+			for (int r = 0; r < matrix.numRows(); r++)	{
+				range[r] = (int) Math.min(numRanges - 1, seen * numRanges / Math.max(1, nnz));
+				seen += matrix.rowLength(r);
+			}
+			return range;
+		}
+	}
+	
+	/**
+	 * Runs one iteration of training feature @f over all ratings, following @schedule, on the threads of @pool.
+	 * @return the sum of the squared errors over all ratings
+	 */
+	private double runIteration (	final int f, 
+									final Schedule schedule, 
+									final float[] residuals, 
+									ExecutorService pool )	
+	{
+		// A single thread is never stratified
+		if (pool == null)
+			return trainUsers(f, residuals, 0, dao.trainMatrix().numRows());
+		
+		double sq = 0.0;
+		int numRounds = schedule.stratified ? schedule.numBlocks : 1;
+		for (int round = 0; round < numRounds; round++)	{
+			List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(schedule.numBlocks);
+			for (int b = 0; b < schedule.numBlocks; b++)	{
+				// In round r, user range b is trained against item range (b + r) mod numBlocks
+				final int block = schedule.stratified ? b * schedule.numBlocks + (b + round) % schedule.numBlocks : b;
+				tasks.add(new Callable<Double>() {
+					public Double call ()	{
+						int from = schedule.blockPtr[block], to = schedule.blockPtr[block + 1];
+						return schedule.stratified ? trainBlock(f, schedule, residuals, from, to) : trainUsers(f, residuals, from, to);
+					}
+				});
+			}
+			try	{
+				for (Future<Double> future : pool.invokeAll(tasks))
+					sq += future.get();
+			} catch (InterruptedException e)	{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while training", e);
+			} catch (ExecutionException e)	{
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return sq;
+	}
+	
+	/**
+	 * Runs a stochastic gradient descent step of feature @f for each rating of the users with dense indices
+	 * [@fromUser, @toUser), in user-major order.
+	 * @param residuals the residual of each rating before features @f, @f + 1, ...
+	 * @return the sum of the squared errors over those ratings
+	 */
+	private double trainUsers (	int f, 
+								float[] residuals, 
+								int fromUser, 
+								int toUser )	
+	{
+		RatingMatrix byUser = dao.trainMatrix();
+		// Contribution of the features after @f, which all still hold INIT
+		double untrained = (NUM_FEATURES - f - 1) * INIT * INIT;
+		double sq = 0.0, err, cf, mf;
+		for (int u = fromUser; u < toUser; u++)	{
+			for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)	{
+				int i = byUser.col(k);
+				cf = U[u * NUM_FEATURES + f];
+				mf = V[i * NUM_FEATURES + f];
+				
+				err = residuals[k] - cf * mf - untrained;
+				sq += err * err;
+				
+				U[u * NUM_FEATURES + f] = cf + ALPHA * (err * mf - BETA * cf);
+				V[i * NUM_FEATURES + f] = mf + ALPHA * (err * cf - BETA * mf);
+			}
+		}
+		return sq;
+	}
+	
+	/**
+	 * Runs a stochastic gradient descent step of feature @f for each rating at positions [@from, @to) of the
+	 * stratified @schedule.
+	 * @param residuals the residual of each rating before features @f, @f + 1, ...
+	 * @return the sum of the squared errors over those ratings
+	 */
+	private double trainBlock (	int f, 
+								Schedule schedule, 
+								float[] residuals, 
+								int from, 
+								int to )	
+	{
+		RatingMatrix byUser = dao.trainMatrix();
+		// Contribution of the features after @f, which all still hold INIT
+		double untrained = (NUM_FEATURES - f - 1) * INIT * INIT;
+		double sq = 0.0, err, cf, mf;
+		for (int n = from; n < to; n++)	{
+			int u = schedule.users[n], k = schedule.positions[n];
+			int i = byUser.col(k);
+			cf = U[u * NUM_FEATURES + f];
+			mf = V[i * NUM_FEATURES + f];
+			
+			err = residuals[k] - cf * mf - untrained;
+			sq += err * err;
+			
+			U[u * NUM_FEATURES + f] = cf + ALPHA * (err * mf - BETA * cf);
+			V[i * NUM_FEATURES + f] = mf + ALPHA * (err * cf - BETA * mf);
+		}
+		return sq;
+	}
+	
 	/**
 	 * Computes pseudo user average rating for each user, pseudo item average rating for each item and global
 	 * average rating over all ratings.
@@ -266,34 +800,55 @@ public class FunkSVDRecommender extends BaseRecommender {
 	private void computeAvgs ()	
 	{
 		// Find PseudoAvg for each user
-		userPseudoAvg = new HashMap<Integer, Double>();
+		RatingMatrix byUser = dao.trainMatrix(), byItem = dao.transposedTrainMatrix();
+		double[] userAvgs = new double[byUser.numRows()];
 		glAverage = 0.0;
-		for (int user : dao.getTrainUsers())	{
-			int ratingCount = dao.numTrainRatingsForUser(user);
-			double ratingSum = dao.getUserMeanRating(user) * ratingCount;
+		for (int u = 0; u < byUser.numRows(); u++)	{
+			int ratingCount = byUser.rowLength(u);
+			double ratingSum = dao.userMean(u) * ratingCount;
 			glAverage += ratingSum;
-			userPseudoAvg.put(user, (3.23 * 25 + ratingSum) / (25.0 + ratingCount));
+			userAvgs[u] = (3.23 * 25 + ratingSum) / (25.0 + ratingCount);
 		}
 		glAverage /= dao.numTrainRatings();
+		userPseudoAvg = DoubleBuffer.wrap(userAvgs);
 		
 		// Find PseudoAvg for each item
-		itemPseudoAvg = new HashMap<Integer, Double>();
-		for (int item : dao.getAllItems())	{
-			int ratingCount = dao.numTrainRatingsForItem(item);
-			double ratingSum = dao.getItemMeanRating(item) * ratingCount;
-			itemPseudoAvg.put(item, (3.23 * 25 + ratingSum) / (25.0 + ratingCount));
+		double[] itemAvgs = new double[byItem.numRows()];
+		for (int i = 0; i < byItem.numRows(); i++)	{
+			int ratingCount = byItem.rowLength(i);
+			double ratingSum = dao.itemMean(i) * ratingCount;
+			itemAvgs[i] = (3.23 * 25 + ratingSum) / (25.0 + ratingCount);
 		}
+		itemPseudoAvg = DoubleBuffer.wrap(itemAvgs);
 	}	
 	
 	/**
-	 * @return the dot product over feature vector of @user with feature vector of @item
+	 * Makes the features in U and V the ones predictions are made with, rounded to float as in model files, so
+	 * that a trained model predicts exactly as it does once written out and read back.
+	 */
+	private void publishFeatures ()	
+	{
+		float[] uf = new float[U.length], vf = new float[V.length];
+		for (int k = 0; k < U.length; k++)
+			uf[k] = (float) U[k];
+		for (int k = 0; k < V.length; k++)
+			vf[k] = (float) V[k];
+		userFeatures = FloatBuffer.wrap(uf);
+		itemFeatures = FloatBuffer.wrap(vf);
+	}
+	
+	/**
+	 * @return the dot product over feature vector of the user with dense index @u with feature vector of the
+	 * item with dense index @i. The features of each lie next to each other, so this is a single pass over two
+	 * contiguous runs of NUM_FEATURES floats.
 	 */
-	private double dotProduct (	int user, 
-								int item )	
+	private double dotProduct (	int u, 
+								int i )	
 	{
 		double sum = 1.0;
+		int uOffset = u * NUM_FEATURES, iOffset = i * NUM_FEATURES;
 		for (int f = 0; f < NUM_FEATURES; f++)
-			sum += U[f].get(user) * V[f].get(item);
+			sum += (double) userFeatures.get(uOffset + f) * itemFeatures.get(iOffset + f);
 		return sum;
 	}	
 }
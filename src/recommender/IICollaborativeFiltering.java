@@ -1,8 +1,5 @@
 package recommender;
 
-import java.awt.Point;
-import java.util.*;
-
 /**
  * The Item-Item Collaborative Filtering Algorithm using Vector Cosine Similarity
  */
@@ -11,10 +8,15 @@ public class IICollaborativeFiltering extends BaseRecommender {
 	/*********************************************************************************************************/
 	/* 										Private data members											 */
 	/*********************************************************************************************************/
-	private HashMap<Integer, ArrayList<Integer>> neighbors;
-	private HashMap<Integer, HashMap<Integer, Double>> similarity;
+	private NeighborTable neighbors;
+	private NeighborTable neighborOf;
+	private ScratchPool<ScoreBuffer> buffers;
+	private double[][] similarity;
+	private RatingView ratings;
 	private int NEIGHBORHOOD_SIZE;
 	private int MIN_NEIGHBORS;
+	private int NUM_THREADS;
+	private boolean TOP_K_ONLY;
 	
 	
 	/*********************************************************************************************************/
@@ -22,6 +24,8 @@ public class IICollaborativeFiltering extends BaseRecommender {
 	/*********************************************************************************************************/	
 	
 	/**
+	 * The similarities are computed with one thread per available processor.
+	 * 
 	 * @param dao The Data Access Object built on top of the training and test data set.
 	 * 
 	 * @param NEIGHBORHOOD_SIZE The maximum number of neighbors of each item. We used a value of 1116 on
@@ -36,25 +40,117 @@ public class IICollaborativeFiltering extends BaseRecommender {
 	public IICollaborativeFiltering (	DAO dao, 
 										int NEIGHBORHOOD_SIZE, 
 										int MIN_NEIGHBORS ) 
+	{
+		this(dao, NEIGHBORHOOD_SIZE, MIN_NEIGHBORS, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param dao The Data Access Object built on top of the training and test data set.
+	 * 
+	 * @param NEIGHBORHOOD_SIZE The maximum number of neighbors of each item. We used a value of 1116 on
+	 * the Movielens 100K dataset. Increasing the neighborhood size increases memory and time requirements
+	 * of the algorithm. Too small neighborhood size may limit the coverage of the algorithm. Both too small
+	 * or too large neighborhood may increase the error.
+	 * 
+	 * @param MIN_NEIGHBORS Minimum number of neighbors that an item must have, which have been rated by a 
+	 * given user, before we can predict a rating for the item. We used a value of 10 on the Movielens 100K dataset.
+	 * Too small a value may increase the error while too large a value may decrease the coverage drastically.
+	 * 
+	 * @param NUM_THREADS The number of threads used to compute the similarities between all pairs of items.
+	 */
+	public IICollaborativeFiltering (	DAO dao, 
+										int NEIGHBORHOOD_SIZE, 
+										int MIN_NEIGHBORS, 
+										int NUM_THREADS ) 
+	{
+		this(dao, NEIGHBORHOOD_SIZE, MIN_NEIGHBORS, NUM_THREADS, false);
+	}
+	
+	/**
+	 * @param dao The Data Access Object built on top of the training and test data set.
+	 * 
+	 * @param NEIGHBORHOOD_SIZE The maximum number of neighbors of each item. We used a value of 1116 on
+	 * the Movielens 100K dataset. Increasing the neighborhood size increases memory and time requirements
+	 * of the algorithm. Too small neighborhood size may limit the coverage of the algorithm. Both too small
+	 * or too large neighborhood may increase the error.
+	 * 
+	 * @param MIN_NEIGHBORS Minimum number of neighbors that an item must have, which have been rated by a 
+	 * given user, before we can predict a rating for the item. We used a value of 10 on the Movielens 100K dataset.
+	 * Too small a value may increase the error while too large a value may decrease the coverage drastically.
+	 * 
+	 * @param NUM_THREADS The number of threads used to compute the similarities between all pairs of items.
+	 * 
+	 * @param TOP_K_ONLY If true, only the NEIGHBORHOOD_SIZE highest similarities of each item are kept while the
+	 * similarities are computed, so memory grows as O(items x NEIGHBORHOOD_SIZE) instead of O(items^2). Each
+	 * pair of items is then computed twice, once from each side, so training takes up to twice as long.
+	 */
+	public IICollaborativeFiltering (	DAO dao, 
+										int NEIGHBORHOOD_SIZE, 
+										int MIN_NEIGHBORS, 
+										int NUM_THREADS, 
+										boolean TOP_K_ONLY ) 
 	{
 		super(dao);
 		this.NEIGHBORHOOD_SIZE = NEIGHBORHOOD_SIZE;
 		this.MIN_NEIGHBORS = MIN_NEIGHBORS;
+		this.NUM_THREADS = NUM_THREADS;
+		this.TOP_K_ONLY = TOP_K_ONLY;
 		
-		neighbors = new HashMap<Integer, ArrayList<Integer>>();
-		similarity = new HashMap<Integer, HashMap<Integer, Double>>();
+		ratings = dao.itemCenteredView();
+		buffers = new ScratchPool<ScoreBuffer>() {
+			ScoreBuffer create ()	{
+				return new ScoreBuffer(IICollaborativeFiltering.this.dao.numTrainItems());
+			}
+		};
 	}
 	
 	/**
 	 * This method overrides the train() method in the BaseRecommender class and finds neighbors for each item.
+	 * The phases "similarities", "neighbors", "pack" and the whole "train" are timed in getMetrics(), along
+	 * with the similarity gauges of SimilarityEngine.recordGauges().
 	 */
 	public void train ()	
 	{
-		dao.itemMeanNormalize();
-		computeSimilaritybwAllPairs();	
+		checkNotFrozen();
+		metrics.resetTraining();
+		int numItems = dao.numTrainItems();
+		int[][] ids = new int[numItems][];
+		double[][] sims = new double[numItems][];
+		
+		long start = System.nanoTime(), t = start;
+		SimilarityEngine engine = new SimilarityEngine(ratings.byItem(), ratings.byUser(), NUM_THREADS);
+		if (TOP_K_ONLY)	{
+			// Neighbors are picked while the similarities are computed, so the two phases are one
+			engine.computeTopK(NEIGHBORHOOD_SIZE, ids, sims);
+			t = metrics.endPhase("similarities", t);
+		} else	{
+			computeSimilaritybwAllPairs(engine);	
+			t = metrics.endPhase("similarities", t);
+			
+			TopKHeap heap = new TopKHeap(NEIGHBORHOOD_SIZE);
+			for (int i = 0; i < numItems; i++)
+				findNeighbors(i, heap, ids, sims);
+			
+			// Only the similarities to the neighbors are needed from now on
+			similarity = null;
+			t = metrics.endPhase("neighbors", t);
+		}
+		engine.recordGauges(metrics, metrics.phaseNanos("similarities"));
 		
-		for (Integer item : dao.getTransposedTrainItems())			
-			neighbors.put(item, findNeighbors(item));
+		neighbors = NeighborTable.pack(ids, sims);
+		neighborOf = neighbors.transpose(numItems);
+		metrics.endPhase("pack", t);
+		metrics.setModelBytes(modelBytes());
+		metrics.endPhase("train", start);
+	}
+	
+	/**
+	 * This method overrides the isTrained() method in the BaseRecommender class.
+	 * @return whether the neighborhoods have been computed by train()
+	 */
+	public boolean isTrained ()
+	{
+		return neighbors != null;
 	}
 	
 	/**
@@ -65,19 +161,36 @@ public class IICollaborativeFiltering extends BaseRecommender {
 	public double predict (	int user, 
 							int item )	
 	{
-		if (!neighbors.containsKey(item))			
+		int i = dao.trainItems().indexOf(item);
+		if (i < 0)			
+			return Double.NEGATIVE_INFINITY;
+		
+		int u = dao.trainUsers().indexOf(user);
+		if (u < 0)
 			return Double.NEGATIVE_INFINITY;
 		
 		double prediction = 0.0, normalizer = 0.0;
 		int countRatings = 0;		
 		
-		for (Integer neighbor : neighbors.get(item))	{
-			if (dao.containsTransposedTrainRating(neighbor, user))	{
-				double rating = dao.getTransposedTrainRating(neighbor, user);
-				double sim = getIISimilarity(item, neighbor);
+		// Both the neighbors of @i and the items rated by @u are sorted by item index, so the neighbors
+		// that @u has rated are found by merging the two lists
+		CenteredMatrix byUser = ratings.byUser();
+		int n = neighbors.rowStart(i), nEnd = neighbors.rowEnd(i);
+		int k = byUser.rowStart(u), kEnd = byUser.rowEnd(u);
+		while (n < nEnd && k < kEnd)	{
+			int neighbor = neighbors.id(n), rated = byUser.col(k);
+			if (neighbor < rated)
+				n++;
+			else if (neighbor > rated)
+				k++;
+			else	{
+				double rating = byUser.value(u, k);
+				double sim = neighbors.weight(n);
 				prediction += rating * sim;
 				normalizer += Math.abs(sim);
 				countRatings++;
+				n++;
+				k++;
 			}
 		}
 		
@@ -86,33 +199,66 @@ public class IICollaborativeFiltering extends BaseRecommender {
 		return Double.NEGATIVE_INFINITY;
 	}
 
-	
-	/*********************************************************************************************************/
-	/* 										Private helper methods											 */
-	/*********************************************************************************************************/
-	
 	/**
-	 * @return the vector cosine similarity between rating vectors of items @u and @v, @u < @v
+	 * This method overrides the recommend() method in the BaseRecommender class. Instead of a merge-join of
+	 * the neighbors of every candidate item with the items rated by @user, it walks the items rated by @user
+	 * once, accumulating each rating into the items that have the rated item as a neighbor. Only the items
+	 * with at least one rated neighbor are ever scored. The scores are the same as those of predict().
 	 */
-	private double VectorCosineSimilarity ( int u, 
-											int v )	
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
 	{
-		double num = 0.0, norm_u = 0.0, norm_v = 0.0;
+		TopKHeap heap = new TopKHeap(Math.max(n, 0));
+		int u = dao.trainUsers().indexOf(user);
+		if (u < 0)
+			return TopNList.of(heap);
+		
+		// A buffer left behind by an exception thrown from @filter is simply not returned to the pool
+		ScoreBuffer buffer = buffers.acquire();
 		
-		for (Integer user : dao.getTransposedTrainUsers(u))	{
-			if (dao.containsTransposedTrainRating(v, user))	{
-				double r_u = dao.getTransposedTrainRating(u, user);
-				double r_v = dao.getTransposedTrainRating(v, user);
-				num += r_u * r_v;
-				norm_u += r_u * r_u;
-				norm_v += r_v * r_v;					
+		// Rated items are visited by increasing index, so each item's sums are accumulated in the same order
+		// as the merge-join of predict() accumulates them
+		CenteredMatrix byUser = ratings.byUser();
+		for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)	{
+			int j = byUser.col(k);
+			double rating = byUser.value(u, k);
+			for (int nb = neighborOf.rowStart(j); nb < neighborOf.rowEnd(j); nb++)	{
+				double sim = neighborOf.weight(nb);
+				buffer.add(neighborOf.id(nb), rating * sim, Math.abs(sim));
 			}
+			buffer.exclude(j);
 		}
-		norm_u = Math.sqrt(norm_u);
-		norm_v = Math.sqrt(norm_v);
-		return (num + 1) / (norm_u * norm_v + 1);
+		
+		IdIndex items = dao.trainItems();
+		for (int t = 0; t < buffer.numTouched(); t++)	{
+			int i = buffer.touched(t);
+			if (buffer.excluded[i] || buffer.count[i] < MIN_NEIGHBORS)
+				continue;
+			int item = items.idAt(i);
+			if (filter == null || !filter.exclude(item))
+				heap.offer(item, ceilPrediction(dao.itemMean(i) + ((buffer.sum[i] + 1) / (buffer.weight[i] + 1))));
+		}
+		buffer.clear();
+		buffers.release(buffer);
+		return TopNList.of(heap);
 	}
 	
+	/**
+	 * This method overrides the modelBytes() method in the BaseRecommender class.
+	 * @return the bytes taken by the neighbors of all items, and by the same neighbors transposed
+	 */
+	protected long modelBytes ()
+	{
+		return neighbors == null ? 0L : neighbors.bytes() + neighborOf.bytes();
+	}
+
+
+	
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+	
 	/**
 	 * @return the vector cosine similarity between rating vectors of items @u and @v
 	 * Since vector similarity is symmetric, it needs to be calculated only for one half
@@ -122,73 +268,46 @@ public class IICollaborativeFiltering extends BaseRecommender {
 									int v )	
 	{
 		if (u < v)
-			return similarity.get(u).get(v);
+			return similarity[u][v - u - 1];
 		else if (u == v)
 			return 1.0;
 		else
-			return similarity.get(v).get(u);
+			return similarity[v][u - v - 1];
 	}	
 	
 	/**
-	 * Computes and stores vector cosine similarity between all item pairs (u, v).
+	 * Computes and stores vector cosine similarity between all item pairs (u, v) with @engine.
 	 * Since vector similarity is symmetric, it needs to be calculated only for one half
-	 * of all the items pairs (u, v).
+	 * of all the items pairs (u, v). The dot products are accumulated through the user to items
+	 * index, so only pairs of items that have been rated by a common user are ever visited.
 	 */
-	private void computeSimilaritybwAllPairs ()	
+	private void computeSimilaritybwAllPairs ( SimilarityEngine engine )	
 	{
-		for (Integer u : dao.getTransposedTrainItems())	{
-			for (Integer v : dao.getTransposedTrainItems())	{
-				if (u < v)	{
-					double sim = VectorCosineSimilarity(u, v);
-					if (similarity.containsKey(u))
-						similarity.get(u).put(v, sim);
-					else	{
-						HashMap<Integer, Double> sim_score = new HashMap<Integer, Double>();
-						sim_score.put(v, sim);
-						similarity.put(u, sim_score);
-					}
-				}
-			}
-		}
+		similarity = engine.computeUpperTriangle();
 	}
 	
 	/**
-	 * @return a list, of size at most @NEIGHBORHOOD_SIZE, of most similar neighbors of @item
+	 * Finds the at most @NEIGHBORHOOD_SIZE most similar neighbors of the item with dense index @i and stores them
+	 * in @ids[i], along with their similarities in @sims[i]. Of equally similar items, those with smaller ids are kept.
+	 * @param heap a heap of capacity @NEIGHBORHOOD_SIZE, reused across calls
 	 */
-	private ArrayList<Integer> findNeighbors (int item)	
+	private void findNeighbors (	int i, 
+									TopKHeap heap, 
+									int[][] ids, 
+									double[][] sims )	
 	{
-		// A minimum priority queue to permit replacing a neighbor with the least similar
-		// neighbor already in the priority queue for some @item
-		PriorityQueue<Point> pq = new PriorityQueue<Point>(NEIGHBORHOOD_SIZE, new Comparator<Point>() {
-			public int compare(Point a, Point b)	{
-				double sim_u1 = getIISimilarity(a.x, a.y);
-				double sim_u2 = getIISimilarity(b.x, b.y);
-				if (sim_u1 < sim_u2)
-					return -1;
-				else if (sim_u1 == sim_u2)
-					return 0;
-				else
-					return 1;
-			}
-		});
+		// A bounded minimum heap to permit replacing a neighbor with the least similar
+		// neighbor already in the heap for some @i
+		heap.clear();
+		for (int v = 0; v < similarity.length; v++)
+			if (v != i)
+				heap.offer(v, getIISimilarity(i, v));
 		
-		for (Integer v : dao.getTransposedTrainItems())	{
-			if (v != item)	{
-				if (pq.size() < NEIGHBORHOOD_SIZE) {
-					pq.add(new Point(item, v));
-				} else {
-					Point min = pq.peek();
-					if (getIISimilarity(min.x, min.y) < getIISimilarity(item, v))	{
-						pq.remove();
-						pq.add(new Point(item, v));
-					}
-				}
-			}
+		ids[i] = new int[heap.size()];
+		sims[i] = new double[heap.size()];
+		for (int k = 0; k < heap.size(); k++)	{
+			ids[i][k] = heap.id(k);
+			sims[i][k] = heap.score(k);
 		}
-					
-		ArrayList<Integer> nbrs = new ArrayList<Integer>();
-		for (Point a : pq)
-			nbrs.add(a.y);
-		return nbrs;
 	}	
 }
@@ -0,0 +1,152 @@
+package recommender;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Maps the sparse external ids of users or items, as they appear in the data files, to dense indices
+ * 0..size()-1 and back. Dense indices follow the ascending order of the external ids, so iterating over
+ * the dense indices visits the external ids in sorted order.
+ */
+final class IdIndex implements Iterable<Integer> {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// A direct lookup table is only built when it costs at most this many slots per id
+	private static final int MAX_LOOKUP_SLOTS_PER_ID = 4;
+
+	private final IntBuffer ids;
+	private final int[] lookup;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param sortedIds external ids in strictly ascending order. The array is not copied.
+	 */
+	IdIndex ( int[] sortedIds )
+	{
+		this(IntBuffer.wrap(sortedIds));
+	}
+
+	/**
+	 * @param sortedIds external ids in strictly ascending order, possibly mapped from a binary rating file.
+	 * The buffer is not copied.
+	 */
+	IdIndex ( IntBuffer sortedIds )
+	{
+		ids = sortedIds;
+		lookup = buildLookup(sortedIds);
+	}
+
+	/**
+	 * @return an index over the distinct values among the first @count entries of @ids
+	 */
+	static IdIndex of (	int[] ids,
+						int count )
+	{
+		int[] sorted = Arrays.copyOf(ids, count);
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for (int i = 0; i < count; i++)
+			if (distinct == 0 || sorted[distinct - 1] != sorted[i])
+				sorted[distinct++] = sorted[i];
+		return new IdIndex(Arrays.copyOf(sorted, distinct));
+	}
+
+	/**
+	 * @return the dense index of external @id, or -1 if @id is not present
+	 */
+	int indexOf ( int id )
+	{
+		if (lookup != null)
+			return (id >= 0 && id < lookup.length) ? lookup[id] : -1;
+		int lo = 0, hi = ids.limit() - 1;
+		while (lo <= hi)	{
+			int mid = (lo + hi) >>> 1;
+			int m = ids.get(mid);
+			if (m < id)
+				lo = mid + 1;
+			else if (m > id)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the external id at dense @index
+	 */
+	int idAt ( int index )
+	{
+		return ids.get(index);
+	}
+
+	/**
+	 * @return the number of ids in the index
+	 */
+	int size ()
+	{
+		return ids.limit();
+	}
+
+	/**
+	 * @return a read-only view of the external ids in ascending order
+	 */
+	IntBuffer idBuffer ()
+	{
+		return ids.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return an iterator over the external ids in ascending order
+	 */
+	public Iterator<Integer> iterator ()
+	{
+		return new Iterator<Integer>() {
+			private int next = 0;
+
+			public boolean hasNext ()	{
+				return next < ids.limit();
+			}
+
+			public Integer next ()	{
+				if (next >= ids.limit())
+					throw new NoSuchElementException();
+				return ids.get(next++);
+			}
+
+			public void remove ()	{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return a table mapping each external id directly to its dense index, or null if the ids are too
+	 * sparse (or negative) for such a table to be worth its memory, in which case lookups binary search @ids
+	 */
+	private static int[] buildLookup ( IntBuffer ids )
+	{
+		int n = ids.limit();
+		if (n == 0 || ids.get(0) < 0)
+			return null;
+		long slots = (long) ids.get(n - 1) + 1;
+		if (slots > (long) MAX_LOOKUP_SLOTS_PER_ID * n + 1024)
+			return null;
+		int[] table = new int[(int) slots];
+		Arrays.fill(table, -1);
+		for (int i = 0; i < n; i++)
+			table[ids.get(i)] = i;
+		return table;
+	}
+}
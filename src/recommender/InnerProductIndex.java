@@ -0,0 +1,256 @@
+package recommender;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An inverted file (IVF) index for approximate maximum inner product search over a fixed set of vectors,
+ * each with an offset: the score of vector x for a query q is q.x + offset(x). The vectors are clustered
+ * into lists by k-means and a query only visits the p lists whose centroids are closest to it, so it scores
+ * about p / numLists() of the vectors. More lists make each list smaller and the search faster; more
+ * probes make it visit more lists and miss fewer of the true best vectors.
+ *
+ * Inner products are not distances, so the vectors are first mapped to a space where they are (Bachrach et
+ * al., 2014): x' = (x, offset(x), sqrt(M^2 - |x|^2 - offset(x)^2)), with M the largest such norm, and
+ * q' = (q, 1, 0). Then |q' - x'|^2 = |q|^2 + M^2 - 2 (q.x + offset(x)), so the nearest x' to q' is the
+ * vector with the highest score, and the clusters and probed lists are found by Euclidean distance.
+ *
+ * The vectors of each list are copied next to each other, so a probed list is scored in one sequential pass.
+ * The index is immutable once built and can be queried by several threads at once.
+ */
+final class InnerProductIndex {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// k-means is trained on a sample of at most this many vectors per list, which is plenty to place the
+	// centroids, and then every vector is assigned to its nearest centroid once
+	private static final int SAMPLE_PER_LIST = 256;
+	private static final int KMEANS_ITERATIONS = 10;
+	private static final long SEED = 42L;
+
+	private final int dim;
+	private final int numLists;
+	// Centroids in the transformed space, numLists x (dim + 2), and their squared norms
+	private final double[] centroids;
+	private final double[] centroidNorms;
+	private final int[] listPtr;
+	private final int[] ids;
+	private final float[] vectors;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Clusters the vectors and builds the index.
+	 * @param vectors @offsets.length vectors of @dim components each, one after the other
+	 * @param offsets the offset of each vector
+	 * @param numLists the number of lists; at most the number of vectors are used
+	 */
+	static InnerProductIndex build (	FloatBuffer vectors,
+										double[] offsets,
+										int dim,
+										int numLists )
+	{
+		int n = offsets.length, d = dim + 2;
+		numLists = Math.max(1, Math.min(numLists, n));
+
+		// Map the vectors to the transformed space
+		double[] points = new double[n * d];
+		double maxNorm = 0.0;
+		for (int v = 0; v < n; v++)	{
+			double norm = offsets[v] * offsets[v];
+			for (int f = 0; f < dim; f++)	{
+				double x = vectors.get(v * dim + f);
+				points[v * d + f] = x;
+				norm += x * x;
+			}
+			points[v * d + dim] = offsets[v];
+			points[v * d + dim + 1] = norm;
+			maxNorm = Math.max(maxNorm, norm);
+		}
+		for (int v = 0; v < n; v++)
+			points[v * d + dim + 1] = Math.sqrt(Math.max(0.0, maxNorm - points[v * d + dim + 1]));
+
+		// Draw the sample in random order; its first numLists points are the initial centroids
+		int[] order = new int[n];
+		for (int v = 0; v < n; v++)
+			order[v] = v;
+		Random random = new Random(SEED);
+		int sampleSize = (int) Math.min(n, (long) SAMPLE_PER_LIST * numLists);
+		for (int s = 0; s < sampleSize; s++)	{
+			int r = s + random.nextInt(n - s);
+			int tmp = order[s];
+			order[s] = order[r];
+			order[r] = tmp;
+		}
+		double[] centroids = new double[numLists * d];
+		for (int c = 0; c < numLists; c++)
+			System.arraycopy(points, order[c] * d, centroids, c * d, d);
+
+		int[] assignment = new int[n];
+		double[] sums = new double[numLists * d];
+		int[] counts = new int[numLists];
+		for (int iter = 0; iter < KMEANS_ITERATIONS; iter++)	{
+			Arrays.fill(sums, 0.0);
+			Arrays.fill(counts, 0);
+			for (int s = 0; s < sampleSize; s++)	{
+				int v = order[s], c = nearest(points, v * d, centroids, numLists, d);
+				counts[c]++;
+				for (int k = 0; k < d; k++)
+					sums[c * d + k] += points[v * d + k];
+			}
+			// A centroid left without points stays where it is
+			for (int c = 0; c < numLists; c++)
+				if (counts[c] > 0)
+					for (int k = 0; k < d; k++)
+						centroids[c * d + k] = sums[c * d + k] / counts[c];
+		}
+
+		// Assign every vector and lay the lists out one after the other, each sorted by id
+		int[] listPtr = new int[numLists + 1];
+		for (int v = 0; v < n; v++)	{
+			assignment[v] = nearest(points, v * d, centroids, numLists, d);
+			listPtr[assignment[v] + 1]++;
+		}
+		for (int c = 0; c < numLists; c++)
+			listPtr[c + 1] += listPtr[c];
+		int[] fill = Arrays.copyOf(listPtr, numLists);
+		int[] ids = new int[n];
+		float[] packed = new float[n * dim];
+		for (int v = 0; v < n; v++)	{
+			int k = fill[assignment[v]]++;
+			ids[k] = v;
+			for (int f = 0; f < dim; f++)
+				packed[k * dim + f] = vectors.get(v * dim + f);
+		}
+		return new InnerProductIndex(dim, centroids, listPtr, ids, packed);
+	}
+
+	/**
+	 * @return the number of lists
+	 */
+	int numLists ()
+	{
+		return numLists;
+	}
+
+	/**
+	 * Finds the @lists.length lists whose centroids are closest to @query, the ones the vectors with the
+	 * highest scores for @query most likely lie in.
+	 * @param query a vector of dim components
+	 * @param lists receives the lists, closest first
+	 * @return the number of lists found, the smaller of @lists.length and numLists()
+	 */
+	int probe (	double[] query,
+				int[] lists )
+	{
+		// |q' - c|^2 = |q'|^2 - 2 q'.c + |c|^2, of which |q'|^2 is the same for every list
+		int d = dim + 2;
+		TopKHeap heap = new TopKHeap(Math.min(lists.length, numLists));
+		for (int c = 0; c < numLists; c++)	{
+			double dot = centroids[c * d + dim];
+			for (int f = 0; f < dim; f++)
+				dot += query[f] * centroids[c * d + f];
+			heap.offer(c, 2.0 * dot - centroidNorms[c]);
+		}
+		heap.sortDescending();
+		for (int k = 0; k < heap.size(); k++)
+			lists[k] = heap.id(k);
+		return heap.size();
+	}
+
+	/**
+	 * @return the position of the first vector of @list
+	 */
+	int listStart ( int list )
+	{
+		return listPtr[list];
+	}
+
+	/**
+	 * @return the position one past the last vector of @list
+	 */
+	int listEnd ( int list )
+	{
+		return listPtr[list + 1];
+	}
+
+	/**
+	 * @return the index, among the vectors the index was built from, of the vector at position @k
+	 */
+	int id ( int k )
+	{
+		return ids[k];
+	}
+
+	/**
+	 * @return the @f-th component of the vector at position @k
+	 */
+	float component (	int k,
+						int f )
+	{
+		return vectors[k * dim + f];
+	}
+
+	/**
+	 * @return an estimate of the heap taken by the index, in bytes
+	 */
+	long bytes ()
+	{
+		return 5 * 16L + 8L * (centroids.length + centroidNorms.length) + 4L * (listPtr.length + ids.length + vectors.length);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private InnerProductIndex (	int dim,
+								double[] centroids,
+								int[] listPtr,
+								int[] ids,
+								float[] vectors )
+	{
+		this.dim = dim;
+		this.numLists = listPtr.length - 1;
+		this.centroids = centroids;
+		this.listPtr = listPtr;
+		this.ids = ids;
+		this.vectors = vectors;
+
+		int d = dim + 2;
+		centroidNorms = new double[numLists];
+		for (int c = 0; c < numLists; c++)
+			for (int k = 0; k < d; k++)
+				centroidNorms[c] += centroids[c * d + k] * centroids[c * d + k];
+	}
+
+	/**
+	 * @return the centroid closest to the point at @offset of @points
+	 */
+	private static int nearest (	double[] points,
+									int offset,
+									double[] centroids,
+									int numLists,
+									int d )
+	{
+		int best = 0;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < numLists; c++)	{
+			double dist = 0.0;
+			for (int k = 0; k < d && dist < bestDist; k++)	{
+				double diff = points[offset + k] - centroids[c * d + k];
+				dist += diff * diff;
+			}
+			if (dist < bestDist)	{
+				best = c;
+				bestDist = dist;
+			}
+		}
+		return best;
+	}
+}
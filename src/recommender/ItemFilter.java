@@ -0,0 +1,14 @@
+package recommender;
+
+/**
+ * Decides which items may not appear in a list of recommendations, for example items that are out of stock
+ * or that the user has already been shown. Items the user has rated in the training data set are excluded
+ * by the recommenders themselves and need not be filtered.
+ */
+public interface ItemFilter {
+
+	/**
+	 * @return true if @item must not be recommended
+	 */
+	boolean exclude ( int item );
+}
@@ -0,0 +1,137 @@
+package recommender;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds, in the style of HdrHistogram: values are counted in
+ * buckets whose width grows with the value, 32 linear buckets per power of two, so every percentile is
+ * reported within about 3% of the true value while the histogram takes a fixed 15KB whatever the range and
+ * number of values. Recording is a single atomic increment, so any number of threads can record at once.
+ */
+public final class LatencyHistogram {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// Non-negative longs are below 2^63, whose last power of two is split from bucket 57 * SUB_BUCKETS on
+	private static final int NUM_BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLongArray totals;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	public LatencyHistogram ()
+	{
+		counts = new AtomicLongArray(NUM_BUCKETS);
+		// [0] the number of values, [1] their sum, [2] the largest value
+		totals = new AtomicLongArray(3);
+	}
+
+	/**
+	 * Records a latency of @nanos nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record ( long nanos )
+	{
+		nanos = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(nanos));
+		totals.incrementAndGet(0);
+		totals.addAndGet(1, nanos);
+		long max;
+		while ((max = totals.get(2)) < nanos && !totals.compareAndSet(2, max, nanos))
+			;
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long count ()
+	{
+		return totals.get(0);
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, or 0 if none was recorded
+	 */
+	public double mean ()
+	{
+		long count = totals.get(0);
+		return count == 0 ? 0.0 : (double) totals.get(1) / count;
+	}
+
+	/**
+	 * @return the largest latency recorded in nanoseconds, or 0 if none was
+	 */
+	public long max ()
+	{
+		return totals.get(2);
+	}
+
+	/**
+	 * @return the latency in nanoseconds below which @percentile percent of the recorded latencies lie, as
+	 * the middle of the bucket holding it, or 0 if none was recorded
+	 */
+	public long percentile ( double percentile )
+	{
+		long count = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++)
+			count += counts.get(b);
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0)), seen = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++)	{
+			seen += counts.get(b);
+			if (seen >= rank)	{
+				long lo = lowest(b), hi = lowest(b + 1) - 1;
+				return Math.min(max(), lo + (hi - lo) / 2);
+			}
+		}
+		return max();
+	}
+
+	/**
+	 * Forgets all recorded latencies. Latencies recorded concurrently may or may not be kept.
+	 */
+	public void reset ()
+	{
+		for (int b = 0; b < NUM_BUCKETS; b++)
+			counts.set(b, 0);
+		for (int k = 0; k < 3; k++)
+			totals.set(k, 0);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the bucket of @value: values below 2 * SUB_BUCKETS have a bucket each, and every higher power of
+	 * two is split into SUB_BUCKETS buckets of equal width
+	 */
+	private static int bucket ( long value )
+	{
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the lowest value of @bucket, or Long.MAX_VALUE past the last bucket
+	 */
+	private static long lowest ( int bucket )
+	{
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long value = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return value < 0 || bucket >= NUM_BUCKETS ? Long.MAX_VALUE : value;
+	}
+}
@@ -0,0 +1,146 @@
+package recommender;
+
+import java.util.Arrays;
+
+/**
+ * The trained neighborhoods of a collaborative filtering model, packed into flat slabs: the neighbors of
+ * every row lie in one int[] and their similarity weights, at the same positions, in one float[], with row
+ * offsets in the style of RatingMatrix. Within a row the neighbors are sorted by increasing index, the same
+ * order in which a RatingMatrix keeps the columns of a row, so the neighbors that have rated something can
+ * be found by a single merge-join of the two rows instead of a lookup per neighbor.
+ */
+final class NeighborTable {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final int[] rowPtr;
+	private final int[] ids;
+	private final float[] weights;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Packs the neighbor lists of every row into slabs, sorting each row by neighbor index.
+	 * @param ids the neighbor indices of each row, in any order, without duplicates
+	 * @param sims the similarities aligned with @ids
+	 */
+	static NeighborTable pack (	int[][] ids,
+								double[][] sims )
+	{
+		int n = ids.length;
+		int[] rowPtr = new int[n + 1];
+		for (int r = 0; r < n; r++)
+			rowPtr[r + 1] = rowPtr[r] + ids[r].length;
+
+		int[] packedIds = new int[rowPtr[n]];
+		float[] packedWeights = new float[rowPtr[n]];
+		long[] row = new long[0];
+		for (int r = 0; r < n; r++)	{
+			int len = ids[r].length;
+			if (row.length < len)
+				row = new long[len];
+			// Indices are non-negative, so sorting (index, weight bits) as longs sorts by index
+			for (int k = 0; k < len; k++)
+				row[k] = ((long) ids[r][k] << 32) | (Float.floatToRawIntBits((float) sims[r][k]) & 0xFFFFFFFFL);
+			Arrays.sort(row, 0, len);
+			for (int k = 0; k < len; k++)	{
+				packedIds[rowPtr[r] + k] = (int) (row[k] >>> 32);
+				packedWeights[rowPtr[r] + k] = Float.intBitsToFloat((int) row[k]);
+			}
+		}
+		return new NeighborTable(rowPtr, packedIds, packedWeights);
+	}
+
+	/**
+	 * @return the table whose row j lists the rows that have j as a neighbor, with the same weights, sorted by
+	 * increasing index
+	 * @param numRows the number of rows of the transposed table, greater than every neighbor index
+	 */
+	NeighborTable transpose ( int numRows )
+	{
+		int[] tRowPtr = new int[numRows + 1];
+		for (int k = 0; k < ids.length; k++)
+			tRowPtr[ids[k] + 1]++;
+		for (int r = 0; r < numRows; r++)
+			tRowPtr[r + 1] += tRowPtr[r];
+
+		// Rows are visited by increasing index, so each transposed row is filled already sorted
+		int[] fill = Arrays.copyOf(tRowPtr, numRows);
+		int[] tIds = new int[ids.length];
+		float[] tWeights = new float[ids.length];
+		for (int r = 0; r < numRows(); r++)	{
+			for (int k = rowPtr[r]; k < rowPtr[r + 1]; k++)	{
+				int pos = fill[ids[k]]++;
+				tIds[pos] = r;
+				tWeights[pos] = weights[k];
+			}
+		}
+		return new NeighborTable(tRowPtr, tIds, tWeights);
+	}
+
+	/**
+	 * @return an estimate of the heap taken by the table, in bytes
+	 */
+	long bytes ()
+	{
+		return 3 * 16L + 4L * (rowPtr.length + ids.length + weights.length);
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	int numRows ()
+	{
+		return rowPtr.length - 1;
+	}
+
+	/**
+	 * @return the position of the first neighbor of @row
+	 */
+	int rowStart ( int row )
+	{
+		return rowPtr[row];
+	}
+
+	/**
+	 * @return the position one past the last neighbor of @row
+	 */
+	int rowEnd ( int row )
+	{
+		return rowPtr[row + 1];
+	}
+
+	/**
+	 * @return the index of the neighbor at position @k
+	 */
+	int id ( int k )
+	{
+		return ids[k];
+	}
+
+	/**
+	 * @return the similarity weight of the neighbor at position @k
+	 */
+	float weight ( int k )
+	{
+		return weights[k];
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private NeighborTable (	int[] rowPtr,
+							int[] ids,
+							float[] weights )
+	{
+		this.rowPtr = rowPtr;
+		this.ids = ids;
+		this.weights = weights;
+	}
+}
@@ -0,0 +1,521 @@
+package recommender;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads a [user, item, rating] text file on all cores. The file is split into chunks at line boundaries
+ * and every chunk is parsed straight from a memory-mapped byte range with a hand-rolled numeric parser,
+ * so no String is created per line or token. The per-chunk ratings are then merged into the compressed
+ * sparse matrices. The chunks are split into a few consecutive groups, each of which counts the ratings of
+ * every row into a single array and scatters its chunks in turn into its own precomputed slice of every row,
+ * so the merge runs in parallel without any synchronization and keeps file order within each row, while the
+ * memory for the counts grows with the number of groups rather than the number of chunks. A chunk is released
+ * as soon as it is scattered.
+ */
+final class RatingFileLoader {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// Chunks are kept well below the 2GB limit of a single mapped buffer
+	private static final long MAX_CHUNK_BYTES = 1L << 28;
+	// Each group of chunks holds a count per user and per item
+	private static final int MAX_GROUPS = 4;
+
+	private final String fileName;
+	private final boolean[] isDelim;
+	private final ExecutorService pool;
+	private final int numThreads;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * The ratings of one file, over dense user and item indices.
+	 */
+	static final class Ratings {
+		IdIndex users;
+		IdIndex items;
+		RatingMatrix byUser;
+		RatingMatrix byItem;
+		double[] userMeans;
+		double[] itemMeans;
+	}
+
+	/**
+	 * @param fileName The file containing [user, item, rating] tuples, one per line. Any further fields on a
+	 * line, such as a timestamp, are ignored.
+	 * @param delim Deliminator(s) that separate(s) user, item and rating
+	 * @param numThreads The number of threads to parse and merge with
+	 */
+	RatingFileLoader (	String fileName,
+						String delim,
+						int numThreads )
+	{
+		this.fileName = fileName;
+		this.numThreads = Math.max(1, numThreads);
+		this.pool = Executors.newFixedThreadPool(this.numThreads);
+
+		isDelim = new boolean[256];
+		for (int c = 0; c < delim.length(); c++)
+			isDelim[delim.charAt(c) & 0xFF] = true;
+	}
+
+	/**
+	 * Reads the file.
+	 * @param transposed whether to also build the item-major matrix and the item means
+	 * @throws IOException if the file could not be opened for reading or read from, or is malformed
+	 */
+	Ratings load ( boolean transposed )
+			throws IOException
+	{
+		try	{
+			return loadChunks(transposed);
+		} finally	{
+			pool.shutdown();
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * The ratings parsed from one chunk of the file, by id and then by dense index once the ids are mapped.
+	 */
+	private static final class Chunk {
+		int[] users = new int[1024];
+		int[] items = new int[1024];
+		float[] ratings = new float[1024];
+		int size = 0;
+
+		void add (	int user,
+					int item,
+					float rating )
+		{
+			if (size == users.length)	{
+				users = Arrays.copyOf(users, size * 2);
+				items = Arrays.copyOf(items, size * 2);
+				ratings = Arrays.copyOf(ratings, size * 2);
+			}
+			users[size] = user;
+			items[size] = item;
+			ratings[size] = rating;
+			size++;
+		}
+	}
+
+	private Ratings loadChunks ( final boolean transposed )
+			throws IOException
+	{
+		final Ratings result = new Ratings();
+		final Chunk[] chunks = parse();
+
+		// build the id indices from the distinct ids of each chunk
+		result.users = mergeIds(chunks, true);
+		result.items = mergeIds(chunks, false);
+		final int numUsers = result.users.size(), numItems = result.items.size();
+
+		// map ids to dense indices, per chunk
+		runAll(chunks.length, new ChunkTask() {
+			public void run ( int c )	{
+				Chunk chunk = chunks[c];
+				for (int k = 0; k < chunk.size; k++)	{
+					chunk.users[k] = result.users.indexOf(chunk.users[k]);
+					chunk.items[k] = result.items.indexOf(chunk.items[k]);
+				}
+			}
+		});
+
+		// count the ratings of each row, per group of consecutive chunks
+		final int numGroups = Math.min(chunks.length, MAX_GROUPS);
+		final int[][] userCounts = new int[numGroups][], itemCounts = transposed ? new int[numGroups][] : null;
+		runAll(numGroups, new ChunkTask() {
+			public void run ( int g )	{
+				int[] users = userCounts[g] = new int[numUsers];
+				int[] items = transposed ? (itemCounts[g] = new int[numItems]) : null;
+				for (int c = firstChunk(g, numGroups, chunks.length); c < firstChunk(g + 1, numGroups, chunks.length); c++)	{
+					Chunk chunk = chunks[c];
+					for (int k = 0; k < chunk.size; k++)	{
+						users[chunk.users[k]]++;
+						if (transposed)
+							items[chunk.items[k]]++;
+					}
+				}
+			}
+		});
+
+		// merge the counts into row offsets, turning each group's counts into the start of its slice of every row
+		final int[] userPtr = new int[numUsers + 1];
+		mergeRows(userCounts, userPtr);
+		final int[] itemPtr = transposed ? new int[numItems + 1] : null;
+		if (transposed)
+			mergeRows(itemCounts, itemPtr);
+
+		// scatter each group into its slices, chunk after chunk in file order, releasing each chunk once scattered
+		final int nnz = userPtr[numUsers];
+		final int[] itemIdx = new int[nnz];
+		final float[] userValues = new float[nnz];
+		final int[] userIdx = transposed ? new int[nnz] : null;
+		final float[] itemValues = transposed ? new float[nnz] : null;
+		runAll(numGroups, new ChunkTask() {
+			public void run ( int g )	{
+				int[] userPos = userCounts[g], itemPos = transposed ? itemCounts[g] : null;
+				for (int c = firstChunk(g, numGroups, chunks.length); c < firstChunk(g + 1, numGroups, chunks.length); c++)	{
+					Chunk chunk = chunks[c];
+					for (int k = 0; k < chunk.size; k++)	{
+						int u = chunk.users[k], i = chunk.items[k];
+						int pos = userPos[u]++;
+						itemIdx[pos] = i;
+						userValues[pos] = chunk.ratings[k];
+						if (transposed)	{
+							pos = itemPos[i]++;
+							userIdx[pos] = u;
+							itemValues[pos] = chunk.ratings[k];
+						}
+					}
+					chunks[c] = null;
+				}
+				userCounts[g] = null;
+				if (transposed)
+					itemCounts[g] = null;
+			}
+		});
+
+		// sort the rows by column. A duplicate (user, item) pair makes the matrices and means inexact, in which
+		// case they are rebuilt from the compacted user-major matrix.
+		result.userMeans = new double[numUsers];
+		boolean exact = sortRows(userPtr, itemIdx, userValues, result.userMeans);
+		if (transposed)	{
+			result.itemMeans = new double[numItems];
+			exact &= sortRows(itemPtr, userIdx, itemValues, result.itemMeans);
+		}
+		if (exact)	{
+			result.byUser = new RatingMatrix(numUsers, numItems, userPtr, itemIdx, userValues);
+			if (transposed)
+				result.byItem = new RatingMatrix(numItems, numUsers, itemPtr, userIdx, itemValues);
+		} else	{
+			result.byUser = RatingMatrix.sortRows(numUsers, numItems, userPtr, itemIdx, userValues);
+			result.userMeans = result.byUser.rowMeans();
+			if (transposed)	{
+				result.byItem = result.byUser.transpose();
+				result.itemMeans = result.byItem.rowMeans();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Splits the file into chunks at line boundaries and parses them in parallel.
+	 */
+	private Chunk[] parse ()
+			throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try	{
+			final FileChannel channel = file.getChannel();
+			long size = channel.size();
+			int numChunks = (int) Math.max(numThreads, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+			if (size < (1 << 16))
+				numChunks = 1;
+
+			final long[] bounds = new long[numChunks + 1];
+			for (int c = 1; c < numChunks; c++)
+				bounds[c] = nextLineStart(file, Math.max(bounds[c - 1], size * c / numChunks), size);
+			bounds[numChunks] = size;
+
+			final Chunk[] chunks = new Chunk[numChunks];
+			runAll(numChunks, new ChunkTask() {
+				public void run ( int c ) throws IOException	{
+					chunks[c] = parseChunk(channel, bounds[c], bounds[c + 1]);
+				}
+			});
+			return chunks;
+		} finally	{
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the position of the first line starting at or after @pos
+	 */
+	private static long nextLineStart (	RandomAccessFile file,
+										long pos,
+										long size )
+			throws IOException
+	{
+		if (pos == 0)
+			return 0;
+		file.seek(pos - 1);
+		byte[] buf = new byte[4096];
+		while (pos - 1 < size)	{
+			int n = file.read(buf);
+			if (n <= 0)
+				break;
+			for (int k = 0; k < n; k++)
+				if (buf[k] == '\n')
+					return pos + k;
+			pos += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Parses the lines in the byte range [@start, @end), which begins at a line start.
+	 */
+	private Chunk parseChunk (	FileChannel channel,
+								long start,
+								long end )
+			throws IOException
+	{
+		Chunk chunk = new Chunk();
+		if (end <= start)
+			return chunk;
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		int limit = buf.limit(), pos = 0;
+
+		while (pos < limit)	{
+			int lineStart = pos;
+			pos = skipDelims(buf, pos, limit);
+			if (pos < limit && (buf.get(pos) == '\n' || buf.get(pos) == '\r'))	{
+				// blank line
+				pos++;
+				continue;
+			}
+
+			// user
+			long value = 0;
+			int digits = pos;
+			while (pos < limit && isDigit(buf.get(pos)))
+				value = value * 10 + (buf.get(pos++) - '0');
+			if (pos == digits || value > Integer.MAX_VALUE)
+				throw malformed(start + lineStart);
+			int user = (int) value;
+
+			// item
+			pos = skipDelims(buf, pos, limit);
+			value = 0;
+			digits = pos;
+			while (pos < limit && isDigit(buf.get(pos)))
+				value = value * 10 + (buf.get(pos++) - '0');
+			if (pos == digits || value > Integer.MAX_VALUE)
+				throw malformed(start + lineStart);
+			int item = (int) value;
+
+			// rating, as [-]digits[.digits][e[-]digits]
+			pos = skipDelims(buf, pos, limit);
+			boolean negative = pos < limit && buf.get(pos) == '-';
+			if (negative)
+				pos++;
+			long mantissa = 0;
+			int scale = 0;
+			digits = pos;
+			while (pos < limit && isDigit(buf.get(pos)))
+				mantissa = mantissa * 10 + (buf.get(pos++) - '0');
+			if (pos < limit && buf.get(pos) == '.')	{
+				pos++;
+				while (pos < limit && isDigit(buf.get(pos)))	{
+					mantissa = mantissa * 10 + (buf.get(pos++) - '0');
+					scale--;
+				}
+			}
+			if (pos == digits)
+				throw malformed(start + lineStart);
+			if (pos < limit && (buf.get(pos) == 'e' || buf.get(pos) == 'E'))	{
+				pos++;
+				boolean negativeExp = pos < limit && buf.get(pos) == '-';
+				if (negativeExp || (pos < limit && buf.get(pos) == '+'))
+					pos++;
+				int exp = 0;
+				while (pos < limit && isDigit(buf.get(pos)))
+					exp = exp * 10 + (buf.get(pos++) - '0');
+				scale += negativeExp ? -exp : exp;
+			}
+			double rating = scale >= 0 ? mantissa * Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+			chunk.add(user, item, (float) (negative ? -rating : rating));
+
+			// ignore the rest of the line
+			while (pos < limit && buf.get(pos) != '\n')
+				pos++;
+			pos++;
+		}
+		return chunk;
+	}
+
+	private int skipDelims (	MappedByteBuffer buf,
+								int pos,
+								int limit )
+	{
+		while (pos < limit && isDelim[buf.get(pos) & 0xFF])
+			pos++;
+		return pos;
+	}
+
+	private static boolean isDigit ( byte b )
+	{
+		return b >= '0' && b <= '9';
+	}
+
+	private IOException malformed ( long offset )
+	{
+		return new IOException(String.format("Malformed rating on the line starting at byte %d of %s.", offset, fileName));
+	}
+
+	/**
+	 * @return an index over the distinct user (@users true) or item ids of all chunks
+	 */
+	private IdIndex mergeIds (	final Chunk[] chunks,
+								final boolean users )
+			throws IOException
+	{
+		final IdIndex[] distinct = new IdIndex[chunks.length];
+		runAll(chunks.length, new ChunkTask() {
+			public void run ( int c )	{
+				Chunk chunk = chunks[c];
+				distinct[c] = IdIndex.of(users ? chunk.users : chunk.items, chunk.size);
+			}
+		});
+
+		int total = 0;
+		for (IdIndex index : distinct)
+			total += index.size();
+		int[] ids = new int[total];
+		int n = 0;
+		for (IdIndex index : distinct)
+			for (int k = 0; k < index.size(); k++)
+				ids[n++] = index.idAt(k);
+		return IdIndex.of(ids, n);
+	}
+
+	/**
+	 * @return the first of the @numChunks chunks in group @g of @numGroups
+	 */
+	private static int firstChunk (	int g,
+									int numGroups,
+									int numChunks )
+	{
+		return (int) ((long) numChunks * g / numGroups);
+	}
+
+	/**
+	 * Sums the per-group counts of each row into @ptr, and replaces the counts of each group by the position
+	 * where its ratings of each row start.
+	 */
+	private static void mergeRows (	int[][] counts,
+									int[] ptr )
+	{
+		int rows = ptr.length - 1;
+		for (int r = 0; r < rows; r++)	{
+			int pos = ptr[r];
+			for (int[] groupCounts : counts)	{
+				int c = groupCounts[r];
+				groupCounts[r] = pos;
+				pos += c;
+			}
+			ptr[r + 1] = pos;
+		}
+	}
+
+	/**
+	 * Sorts each row of the given arrays by column, in parallel over blocks of rows, and stores the mean rating
+	 * of each row in @means.
+	 * @return false if some row holds the same column twice
+	 */
+	private boolean sortRows (	final int[] ptr,
+								final int[] idx,
+								final float[] values,
+								final double[] means )
+			throws IOException
+	{
+		final int rows = ptr.length - 1;
+		final int blocks = Math.min(rows, numThreads * 4);
+		final boolean[] exact = new boolean[Math.max(blocks, 0)];
+		runAll(blocks, new ChunkTask() {
+			public void run ( int b )	{
+				exact[b] = true;
+				long[] keys = new long[0];
+				int from = (int) ((long) rows * b / blocks), to = (int) ((long) rows * (b + 1) / blocks);
+				for (int r = from; r < to; r++)	{
+					int start = ptr[r], end = ptr[r + 1], length = end - start;
+					double sum = 0.0;
+					for (int k = start; k < end; k++)
+						sum += values[k];
+					means[r] = sum / length;
+
+					boolean sorted = true;
+					for (int k = start + 1; k < end && sorted; k++)
+						sorted = idx[k - 1] < idx[k];
+					if (sorted)
+						continue;
+
+					if (keys.length < length)
+						keys = new long[length];
+					for (int k = 0; k < length; k++)
+						keys[k] = ((long) idx[start + k] << 32) | k;
+					Arrays.sort(keys, 0, length);
+					float[] rowValues = Arrays.copyOfRange(values, start, end);
+					for (int k = 0; k < length; k++)	{
+						idx[start + k] = (int) (keys[k] >>> 32);
+						values[start + k] = rowValues[(int) keys[k]];
+						if (k > 0 && idx[start + k] == idx[start + k - 1])
+							exact[b] = false;
+					}
+				}
+			}
+		});
+		for (boolean e : exact)
+			if (!e)
+				return false;
+		return true;
+	}
+
+	/**
+	 * A unit of work over chunk (or row block) number c.
+	 */
+	private interface ChunkTask {
+		void run ( int c ) throws IOException;
+	}
+
+	/**
+	 * Runs @task for every c in [0, @n) on the thread pool and waits for all of them to complete.
+	 */
+	private void runAll (	int n,
+							final ChunkTask task )
+			throws IOException
+	{
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(n);
+		for (int c = 0; c < n; c++)	{
+			final int chunk = c;
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call () throws IOException	{
+					task.run(chunk);
+					return null;
+				}
+			}));
+		}
+		try	{
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e)	{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading " + fileName);
+		} catch (ExecutionException e)	{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally	{
+			for (Future<Void> future : futures)
+				future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package recommender;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A sparse rating matrix in compressed sparse row form over dense row and column indices. The column
+ * indices within each row are kept in ascending order, so a single rating is found by binary search and
+ * two rows can be intersected by a merge. Used user-major (CSR) for the training and test data and
+ * item-major (CSC, i.e. the CSR of the transpose) for the transposed training data. The arrays are held
+ * as buffers, which either wrap heap arrays or are mapped straight from a binary rating file.
+ */
+final class RatingMatrix {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final int numRows;
+	private final int numCols;
+	private final IntBuffer rowPtr;
+	private final IntBuffer colIdx;
+	private final FloatBuffer values;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param rowPtr offsets of length numRows + 1; row r occupies positions [rowPtr[r], rowPtr[r + 1])
+	 * @param colIdx column index of each stored rating, ascending within each row
+	 * @param values the stored ratings
+	 */
+	RatingMatrix (	int numRows,
+					int numCols,
+					int[] rowPtr,
+					int[] colIdx,
+					float[] values )
+	{
+		this(numRows, numCols, IntBuffer.wrap(rowPtr), IntBuffer.wrap(colIdx), FloatBuffer.wrap(values));
+	}
+
+	/**
+	 * @param rowPtr offsets of length numRows + 1; row r occupies positions [rowPtr[r], rowPtr[r + 1])
+	 * @param colIdx column index of each stored rating, ascending within each row
+	 * @param values the stored ratings
+	 */
+	RatingMatrix (	int numRows,
+					int numCols,
+					IntBuffer rowPtr,
+					IntBuffer colIdx,
+					FloatBuffer values )
+	{
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowPtr = rowPtr;
+		this.colIdx = colIdx;
+		this.values = values;
+	}
+
+	/**
+	 * Sorts each row by column and drops all but the last of any duplicate columns, which is the one that
+	 * was stored last within the row.
+	 * @return the sorted matrix, sharing (and overwriting) the given arrays
+	 */
+	static RatingMatrix sortRows (	int numRows,
+									int numCols,
+									int[] rowPtr,
+									int[] colIdx,
+									float[] values )
+	{
+		long[] keys = new long[0];
+		int write = 0;
+		for (int r = 0; r < numRows; r++)	{
+			int start = rowPtr[r], end = rowPtr[r + 1], length = end - start;
+			rowPtr[r] = write;
+
+			boolean sorted = true;
+			for (int k = start + 1; k < end && sorted; k++)
+				sorted = colIdx[k - 1] < colIdx[k];
+			if (sorted)	{
+				System.arraycopy(colIdx, start, colIdx, write, length);
+				System.arraycopy(values, start, values, write, length);
+				write += length;
+				continue;
+			}
+
+			// sort (column, position) pairs, the position breaking ties in favour of later entries
+			if (keys.length < length)
+				keys = new long[length];
+			for (int k = 0; k < length; k++)
+				keys[k] = ((long) colIdx[start + k] << 32) | k;
+			Arrays.sort(keys, 0, length);
+			float[] rowValues = Arrays.copyOfRange(values, start, end);
+			for (int k = 0; k < length; k++)	{
+				int col = (int) (keys[k] >>> 32);
+				if (k + 1 < length && (int) (keys[k + 1] >>> 32) == col)
+					continue;
+				colIdx[write] = col;
+				values[write] = rowValues[(int) keys[k]];
+				write++;
+			}
+		}
+		rowPtr[numRows] = write;
+
+		if (write < colIdx.length)	{
+			colIdx = Arrays.copyOf(colIdx, write);
+			values = Arrays.copyOf(values, write);
+		}
+		return new RatingMatrix(numRows, numCols, rowPtr, colIdx, values);
+	}
+
+	/**
+	 * @return the transpose of this matrix, with rows and columns swapped. Since rows are visited in
+	 * ascending order, the columns of the transpose come out sorted without any further work.
+	 */
+	RatingMatrix transpose ()
+	{
+		int nnz = nnz();
+		int[] tPtr = new int[numCols + 1];
+		for (int k = 0; k < nnz; k++)
+			tPtr[colIdx.get(k) + 1]++;
+		for (int c = 0; c < numCols; c++)
+			tPtr[c + 1] += tPtr[c];
+
+		int[] next = Arrays.copyOf(tPtr, numCols);
+		int[] tIdx = new int[nnz];
+		float[] tValues = new float[nnz];
+		for (int r = 0; r < numRows; r++)	{
+			for (int k = rowPtr.get(r); k < rowPtr.get(r + 1); k++)	{
+				int pos = next[colIdx.get(k)]++;
+				tIdx[pos] = r;
+				tValues[pos] = values.get(k);
+			}
+		}
+		return new RatingMatrix(numCols, numRows, tPtr, tIdx, tValues);
+	}
+
+	/**
+	 * @return the mean of the ratings in each row
+	 */
+	double[] rowMeans ()
+	{
+		double[] means = new double[numRows];
+		for (int r = 0; r < numRows; r++)	{
+			double sum = 0.0;
+			for (int k = rowPtr.get(r); k < rowPtr.get(r + 1); k++)
+				sum += values.get(k);
+			means[r] = sum / (rowPtr.get(r + 1) - rowPtr.get(r));
+		}
+		return means;
+	}
+
+	/**
+	 * @return the position of (@row, @col) in the storage arrays, or -1 if it holds no rating
+	 */
+	int find (	int row,
+				int col )
+	{
+		int lo = rowPtr.get(row), hi = rowPtr.get(row + 1) - 1;
+		while (lo <= hi)	{
+			int mid = (lo + hi) >>> 1;
+			int c = colIdx.get(mid);
+			if (c < col)
+				lo = mid + 1;
+			else if (c > col)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	int numRows ()
+	{
+		return numRows;
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	int numCols ()
+	{
+		return numCols;
+	}
+
+	/**
+	 * @return the number of stored ratings
+	 */
+	int nnz ()
+	{
+		return rowPtr.get(numRows);
+	}
+
+	/**
+	 * @return the position of the first rating of @row
+	 */
+	int rowStart ( int row )
+	{
+		return rowPtr.get(row);
+	}
+
+	/**
+	 * @return the position one past the last rating of @row
+	 */
+	int rowEnd ( int row )
+	{
+		return rowPtr.get(row + 1);
+	}
+
+	/**
+	 * @return the number of ratings in @row
+	 */
+	int rowLength ( int row )
+	{
+		return rowPtr.get(row + 1) - rowPtr.get(row);
+	}
+
+	/**
+	 * @return the column index of the rating at position @k
+	 */
+	int col ( int k )
+	{
+		return colIdx.get(k);
+	}
+
+	/**
+	 * @return the rating at position @k
+	 */
+	float value ( int k )
+	{
+		return values.get(k);
+	}
+
+	/**
+	 * @return a read-only view of the row offsets
+	 */
+	IntBuffer rowPtrBuffer ()
+	{
+		return rowPtr.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a read-only view of the column indices
+	 */
+	IntBuffer colIdxBuffer ()
+	{
+		return colIdx.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a read-only view of the ratings
+	 */
+	FloatBuffer valueBuffer ()
+	{
+		return values.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return an iterator over the external ids, according to @colIndex, of the columns present in @row
+	 */
+	Iterable<Integer> rowIds (	final int row,
+								final IdIndex colIndex )
+	{
+		return new Iterable<Integer>() {
+			public Iterator<Integer> iterator ()	{
+				return new Iterator<Integer>() {
+					private int next = rowPtr.get(row);
+					private final int end = rowPtr.get(row + 1);
+
+					public boolean hasNext ()	{
+						return next < end;
+					}
+
+					public Integer next ()	{
+						if (next >= end)
+							throw new NoSuchElementException();
+						return colIndex.idAt(colIdx.get(next++));
+					}
+
+					public void remove ()	{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,167 @@
+package recommender;
+
+import java.util.Arrays;
+
+/**
+ * Mutable rows of ratings, sorted by column, on top of a read-only RatingMatrix. A row is read from the
+ * matrix until it is first modified, at which point it is copied out into its own growable arrays, so only
+ * the rows that actually change cost any memory. Rows can also be appended past the rows of the matrix.
+ * Not thread-safe: modifications must not run concurrently with reads.
+ */
+final class RatingRows {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final RatingMatrix matrix;
+	private int[][] cols;
+	private double[][] values;
+	private int[] lengths;
+	private int numRows;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	RatingRows ( RatingMatrix matrix )
+	{
+		this.matrix = matrix;
+		numRows = matrix.numRows();
+		cols = new int[numRows][];
+		values = new double[numRows][];
+		lengths = new int[numRows];
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	int numRows ()
+	{
+		return numRows;
+	}
+
+	/**
+	 * Appends an empty row.
+	 * @return the index of the new row
+	 */
+	int addRow ()
+	{
+		if (numRows == cols.length)	{
+			int capacity = Math.max(4, numRows + (numRows >> 1));
+			cols = Arrays.copyOf(cols, capacity);
+			values = Arrays.copyOf(values, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		cols[numRows] = new int[0];
+		values[numRows] = new double[0];
+		lengths[numRows] = 0;
+		return numRows++;
+	}
+
+	/**
+	 * @return the number of ratings in @row
+	 */
+	int rowLength ( int row )
+	{
+		return cols[row] == null ? matrix.rowLength(row) : lengths[row];
+	}
+
+	/**
+	 * @return the column of the k-th rating of @row, in order of increasing column
+	 */
+	int col (	int row,
+				int k )
+	{
+		return cols[row] == null ? matrix.col(matrix.rowStart(row) + k) : cols[row][k];
+	}
+
+	/**
+	 * @return the k-th rating of @row
+	 */
+	double value (	int row,
+					int k )
+	{
+		return cols[row] == null ? matrix.value(matrix.rowStart(row) + k) : values[row][k];
+	}
+
+	/**
+	 * @return the position of (@row, @col) within @row, or -1 if it holds no rating
+	 */
+	int find (	int row,
+				int col )
+	{
+		if (cols[row] == null)	{
+			int k = matrix.find(row, col);
+			return k < 0 ? -1 : k - matrix.rowStart(row);
+		}
+		int k = Arrays.binarySearch(cols[row], 0, lengths[row], col);
+		return k < 0 ? -1 : k;
+	}
+
+	/**
+	 * Sets the rating (@row, @col) to @value, inserting it if absent.
+	 */
+	void set (	int row,
+				int col,
+				double value )
+	{
+		copyOut(row);
+		int length = lengths[row];
+		int k = Arrays.binarySearch(cols[row], 0, length, col);
+		if (k >= 0)	{
+			values[row][k] = value;
+			return;
+		}
+
+		k = -k - 1;
+		if (length == cols[row].length)	{
+			int capacity = Math.max(4, length + (length >> 1));
+			cols[row] = Arrays.copyOf(cols[row], capacity);
+			values[row] = Arrays.copyOf(values[row], capacity);
+		}
+		System.arraycopy(cols[row], k, cols[row], k + 1, length - k);
+		System.arraycopy(values[row], k, values[row], k + 1, length - k);
+		cols[row][k] = col;
+		values[row][k] = value;
+		lengths[row]++;
+	}
+
+	/**
+	 * Removes the rating (@row, @col), if present.
+	 */
+	void remove (	int row,
+					int col )
+	{
+		copyOut(row);
+		int length = lengths[row];
+		int k = Arrays.binarySearch(cols[row], 0, length, col);
+		if (k < 0)
+			return;
+		System.arraycopy(cols[row], k + 1, cols[row], k, length - k - 1);
+		System.arraycopy(values[row], k + 1, values[row], k, length - k - 1);
+		lengths[row]--;
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Copies @row out of the matrix, unless already done.
+	 */
+	private void copyOut ( int row )
+	{
+		if (cols[row] != null)
+			return;
+		int start = matrix.rowStart(row), length = matrix.rowLength(row);
+		cols[row] = new int[length];
+		values[row] = new double[length];
+		for (int k = 0; k < length; k++)	{
+			cols[row][k] = matrix.col(start + k);
+			values[row][k] = matrix.value(start + k);
+		}
+		lengths[row] = length;
+	}
+}
@@ -0,0 +1,82 @@
+package recommender;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A read-only view of the training ratings of a DAO, either raw or centered by subtracting the user or
+ * item mean rating. Centered ratings are computed on access from the means, so creating a view costs
+ * nothing and any number of views can be used at the same time, from any number of threads, without
+ * modifying the DAO.
+ */
+public final class RatingView {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final DAO dao;
+	private final CenteredMatrix byUser;
+	private final CenteredMatrix byItem;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the rating associated with (@user, @item) in this view of the training data set. If @user has not
+	 * rated @item, 0 is returned
+	 *
+	 * @throws IllegalArgumentException if @user is not present in the training data
+	 */
+	public double getRating (	int user,
+								int item )
+	{
+		int u = dao.trainUserIndex(user);
+		int i = dao.trainItems().indexOf(item);
+		int k = i >= 0 ? byUser.find(u, i) : -1;
+		return k >= 0 ? byUser.value(u, k) : 0;
+	}
+
+	/**
+	 * @return true if (@user, @item) has a rating in the training data set, false otherwise
+	 */
+	public boolean containsRating (	int user,
+									int item )
+	{
+		return dao.containsTrainRating(user, item);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param userShift the value subtracted from every rating of each user, by dense user index
+	 * @param itemShift the value subtracted from every rating of each item, by dense item index
+	 */
+	RatingView (	DAO dao,
+					DoubleBuffer userShift,
+					DoubleBuffer itemShift )
+	{
+		this.dao = dao;
+		byUser = new CenteredMatrix(dao.trainMatrix(), userShift, itemShift);
+		byItem = new CenteredMatrix(dao.transposedTrainMatrix(), itemShift, userShift);
+	}
+
+	/**
+	 * @return the ratings of this view, user-major over dense user and item indices
+	 */
+	CenteredMatrix byUser ()
+	{
+		return byUser;
+	}
+
+	/**
+	 * @return the ratings of this view, item-major over dense item and user indices
+	 */
+	CenteredMatrix byItem ()
+	{
+		return byItem;
+	}
+}
@@ -0,0 +1,234 @@
+package recommender;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A closed-loop load generator for RecommenderServer: each of a number of client threads sends a request,
+ * reads the whole response and sends the next one, for a fixed time. The requests cycle through the (user, item)
+ * pairs of a rating file, such as the test set the server was trained for, and ask for a prediction or a top-N
+ * list. Once done, it reports the requests made, the errors, the QPS and the latency percentiles as seen by the
+ * clients, which include the network and HTTP overhead the server's own metrics do not.
+ *
+ * The arguments are name=value pairs:
+ * <pre>
+ * url=URL            the server, such as http://localhost:8080 (required)
+ * pairs=FILE         tab-separated user and item lines, such as data/u1.test (required)
+ * mode=MODE          predict or recommend (default predict)
+ * threads=N          the number of client threads, that is, the requests in flight (default 16)
+ * seconds=N          how long to measure (default 10)
+ * warmup=N           how long to send requests before measuring, in seconds (default 2)
+ * items=N            the items per predict request, taken from consecutive pairs of one user (default 1)
+ * n=N                the length of the top-N lists asked for (default 10)
+ * </pre>
+ */
+public final class RecommenderLoadGenerator {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final String[] paths;
+	private final int NUM_THREADS;
+	private final LatencyHistogram latency;
+	private final AtomicLong errors;
+	private final AtomicLong next;
+	private volatile boolean measuring;
+	private volatile boolean running;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param url The server, such as http://localhost:8080
+	 *
+	 * @param pairsFile The file of tab-separated user and item lines to build the requests from
+	 *
+	 * @param predict If true, asks for predictions, else for top-N lists
+	 *
+	 * @param ITEMS_PER_REQUEST The items per predict request, taken from consecutive lines of the same user
+	 *
+	 * @param N The length of the top-N lists asked for
+	 *
+	 * @param NUM_THREADS The number of client threads
+	 *
+	 * @throws IOException if @pairsFile cannot be read
+	 */
+	public RecommenderLoadGenerator (	String url,
+										String pairsFile,
+										boolean predict,
+										int ITEMS_PER_REQUEST,
+										int N,
+										int NUM_THREADS )
+			throws IOException
+	{
+		this.NUM_THREADS = Math.max(1, NUM_THREADS);
+		paths = buildPaths(url, pairsFile, predict, Math.max(1, ITEMS_PER_REQUEST), N);
+		if (paths.length == 0)
+			throw new IllegalArgumentException(pairsFile + " holds no user and item pairs.");
+		latency = new LatencyHistogram();
+		errors = new AtomicLong();
+		next = new AtomicLong();
+	}
+
+	/**
+	 * Sends requests for @warmupSeconds, then for @seconds while measuring, and prints the results.
+	 */
+	public void run (	int warmupSeconds,
+						int seconds )
+			throws InterruptedException
+	{
+		Thread[] clients = new Thread[NUM_THREADS];
+		running = true;
+		for (int t = 0; t < NUM_THREADS; t++)	{
+			clients[t] = new Thread(new Runnable() {
+				public void run ()	{
+					runClient();
+				}
+			}, "load-" + t);
+			clients[t].setDaemon(true);
+			clients[t].start();
+		}
+
+		Thread.sleep(warmupSeconds * 1000L);
+		latency.reset();
+		errors.set(0);
+		measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		measuring = false;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		running = false;
+		for (Thread client : clients)
+			client.join();
+
+		System.out.printf("%d threads, %.1f s: %d requests, %d errors, %.0f QPS\n",
+				NUM_THREADS, elapsed, latency.count(), errors.get(), latency.count() / elapsed);
+		System.out.printf("latency (us): mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f\n",
+				latency.mean() / 1e3, latency.percentile(50) / 1e3, latency.percentile(90) / 1e3,
+				latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+	}
+
+	public static void main ( String[] args )
+			throws IOException, InterruptedException
+	{
+		Map<String, String> options = CommandLine.parse(args);
+		if (!options.containsKey("url") || !options.containsKey("pairs"))
+			throw new IllegalArgumentException("Usage: RecommenderLoadGenerator url=URL pairs=FILE [mode=predict|recommend] "
+					+ "[threads=N] [seconds=N] [warmup=N] [items=N] [n=N]");
+
+		String mode = CommandLine.value(options, "mode", "predict");
+		if (!mode.equals("predict") && !mode.equals("recommend"))
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		new RecommenderLoadGenerator(options.get("url"), options.get("pairs"), mode.equals("predict"),
+				Integer.parseInt(CommandLine.value(options, "items", "1")),
+				Integer.parseInt(CommandLine.value(options, "n", "10")),
+				Integer.parseInt(CommandLine.value(options, "threads", "16")))
+			.run(Integer.parseInt(CommandLine.value(options, "warmup", "2")), Integer.parseInt(CommandLine.value(options, "seconds", "10")));
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Sends requests until the run ends, each for the next path in turn.
+	 */
+	private void runClient ()
+	{
+		byte[] buffer = new byte[8192];
+		while (running)	{
+			String path = paths[(int) (next.getAndIncrement() % paths.length)];
+			long start = System.nanoTime();
+			boolean ok = request(path, buffer);
+			long nanos = System.nanoTime() - start;
+			if (!measuring)
+				continue;
+			if (ok)
+				latency.record(nanos);
+			else
+				errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends a GET for @url and reads the whole response, so the connection is kept alive for the next one.
+	 * @return whether the server answered with 200
+	 */
+	private static boolean request (	String url,
+										byte[] buffer )
+	{
+		HttpURLConnection connection = null;
+		try	{
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			int status = connection.getResponseCode();
+			InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null)	{
+				while (in.read(buffer) >= 0)
+					;
+				in.close();
+			}
+			return status == 200;
+		} catch (IOException e)	{
+			if (connection != null)
+				connection.disconnect();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the request URLs: one per user and item pair of @pairsFile for top-N lists, or one per
+	 * @ITEMS_PER_REQUEST consecutive pairs of the same user for predictions
+	 */
+	private static String[] buildPaths (	String url,
+											String pairsFile,
+											boolean predict,
+											int ITEMS_PER_REQUEST,
+											int N )
+			throws IOException
+	{
+		String base = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		List<String> paths = new ArrayList<String>();
+		StringBuilder items = new StringBuilder();
+		int user = 0, numItems = 0;
+
+		BufferedReader in = new BufferedReader(new FileReader(pairsFile));
+		try	{
+			String line;
+			while ((line = in.readLine()) != null)	{
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length < 2)
+					continue;
+				int u = Integer.parseInt(fields[0]);
+				if (!predict)	{
+					paths.add(base + "/recommend?user=" + u + "&n=" + N);
+					continue;
+				}
+				if (numItems > 0 && (u != user || numItems == ITEMS_PER_REQUEST))	{
+					paths.add(predictPath(base, user, items, numItems));
+					items.setLength(0);
+					numItems = 0;
+				}
+				user = u;
+				items.append(numItems++ == 0 ? "" : ",").append(Integer.parseInt(fields[1]));
+			}
+			if (numItems > 0)
+				paths.add(predictPath(base, user, items, numItems));
+		} finally	{
+			in.close();
+		}
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	private static String predictPath (	String base,
+										int user,
+										CharSequence items,
+										int numItems )
+	{
+		return base + "/predict?user=" + user + (numItems == 1 ? "&item=" : "&items=") + items;
+	}
+}
@@ -0,0 +1,366 @@
+package recommender;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+/**
+ * The metrics a recommender records while it trains and serves: the time spent in each phase of training
+ * and evaluation, gauges such as similarity pairs per second, the RMSE and throughput of each training epoch,
+ * latency histograms of predict() and recommend(), and the estimated heap footprint of the trained model.
+ * Every recommender owns one, returned by BaseRecommender.getMetrics(). The metrics can be read directly,
+ * exported as JSON with toJson(), or registered as an MXBean on the platform MBean server with register().
+ *
+ * All methods are thread-safe. Latencies are recorded lock-free, since they are recorded on the prediction
+ * path; the training metrics are recorded a few times per phase or epoch and are simply synchronized.
+ */
+public final class RecommenderMetrics implements RecommenderMetricsMXBean {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	private final String name;
+	private final Map<String, Long> phases;
+	private final Map<String, Double> gauges;
+	private final List<Epoch> epochs;
+	private final ConcurrentMap<String, LatencyHistogram> latencies;
+	private volatile long modelBytes;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param name the name of the recommender, such as its class name
+	 */
+	public RecommenderMetrics ( String name )
+	{
+		this.name = name;
+		phases = new LinkedHashMap<String, Long>();
+		gauges = new LinkedHashMap<String, Double>();
+		epochs = new ArrayList<Epoch>();
+		latencies = new ConcurrentSkipListMap<String, LatencyHistogram>();
+	}
+
+	/**
+	 * @return the name of the recommender
+	 */
+	public String name ()
+	{
+		return name;
+	}
+
+	/**
+	 * Records that the phase @phase started at @start, as returned by System.nanoTime(), and ends now. The
+	 * time is added to that of earlier runs of @phase, so a phase run once per feature or per block is summed.
+	 * @return the end of the phase, which is the start of the next one
+	 */
+	public long endPhase (	String phase,
+							long start )
+	{
+		long end = System.nanoTime();
+		addPhase(phase, end - start);
+		return end;
+	}
+
+	/**
+	 * Adds @nanos to the time spent in @phase.
+	 */
+	public synchronized void addPhase (	String phase,
+										long nanos )
+	{
+		Long total = phases.get(phase);
+		phases.put(phase, (total == null ? 0L : total) + nanos);
+	}
+
+	/**
+	 * @return the time spent in @phase in nanoseconds, 0 if it never ran
+	 */
+	public synchronized long phaseNanos ( String phase )
+	{
+		Long total = phases.get(phase);
+		return total == null ? 0L : total;
+	}
+
+	/**
+	 * Sets the gauge @gauge to @value.
+	 */
+	public synchronized void setGauge (	String gauge,
+										double value )
+	{
+		gauges.put(gauge, value);
+	}
+
+	/**
+	 * @return the value of @gauge, NaN if it was never set
+	 */
+	public synchronized double gauge ( String gauge )
+	{
+		Double value = gauges.get(gauge);
+		return value == null ? Double.NaN : value;
+	}
+
+	/**
+	 * Records a training epoch, a pass of @numRatings ratings over the training data set that took @nanos
+	 * nanoseconds and left the training RMSE at @rmse.
+	 * @param feature the feature being trained, or 0 for models without features
+	 */
+	public synchronized void addEpoch (	int feature,
+										int epoch,
+										double rmse,
+										long nanos,
+										long numRatings )
+	{
+		epochs.add(new Epoch(feature, epoch, rmse, nanos, numRatings));
+	}
+
+	/**
+	 * @return the number of epochs recorded
+	 */
+	public synchronized int numEpochs ()
+	{
+		return epochs.size();
+	}
+
+	/**
+	 * @return the latency histogram named @histogram, created empty on first use
+	 */
+	public LatencyHistogram latency ( String histogram )
+	{
+		LatencyHistogram latency = latencies.get(histogram);
+		if (latency == null)	{
+			LatencyHistogram created = new LatencyHistogram();
+			latency = latencies.putIfAbsent(histogram, created);
+			if (latency == null)
+				latency = created;
+		}
+		return latency;
+	}
+
+	/**
+	 * Sets the estimated heap footprint of the trained model to @bytes.
+	 */
+	public void setModelBytes ( long bytes )
+	{
+		modelBytes = bytes;
+	}
+
+	/**
+	 * Forgets the phases, gauges and epochs of an earlier training, before the model is trained again. The
+	 * latencies are kept; see resetLatencies().
+	 */
+	public synchronized void resetTraining ()
+	{
+		phases.clear();
+		gauges.clear();
+		epochs.clear();
+		modelBytes = 0;
+	}
+
+	/**
+	 * Registers these metrics on the platform MBean server as recommender:type=Recommender,name=@name,
+	 * replacing the metrics registered under the same name before, such as those of an earlier model.
+	 * @return the name the metrics are registered under
+	 * @throws JMException if the metrics cannot be registered
+	 */
+	public ObjectName register ( String name )
+			throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("recommender:type=Recommender,name=" + ObjectName.quote(name));
+		synchronized (RecommenderMetrics.class)	{
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+		}
+		return objectName;
+	}
+
+	/**
+	 * @return all the metrics as a JSON object of the form
+	 * <pre>
+	 * {"recommender":"...","modelBytes":0,"phaseNanos":{"phase":0,...},"gauges":{"gauge":0.0,...},
+	 *  "epochs":[{"feature":0,"epoch":0,"rmse":0.0,"nanos":0,"ratingsPerSecond":0.0},...],
+	 *  "latencies":{"predict":{"count":0,"meanNanos":0.0,"p50":0,"p90":0,"p99":0,"p999":0,"max":0},...}}
+	 * </pre>
+	 * where NaN and infinite values are written as null.
+	 */
+	public String toJson ()
+	{
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"recommender\":");
+		appendString(json, name);
+		json.append(",\"modelBytes\":").append(modelBytes);
+		synchronized (this)	{
+			json.append(",\"phaseNanos\":{");
+			String separator = "";
+			for (Map.Entry<String, Long> phase : phases.entrySet())	{
+				appendString(json.append(separator), phase.getKey());
+				json.append(':').append(phase.getValue());
+				separator = ",";
+			}
+			json.append("},\"gauges\":{");
+			separator = "";
+			for (Map.Entry<String, Double> gauge : gauges.entrySet())	{
+				appendString(json.append(separator), gauge.getKey());
+				appendNumber(json.append(':'), gauge.getValue());
+				separator = ",";
+			}
+			json.append("},\"epochs\":[");
+			separator = "";
+			for (Epoch epoch : epochs)	{
+				json.append(separator).append("{\"feature\":").append(epoch.feature).append(",\"epoch\":").append(epoch.epoch);
+				appendNumber(json.append(",\"rmse\":"), epoch.rmse);
+				json.append(",\"nanos\":").append(epoch.nanos);
+				appendNumber(json.append(",\"ratingsPerSecond\":"), epoch.ratingsPerSecond());
+				json.append('}');
+				separator = ",";
+			}
+		}
+		json.append("],\"latencies\":{");
+		String separator = "";
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet())	{
+			LatencyHistogram latency = entry.getValue();
+			appendString(json.append(separator), entry.getKey());
+			json.append(":{\"count\":").append(latency.count());
+			appendNumber(json.append(",\"meanNanos\":"), latency.mean());
+			for (int p = 0; p < PERCENTILES.length; p++)
+				json.append(",\"").append(PERCENTILE_NAMES[p]).append("\":").append(latency.percentile(PERCENTILES[p]));
+			json.append(",\"max\":").append(latency.max()).append('}');
+			separator = ",";
+		}
+		return json.append("}}").toString();
+	}
+
+	public String toString ()
+	{
+		return toJson();
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										MXBean attributes and operations								 */
+	/*********************************************************************************************************/
+
+	public synchronized Map<String, Long> getPhaseNanos ()
+	{
+		return new LinkedHashMap<String, Long>(phases);
+	}
+
+	public synchronized Map<String, Double> getGauges ()
+	{
+		return new LinkedHashMap<String, Double>(gauges);
+	}
+
+	public long getModelBytes ()
+	{
+		return modelBytes;
+	}
+
+	public synchronized double[] getEpochRmse ()
+	{
+		double[] rmse = new double[epochs.size()];
+		for (int e = 0; e < rmse.length; e++)
+			rmse[e] = epochs.get(e).rmse;
+		return rmse;
+	}
+
+	public synchronized double[] getEpochRatingsPerSecond ()
+	{
+		double[] throughput = new double[epochs.size()];
+		for (int e = 0; e < throughput.length; e++)
+			throughput[e] = epochs.get(e).ratingsPerSecond();
+		return throughput;
+	}
+
+	public Map<String, Double> getLatencies ()
+	{
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet())	{
+			String histogram = entry.getKey();
+			LatencyHistogram latency = entry.getValue();
+			values.put(histogram + ".count", (double) latency.count());
+			values.put(histogram + ".mean", latency.mean() / 1e3);
+			for (int p = 0; p < PERCENTILES.length; p++)
+				values.put(histogram + "." + PERCENTILE_NAMES[p], latency.percentile(PERCENTILES[p]) / 1e3);
+			values.put(histogram + ".max", latency.max() / 1e3);
+		}
+		return values;
+	}
+
+	public String getJson ()
+	{
+		return toJson();
+	}
+
+	public void resetLatencies ()
+	{
+		for (LatencyHistogram latency : latencies.values())
+			latency.reset();
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * A training epoch, as recorded by addEpoch().
+	 */
+	private static final class Epoch {
+		final int feature;
+		final int epoch;
+		final double rmse;
+		final long nanos;
+		final long numRatings;
+
+		Epoch (	int feature,
+				int epoch,
+				double rmse,
+				long nanos,
+				long numRatings )
+		{
+			this.feature = feature;
+			this.epoch = epoch;
+			this.rmse = rmse;
+			this.nanos = nanos;
+			this.numRatings = numRatings;
+		}
+
+		double ratingsPerSecond ()
+		{
+			return nanos > 0 ? numRatings * 1e9 / nanos : Double.NaN;
+		}
+	}
+
+	private static void appendString (	StringBuilder json,
+										String value )
+	{
+		json.append('"');
+		for (int k = 0; k < value.length(); k++)	{
+			char c = value.charAt(k);
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < 0x20)
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+		json.append('"');
+	}
+
+	private static void appendNumber (	StringBuilder json,
+										double value )
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			json.append("null");
+		else
+			json.append(value);
+	}
+}
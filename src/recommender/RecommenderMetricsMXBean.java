@@ -0,0 +1,52 @@
+package recommender;
+
+import java.util.Map;
+
+/**
+ * The management interface through which the metrics of a recommender are exported over JMX, once
+ * registered with RecommenderMetrics.register(). Times are in nanoseconds unless named otherwise.
+ */
+public interface RecommenderMetricsMXBean {
+
+	/**
+	 * @return the time spent in each phase of training and evaluation, by phase name, in the order the phases
+	 * were first recorded
+	 */
+	Map<String, Long> getPhaseNanos ();
+
+	/**
+	 * @return the last value of each gauge, by name
+	 */
+	Map<String, Double> getGauges ();
+
+	/**
+	 * @return the estimated heap footprint of the trained model in bytes
+	 */
+	long getModelBytes ();
+
+	/**
+	 * @return the training RMSE after each epoch, in order, for recommenders trained in epochs
+	 */
+	double[] getEpochRmse ();
+
+	/**
+	 * @return the ratings processed per second in each epoch, aligned with getEpochRmse()
+	 */
+	double[] getEpochRatingsPerSecond ();
+
+	/**
+	 * @return the count, mean, 50th, 90th, 99th and 99.9th percentiles and maximum of each latency histogram,
+	 * keyed as name.count, name.mean, name.p50, name.p90, name.p99, name.p999 and name.max, in microseconds
+	 */
+	Map<String, Double> getLatencies ();
+
+	/**
+	 * @return all the metrics as a JSON object, as RecommenderMetrics.toJson() returns them
+	 */
+	String getJson ();
+
+	/**
+	 * Forgets all the recorded latencies, keeping the training metrics.
+	 */
+	void resetLatencies ();
+}
@@ -0,0 +1,651 @@
+package recommender;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A small HTTP server, on the JDK's built-in HttpServer, that serves the predictions and recommendations of
+ * a RecommenderService. It answers in JSON on three endpoints:
+ * <pre>
+ * GET /predict?user=U&amp;item=I          {"user":U,"item":I,"prediction":3.141593}
+ * GET /predict?user=U&amp;items=I,J,...   {"user":U,"items":[I,J,...],"predictions":[3.141593,null,...]}
+ * GET /recommend?user=U&amp;n=N           {"user":U,"items":[I,...],"scores":[4.5,...]}
+ * GET /metrics                          {"server":{...},"recommender":{...}}
+ * </pre>
+ * where null stands for a prediction that cannot be made.
+ *
+ * Predictions are not made on the connection threads. Each request is queued, and a few worker threads take
+ * the queued requests in micro-batches: a worker waits for a first request, then takes every request that
+ * arrives within MAX_DELAY_MICROS, up to MAX_BATCH. The requests of a batch are grouped by user and each
+ * user's items are predicted with a single call to the batch predict() of one snapshot of the model, which
+ * shares the per-user work, such as looking up the user's feature vector or prediction row, across all the
+ * requests of that user. Under light load a batch is a single request and the delay is never waited for.
+ * Recommendations, which score every item for one user anyway, are computed directly on the connection threads.
+ *
+ * Connections are handled by a virtual thread per request when the JVM has them (Java 21 and later), and by
+ * a bounded pool of platform threads otherwise, so that a request blocked on its batch costs little. Under
+ * overload the server sheds load instead of queueing without end: a prediction that finds MAX_QUEUED requests
+ * already queued, or that is not made within TIMEOUT_MILLIS, is answered with 503 at once, and workers skip the
+ * requests that timed out. Without virtual threads, connections that find every platform thread busy and
+ * MAX_CONNECTION_THREADS more waiting are closed by the JDK's server without an answer. The server keeps its
+ * own metrics: the requests and QPS, the requests rejected and timed out, the batches and their mean size, and
+ * the latency of each endpoint, as measured inside the server.
+ *
+ * The JDK's server only sets TCP_NODELAY on its connections when the system property
+ * sun.net.httpserver.nodelay is true, which must be set before the first server is created, for instance with
+ * -Dsun.net.httpserver.nodelay=true. Otherwise each small response may wait about 40ms for the client's delayed
+ * ACK. main() sets it.
+ */
+public final class RecommenderServer {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private static final int MAX_ITEMS_PER_REQUEST = 1000;
+	private static final int DEFAULT_MAX_QUEUED = 1024;
+	private static final int DEFAULT_MAX_CONNECTION_THREADS = 256;
+	private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+	private final RecommenderService service;
+	private final HttpServer http;
+	private final ExecutorService connections;
+	private final boolean virtualThreads;
+	private final ExecutorService workers;
+	private final BlockingQueue<Prediction> queue;
+	private final RecommenderMetrics metrics;
+	private final LatencyHistogram predictLatency;
+	private final LatencyHistogram recommendLatency;
+	private final AtomicLong requests;
+	private final AtomicLong errors;
+	private final AtomicLong rejected;
+	private final AtomicLong timedOut;
+	private final AtomicLong batches;
+	private final AtomicLong batchedRequests;
+	private final int NUM_WORKERS;
+	private final int MAX_BATCH;
+	private final long MAX_DELAY_NANOS;
+	private final long TIMEOUT_NANOS;
+	private volatile long startNanos;
+	private volatile boolean running;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Binds the server to @address, with at most 1024 queued predictions, 256 platform threads for connections
+	 * and a timeout of one second per prediction; it serves nothing until started. See the constructor with all
+	 * the parameters.
+	 *
+	 * @throws IOException if the server cannot be bound to @address
+	 */
+	public RecommenderServer (	RecommenderService service,
+								InetSocketAddress address,
+								int NUM_WORKERS,
+								int MAX_BATCH,
+								long MAX_DELAY_MICROS )
+			throws IOException
+	{
+		this(service, address, NUM_WORKERS, MAX_BATCH, MAX_DELAY_MICROS, DEFAULT_MAX_QUEUED, DEFAULT_MAX_CONNECTION_THREADS,
+				DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Binds the server to @address; it serves nothing until started.
+	 *
+	 * @param service The service whose model is served. Swapping its model swaps the model the server serves.
+	 *
+	 * @param NUM_WORKERS The number of threads predicting the batches. One or two per processor is enough,
+	 * since they never block while predicting.
+	 *
+	 * @param MAX_BATCH The most requests predicted in one batch. 64 to 256 is a good start.
+	 *
+	 * @param MAX_DELAY_MICROS The longest a worker waits for more requests once it has one, in microseconds.
+	 * 0 only takes the requests already queued, which batches under load without adding any latency; a few
+	 * hundred microseconds make larger batches at the cost of that much more latency.
+	 *
+	 * @param MAX_QUEUED The most predictions waiting for a worker. Predictions beyond it are answered with 503.
+	 *
+	 * @param MAX_CONNECTION_THREADS Without virtual threads, the most platform threads handling connections,
+	 * and the most connections waiting for one of them. Ignored with virtual threads.
+	 *
+	 * @param TIMEOUT_MILLIS The longest a prediction waits to be made, in milliseconds, after which it is
+	 * answered with 503.
+	 *
+	 * @throws IOException if the server cannot be bound to @address
+	 */
+	public RecommenderServer (	RecommenderService service,
+								InetSocketAddress address,
+								int NUM_WORKERS,
+								int MAX_BATCH,
+								long MAX_DELAY_MICROS,
+								int MAX_QUEUED,
+								int MAX_CONNECTION_THREADS,
+								long TIMEOUT_MILLIS )
+			throws IOException
+	{
+		this.service = service;
+		this.NUM_WORKERS = Math.max(1, NUM_WORKERS);
+		this.MAX_BATCH = Math.max(1, MAX_BATCH);
+		MAX_DELAY_NANOS = Math.max(0, MAX_DELAY_MICROS) * 1000;
+		TIMEOUT_NANOS = Math.max(1, TIMEOUT_MILLIS) * 1000000;
+
+		metrics = new RecommenderMetrics("RecommenderServer");
+		predictLatency = metrics.latency("http.predict");
+		recommendLatency = metrics.latency("http.recommend");
+		requests = new AtomicLong();
+		errors = new AtomicLong();
+		rejected = new AtomicLong();
+		timedOut = new AtomicLong();
+		batches = new AtomicLong();
+		batchedRequests = new AtomicLong();
+		queue = new ArrayBlockingQueue<Prediction>(Math.max(1, MAX_QUEUED));
+
+		ExecutorService virtual = newVirtualThreadExecutor();
+		virtualThreads = virtual != null;
+		if (virtual != null)
+			connections = virtual;
+		else	{
+			// A connection rejected when every thread is busy and the hand-off queue is full is closed by the JDK
+			int threads = Math.max(1, MAX_CONNECTION_THREADS);
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(threads), daemonThreads("recommender-http"));
+			pool.allowCoreThreadTimeOut(true);
+			connections = pool;
+		}
+		workers = Executors.newFixedThreadPool(this.NUM_WORKERS, daemonThreads("recommender-batch"));
+
+		http = HttpServer.create(address, 1024);
+		http.setExecutor(connections);
+		http.createContext("/predict", new HttpHandler() {
+			public void handle ( HttpExchange exchange )
+					throws IOException	{
+				serve(exchange, true);
+			}
+		});
+		http.createContext("/recommend", new HttpHandler() {
+			public void handle ( HttpExchange exchange )
+					throws IOException	{
+				serve(exchange, false);
+			}
+		});
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle ( HttpExchange exchange )
+					throws IOException	{
+				respond(exchange, 200, toJson());
+			}
+		});
+	}
+
+	/**
+	 * Starts the worker threads and starts accepting connections.
+	 */
+	public void start ()
+	{
+		running = true;
+		startNanos = System.nanoTime();
+		for (int w = 0; w < NUM_WORKERS; w++)
+			workers.execute(new Runnable() {
+				public void run ()	{
+					runWorker();
+				}
+			});
+		http.start();
+	}
+
+	/**
+	 * Stops accepting connections, waits up to @delaySeconds for the requests in progress and stops the
+	 * threads. Requests still queued then are answered with an error.
+	 */
+	public void stop ( int delaySeconds )
+	{
+		http.stop(Math.max(0, delaySeconds));
+		running = false;
+		workers.shutdownNow();
+		List<Prediction> pending = new ArrayList<Prediction>();
+		queue.drainTo(pending);
+		for (Prediction prediction : pending)
+			prediction.fail();
+		connections.shutdownNow();
+	}
+
+	/**
+	 * @return the port the server listens on, useful when bound to port 0
+	 */
+	public int port ()
+	{
+		return http.getAddress().getPort();
+	}
+
+	/**
+	 * @return whether connections are handled by virtual threads
+	 */
+	public boolean usesVirtualThreads ()
+	{
+		return virtualThreads;
+	}
+
+	/**
+	 * @return the server's metrics: the "http.predict" and "http.recommend" latency histograms, and the
+	 * gauges "requests", "errors", "rejected", "timedOut", "qps", "batches" and "meanBatchSize" as of the last
+	 * call to toJson()
+	 */
+	public RecommenderMetrics metrics ()
+	{
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics of the server and of the recommender being served, as a JSON object
+	 */
+	public String toJson ()
+	{
+		double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+		long numBatches = batches.get();
+		metrics.setGauge("uptimeSeconds", seconds);
+		metrics.setGauge("requests", requests.get());
+		metrics.setGauge("errors", errors.get());
+		metrics.setGauge("rejected", rejected.get());
+		metrics.setGauge("timedOut", timedOut.get());
+		metrics.setGauge("qps", requests.get() / seconds);
+		metrics.setGauge("batches", numBatches);
+		metrics.setGauge("meanBatchSize", numBatches == 0 ? Double.NaN : (double) batchedRequests.get() / numBatches);
+		metrics.setGauge("modelVersion", service.snapshot().version());
+		return "{\"server\":" + metrics.toJson() + ",\"recommender\":" + service.snapshot().recommender().getMetrics().toJson() + "}";
+	}
+
+	/**
+	 * Trains a recommender on a training and test data set and serves it until the process is killed. The
+	 * arguments are name=value pairs:
+	 * <pre>
+	 * train=FILE, test=FILE   the data set, as tab-separated user, item and rating lines (required)
+	 * dao=FILE                a binary data set written by DAO.save(), instead of train and test
+	 * algorithm=NAME          base, uu, uu-topk, ii, ii-topk, slopeone, slopeone-lazy or funksvd (default funksvd)
+	 * port=PORT               the port to listen on (default 8080)
+	 * workers=N               the threads predicting batches (default the number of processors)
+	 * batch=N                 the most requests per batch (default 128)
+	 * delayMicros=N           the longest wait for more requests per batch (default 0)
+	 * queue=N                 the most predictions waiting for a worker (default 1024)
+	 * connectionThreads=N     the most platform threads for connections, without virtual threads (default 256)
+	 * timeoutMillis=N         the longest a prediction waits to be made (default 1000)
+	 * </pre>
+	 * Unless set on the command line, sun.net.httpserver.nodelay is set to true.
+	 * @throws IOException if the data set cannot be read or the port cannot be bound
+	 */
+	public static void main ( String[] args )
+			throws IOException
+	{
+		Map<String, String> options = CommandLine.parse(args);
+		// Read by the JDK once, when the first server is created
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		DAO dao = CommandLine.loadDAO(options);
+		String algorithm = CommandLine.value(options, "algorithm", "funksvd");
+		BaseRecommender recommender = CommandLine.createRecommender(algorithm, dao);
+		long start = System.nanoTime();
+		recommender.train();
+		System.out.printf("Trained %s in %.1f s\n", algorithm, (System.nanoTime() - start) / 1e9);
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		final RecommenderServer server = new RecommenderServer(new RecommenderService(recommender),
+				new InetSocketAddress(Integer.parseInt(CommandLine.value(options, "port", "8080"))),
+				Integer.parseInt(CommandLine.value(options, "workers", String.valueOf(processors))),
+				Integer.parseInt(CommandLine.value(options, "batch", "128")),
+				Long.parseLong(CommandLine.value(options, "delayMicros", "0")),
+				Integer.parseInt(CommandLine.value(options, "queue", String.valueOf(DEFAULT_MAX_QUEUED))),
+				Integer.parseInt(CommandLine.value(options, "connectionThreads", String.valueOf(DEFAULT_MAX_CONNECTION_THREADS))),
+				Long.parseLong(CommandLine.value(options, "timeoutMillis", String.valueOf(DEFAULT_TIMEOUT_MILLIS))));
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run ()	{
+				server.stop(1);
+			}
+		});
+		System.out.printf("Serving on port %d with %s threads per request\n", server.port(), server.usesVirtualThreads() ? "virtual" : "platform");
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * A queued request for the predictions of one user, completed by a worker, or abandoned by its connection
+	 * once it times out.
+	 */
+	private static final class Prediction {
+		final int user;
+		final int[] items;
+		final double[] predictions;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean failed;
+		private volatile boolean abandoned;
+
+		Prediction (	int user,
+						int[] items )
+		{
+			this.user = user;
+			this.items = items;
+			predictions = new double[items.length];
+		}
+
+		void complete ()
+		{
+			done.countDown();
+		}
+
+		/**
+		 * Fails the request, unless it has already been completed.
+		 */
+		void fail ()
+		{
+			if (done.getCount() > 0)	{
+				failed = true;
+				done.countDown();
+			}
+		}
+
+		/**
+		 * @return whether nobody waits for the predictions any more
+		 */
+		boolean abandoned ()
+		{
+			return abandoned;
+		}
+
+		/**
+		 * Waits up to @timeoutNanos for the predictions, and abandons the request if they are not made by then.
+		 * @return whether the predictions were made
+		 */
+		boolean await ( long timeoutNanos )
+				throws InterruptedException
+		{
+			if (!done.await(timeoutNanos, TimeUnit.NANOSECONDS))	{
+				abandoned = true;
+				return false;
+			}
+			return !failed;
+		}
+	}
+
+	/**
+	 * Takes batches off the queue and predicts them, until the server stops. A batch that throws anything,
+	 * even an Error, fails its requests and the worker goes on with the next one, so that no queued request is
+	 * left waiting for a worker that died.
+	 */
+	private void runWorker ()
+	{
+		List<Prediction> batch = new ArrayList<Prediction>(MAX_BATCH);
+		while (running)	{
+			try	{
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - batch.size());
+				long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+				while (batch.size() < MAX_BATCH && MAX_DELAY_NANOS > 0)	{
+					Prediction next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+					queue.drainTo(batch, MAX_BATCH - batch.size());
+				}
+				predictBatch(batch);
+			} catch (InterruptedException e)	{
+				// Stopped; stop() fails whatever is still queued
+				return;
+			} catch (Throwable e)	{
+				// Any request of the batch not completed yet is failed below
+			} finally	{
+				for (Prediction prediction : batch)
+					prediction.fail();
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Predicts @batch with one snapshot of the model, with one batch predict() per user.
+	 */
+	private void predictBatch ( List<Prediction> batch )
+	{
+		// Requests that timed out while queued are not worth predicting any more
+		for (Iterator<Prediction> it = batch.iterator(); it.hasNext(); )
+			if (it.next().abandoned())
+				it.remove();
+		if (batch.isEmpty())
+			return;
+		batches.incrementAndGet();
+		batchedRequests.addAndGet(batch.size());
+		Collections.sort(batch, new Comparator<Prediction>() {
+			public int compare (	Prediction a,
+									Prediction b )	{
+				return a.user < b.user ? -1 : (a.user == b.user ? 0 : 1);
+			}
+		});
+
+		RecommenderSnapshot snapshot = service.snapshot();
+		for (int from = 0, to; from < batch.size(); from = to)	{
+			int user = batch.get(from).user, numItems = 0;
+			for (to = from; to < batch.size() && batch.get(to).user == user; to++)
+				numItems += batch.get(to).items.length;
+			try	{
+				if (to - from == 1)
+					snapshot.predict(user, batch.get(from).items, batch.get(from).predictions);
+				else	{
+					// The items of all the requests of @user, predicted at once and handed back to each request
+					int[] items = new int[numItems];
+					double[] predictions = new double[numItems];
+					for (int r = from, k = 0; r < to; k += batch.get(r++).items.length)
+						System.arraycopy(batch.get(r).items, 0, items, k, batch.get(r).items.length);
+					snapshot.predict(user, items, predictions);
+					for (int r = from, k = 0; r < to; k += batch.get(r++).items.length)
+						System.arraycopy(predictions, k, batch.get(r).predictions, 0, batch.get(r).items.length);
+				}
+				for (int r = from; r < to; r++)
+					batch.get(r).complete();
+			} catch (RuntimeException e)	{
+				for (int r = from; r < to; r++)
+					batch.get(r).fail();
+			}
+		}
+	}
+
+	/**
+	 * Answers a /predict request, if @predict, or else a /recommend request.
+	 */
+	private void serve (	HttpExchange exchange,
+							boolean predict )
+			throws IOException
+	{
+		long start = System.nanoTime();
+		requests.incrementAndGet();
+		try	{
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			int user = Integer.parseInt(CommandLine.required(query, "user"));
+			TextBuffer json = new TextBuffer(256);
+			json.append('{');
+			appendKey(json, "user").append(user);
+
+			if (predict)	{
+				boolean single = !query.containsKey("items");
+				Prediction prediction = new Prediction(user, single ? new int[] { Integer.parseInt(CommandLine.required(query, "item")) }
+														: parseIds(query.get("items")));
+				if (!queue.offer(prediction))	{
+					rejected.incrementAndGet();
+					errors.incrementAndGet();
+					respond(exchange, 503, "{\"error\":\"Too many predictions are queued.\"}");
+					return;
+				}
+				if (!prediction.await(TIMEOUT_NANOS))	{
+					if (prediction.abandoned())
+						timedOut.incrementAndGet();
+					errors.incrementAndGet();
+					respond(exchange, 503, prediction.abandoned() ? "{\"error\":\"The prediction timed out.\"}"
+											: "{\"error\":\"The prediction failed or the server is stopping.\"}");
+					return;
+				}
+				if (single)	{
+					appendKey(json.append(','), "item").append(prediction.items[0]);
+					appendPrediction(appendKey(json.append(','), "prediction"), prediction.predictions[0]);
+				} else	{
+					appendKey(json.append(','), "items").append('[');
+					for (int k = 0; k < prediction.items.length; k++)
+						(k == 0 ? json : json.append(',')).append(prediction.items[k]);
+					appendKey(json.append(']').append(','), "predictions").append('[');
+					for (int k = 0; k < prediction.predictions.length; k++)
+						appendPrediction(k == 0 ? json : json.append(','), prediction.predictions[k]);
+					json.append(']');
+				}
+			} else	{
+				int n = Integer.parseInt(CommandLine.value(query, "n", "10"));
+				if (n < 0 || n > MAX_ITEMS_PER_REQUEST)
+					throw new IllegalArgumentException("n must be between 0 and " + MAX_ITEMS_PER_REQUEST);
+				TopNList list = service.recommend(user, n, null);
+				appendKey(json.append(','), "items").append('[');
+				for (int k = 0; k < list.size(); k++)
+					(k == 0 ? json : json.append(',')).append(list.item(k));
+				appendKey(json.append(']').append(','), "scores").append('[');
+				for (int k = 0; k < list.size(); k++)
+					appendPrediction(k == 0 ? json : json.append(','), list.score(k));
+				json.append(']');
+			}
+			json.append('}');
+			respond(exchange, 200, json);
+			(predict ? predictLatency : recommendLatency).record(System.nanoTime() - start);
+		} catch (IllegalArgumentException e)	{
+			// Includes NumberFormatException, for ids that are not numbers
+			errors.incrementAndGet();
+			respond(exchange, 400, "{\"error\":\"" + printable(String.valueOf(e.getMessage())) + "\"}");
+		} catch (InterruptedException e)	{
+			Thread.currentThread().interrupt();
+			errors.incrementAndGet();
+			respond(exchange, 503, "{\"error\":\"Interrupted\"}");
+		} catch (RuntimeException e)	{
+			errors.incrementAndGet();
+			respond(exchange, 500, "{\"error\":\"" + printable(e.toString()) + "\"}");
+		}
+	}
+
+	private static TextBuffer appendKey (	TextBuffer json,
+											String key )
+	{
+		return appendText(json.append('"'), key).append('"').append(':');
+	}
+
+	/**
+	 * Appends @text, which must be ASCII.
+	 */
+	private static TextBuffer appendText (	TextBuffer json,
+											String text )
+	{
+		for (int k = 0; k < text.length(); k++)
+			json.append(text.charAt(k));
+		return json;
+	}
+
+	/**
+	 * Appends @prediction with 6 decimals, or null if it cannot be made.
+	 */
+	private static TextBuffer appendPrediction (	TextBuffer json,
+													double prediction )
+	{
+		if (Double.isNaN(prediction) || Double.isInfinite(prediction))
+			return appendText(json, "null");
+		return json.appendFixed6(prediction);
+	}
+
+	private static void respond (	HttpExchange exchange,
+									int status,
+									TextBuffer body )
+			throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length());
+		OutputStream out = exchange.getResponseBody();
+		try	{
+			body.writeTo(out);
+		} finally	{
+			out.close();
+		}
+	}
+
+	private static void respond (	HttpExchange exchange,
+									int status,
+									String body )
+			throws IOException
+	{
+		respond(exchange, status, appendText(new TextBuffer(body.length()), body));
+	}
+
+	/**
+	 * @return @message, which may quote the request, with anything that is not printable ASCII or would end a
+	 * JSON string replaced by '?'
+	 */
+	private static String printable ( String message )
+	{
+		char[] chars = message.toCharArray();
+		for (int k = 0; k < chars.length; k++)
+			if (chars[k] < ' ' || chars[k] > '~' || chars[k] == '"' || chars[k] == '\\')
+				chars[k] = '?';
+		return new String(chars);
+	}
+
+	/**
+	 * @return the name=value pairs of @rawQuery, decoded
+	 */
+	private static Map<String, String> parseQuery ( String rawQuery )
+			throws UnsupportedEncodingException
+	{
+		Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null)
+			return query;
+		for (String pair : rawQuery.split("&"))	{
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return query;
+	}
+
+	private static int[] parseIds ( String list )
+	{
+		String[] parts = list.split(",");
+		if (parts.length > MAX_ITEMS_PER_REQUEST)
+			throw new IllegalArgumentException("At most " + MAX_ITEMS_PER_REQUEST + " items can be predicted per request");
+		int[] ids = new int[parts.length];
+		for (int k = 0; k < parts.length; k++)
+			ids[k] = Integer.parseInt(parts[k].trim());
+		return ids;
+	}
+
+	/**
+	 * @return an executor that runs each task on a new virtual thread, or null before Java 21. It is looked up
+	 * reflectively, since the library is built for Java 7.
+	 */
+	private static ExecutorService newVirtualThreadExecutor ()
+	{
+		try	{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e)	{
+			// No such method before Java 19, and unsupported without --enable-preview on Java 19 and 20
+			return null;
+		}
+	}
+
+	private static ThreadFactory daemonThreads ( final String name )
+	{
+		final AtomicLong count = new AtomicLong();
+		return new ThreadFactory() {
+			public Thread newThread ( Runnable task )	{
+				Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,107 @@
+package recommender;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves predictions and recommendations from a trained recommender to any number of concurrent threads,
+ * and replaces the recommender with a newly trained one while they run.
+ *
+ * The recommender being served is held as an immutable RecommenderSnapshot behind a single atomic reference.
+ * A request reads the reference once and is answered entirely by that snapshot, with no locking anywhere on
+ * the way, so readers never wait for each other or for a swap. swap() freezes the new recommender and
+ * publishes it with one atomic write: requests that started before the swap finish on the old model, those
+ * that start after it see the new one, and none ever sees a mix of both. The old model is garbage collected
+ * once the last request on it finishes.
+ *
+ * <pre>
+ * RecommenderService service = new RecommenderService(trained);
+ * // on any number of request threads
+ * TopNList top = service.recommend(user, 10, null);
+ * // on a training thread, periodically
+ * BaseRecommender retrained = ...; retrained.train();
+ * service.swap(retrained);
+ * </pre>
+ */
+public final class RecommenderService {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final AtomicReference<RecommenderSnapshot> current;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Freezes @recommender and serves it as version 1.
+	 *
+	 * @throws IllegalStateException if @recommender has not been trained
+	 */
+	public RecommenderService ( BaseRecommender recommender )
+	{
+		current = new AtomicReference<RecommenderSnapshot>(new RecommenderSnapshot(checkServable(recommender), 1));
+	}
+
+	/**
+	 * @return the snapshot being served, which keeps answering from the same model across swaps
+	 */
+	public RecommenderSnapshot snapshot ()
+	{
+		return current.get();
+	}
+
+	/**
+	 * @return the predicted rating that @user will assign to @item by the model being served, or
+	 * Double.NEGATIVE_INFINITY if a prediction cannot be made
+	 */
+	public double predict (	int user,
+							int item )
+	{
+		return current.get().predict(user, item);
+	}
+
+	/**
+	 * @return the @n items with the highest predicted ratings for @user by the model being served. See
+	 * BaseRecommender.recommend().
+	 */
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
+	{
+		return current.get().recommend(user, n, filter);
+	}
+
+	/**
+	 * Freezes @recommender and serves it instead of the current model, without pausing the requests in
+	 * progress. Concurrent swaps are applied one after the other, each with the next version.
+	 * @return the snapshot that was served until now
+	 *
+	 * @throws IllegalStateException if @recommender has not been trained, in which case the current model is
+	 * kept
+	 */
+	public RecommenderSnapshot swap ( BaseRecommender recommender )
+	{
+		checkServable(recommender).freeze();
+		while (true)	{
+			RecommenderSnapshot previous = current.get();
+			if (current.compareAndSet(previous, new RecommenderSnapshot(recommender, previous.version() + 1)))
+				return previous;
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static BaseRecommender checkServable ( BaseRecommender recommender )
+	{
+		if (recommender == null)
+			throw new IllegalArgumentException("The recommender to serve must not be null.");
+		if (!recommender.isTrained())
+			throw new IllegalStateException("A recommender must be trained before it is served.");
+		return recommender;
+	}
+}
@@ -0,0 +1,113 @@
+package recommender;
+
+/**
+ * An immutable, published version of a trained recommender, as served by RecommenderService. The recommender
+ * is frozen when the snapshot is taken, so predict() and recommend() can be called from any number of threads,
+ * platform or virtual, without any locking, and always answer from the same model: a caller that needs
+ * several answers from one model, such as a prediction and a top-N list that agree, takes a snapshot once and
+ * asks it all of them.
+ *
+ * The latency of every call is recorded in the "serve.predict", "serve.predictBatch" and "serve.recommend"
+ * histograms of the recommender's metrics.
+ */
+public final class RecommenderSnapshot {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final BaseRecommender recommender;
+	private final long version;
+	private final long publishedMillis;
+	private final LatencyHistogram predictLatency;
+	private final LatencyHistogram predictBatchLatency;
+	private final LatencyHistogram recommendLatency;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the version of the snapshot, 1 for the first model a service serves and one more for each swap
+	 */
+	public long version ()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the time the snapshot was published, in milliseconds since the epoch
+	 */
+	public long publishedMillis ()
+	{
+		return publishedMillis;
+	}
+
+	/**
+	 * @return the frozen recommender, for its metrics or its own methods; any method that changes the model
+	 * throws an IllegalStateException
+	 */
+	public BaseRecommender recommender ()
+	{
+		return recommender;
+	}
+
+	/**
+	 * @return the predicted rating that @user will assign to @item, or Double.NEGATIVE_INFINITY if a prediction
+	 * cannot be made
+	 */
+	public double predict (	int user,
+							int item )
+	{
+		long start = System.nanoTime();
+		double prediction = recommender.predict(user, item);
+		predictLatency.record(System.nanoTime() - start);
+		return prediction;
+	}
+
+	/**
+	 * Predicts the ratings that @user will assign to each of @items into @predictions. See the batch
+	 * BaseRecommender.predict(). The latency of the whole batch is recorded in "serve.predictBatch".
+	 */
+	public void predict (	int user,
+							int[] items,
+							double[] predictions )
+	{
+		long start = System.nanoTime();
+		recommender.predict(user, items, predictions);
+		predictBatchLatency.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the @n items with the highest predicted ratings for @user. See BaseRecommender.recommend().
+	 */
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
+	{
+		long start = System.nanoTime();
+		TopNList list = recommender.recommend(user, n, filter);
+		recommendLatency.record(System.nanoTime() - start);
+		return list;
+	}
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Freezes @recommender, which RecommenderService has checked is trained, and takes a snapshot of it.
+	 */
+	RecommenderSnapshot (	BaseRecommender recommender,
+							long version )
+	{
+		recommender.freeze();
+		this.recommender = recommender;
+		this.version = version;
+		publishedMillis = System.currentTimeMillis();
+		predictLatency = recommender.getMetrics().latency("serve.predict");
+		predictBatchLatency = recommender.getMetrics().latency("serve.predictBatch");
+		recommendLatency = recommender.getMetrics().latency("serve.recommend");
+	}
+}
@@ -0,0 +1,109 @@
+package recommender;
+
+/**
+ * Dense per-item accumulators for scoring many candidate items of one user in a single pass, of which only
+ * the touched items are visited and cleared afterwards. Also marks the items excluded from the user's
+ * recommendations. Each thread needs its own buffer.
+ */
+final class ScoreBuffer {
+
+	/*********************************************************************************************************/
+	/* 										Package data members											 */
+	/*********************************************************************************************************/
+	final double[] sum;
+	final double[] weight;
+	final int[] count;
+	final boolean[] excluded;
+
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final int[] touched;
+	private int numTouched;
+	private final int[] marked;
+	private int numMarked;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param numItems the number of items, which are indexed 0..@numItems-1
+	 */
+	ScoreBuffer ( int numItems )
+	{
+		sum = new double[numItems];
+		weight = new double[numItems];
+		count = new int[numItems];
+		excluded = new boolean[numItems];
+		touched = new int[numItems];
+		marked = new int[numItems];
+	}
+
+	/**
+	 * @return the number of items this buffer holds
+	 */
+	int numItems ()
+	{
+		return sum.length;
+	}
+
+	/**
+	 * Adds @s to the sum, @w to the weight and 1 to the count of @item.
+	 */
+	void add (	int item,
+				double s,
+				double w )
+	{
+		if (count[item]++ == 0)
+			touched[numTouched++] = item;
+		sum[item] += s;
+		weight[item] += w;
+	}
+
+	/**
+	 * @return the number of items added to since the last clear(), which are touched(0), ..., in order of
+	 * first addition
+	 */
+	int numTouched ()
+	{
+		return numTouched;
+	}
+
+	/**
+	 * @return the @k-th item added to
+	 */
+	int touched ( int k )
+	{
+		return touched[k];
+	}
+
+	/**
+	 * Marks @item as excluded.
+	 */
+	void exclude ( int item )
+	{
+		if (!excluded[item])	{
+			excluded[item] = true;
+			marked[numMarked++] = item;
+		}
+	}
+
+	/**
+	 * Resets the accumulators of the touched items and the excluded marks.
+	 */
+	void clear ()
+	{
+		for (int k = 0; k < numTouched; k++)	{
+			int item = touched[k];
+			sum[item] = weight[item] = 0.0;
+			count[item] = 0;
+		}
+		numTouched = 0;
+		for (int k = 0; k < numMarked; k++)
+			excluded[marked[k]] = false;
+		numMarked = 0;
+	}
+}
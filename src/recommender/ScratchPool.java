@@ -0,0 +1,57 @@
+package recommender;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A lock-free pool of reusable scratch objects, such as the dense per-item buffers of recommend(). A caller
+ * acquires an object, uses it alone and releases it, cleared, when done. Unlike a ThreadLocal, which keeps one
+ * object per thread for as long as the thread lives, the pool only ever holds as many objects as were in use
+ * at once, so short-lived threads, such as a virtual thread per request, reuse the objects of earlier ones
+ * instead of each allocating its own.
+ */
+abstract class ScratchPool<T> {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final ConcurrentLinkedQueue<T> free = new ConcurrentLinkedQueue<T>();
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return a new scratch object
+	 */
+	abstract T create ();
+
+	/**
+	 * @return whether the pooled @scratch can still be used, for objects sized after something that grows;
+	 * those that cannot are dropped
+	 */
+	boolean fits ( T scratch )
+	{
+		return true;
+	}
+
+	/**
+	 * @return a free scratch object that fits, or a new one if there is none
+	 */
+	T acquire ()
+	{
+		T scratch;
+		while ((scratch = free.poll()) != null)
+			if (fits(scratch))
+				return scratch;
+		return create();
+	}
+
+	/**
+	 * Returns @scratch, which must be cleared, to the pool.
+	 */
+	void release ( T scratch )
+	{
+		free.offer(scratch);
+	}
+}
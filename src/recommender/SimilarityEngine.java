@@ -0,0 +1,296 @@
+package recommender;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the vector cosine similarity (num + 1) / (norm_u * norm_v + 1) between rows of a centered rating
+ * matrix, where num is the dot product of the two rows and norm_u and norm_v are the norms of each row over
+ * the columns both of them have rated. Instead of intersecting every pair of rows, it walks the inverted
+ * (column to rows) index: for a row u it visits each column u has rated and, through the inverted index,
+ * every other row v that has rated the same column, accumulating the three sums for v. Only pairs that
+ * share at least one column are ever touched; every other pair has all three sums 0 and thus similarity 1.
+ *
+ * Rows are computed in parallel on a ForkJoinPool, split into blocks of rows. Each worker thread accumulates
+ * into its own primitive row buffer and every row of the result is written by exactly one task, so no shared
+ * structure is mutated concurrently.
+ *
+ * The similarities are either materialized as the upper triangle of the similarity matrix, which takes
+ * O(n^2) memory, or streamed through a bounded heap per row that keeps only the top K similarities of the
+ * row, which takes O(n K) memory.
+ */
+final class SimilarityEngine {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// Rows are split into about this many blocks per thread so that work stealing can even out the blocks
+	private static final int BLOCKS_PER_THREAD = 16;
+
+	private final CenteredMatrix rows;
+	private final CenteredMatrix inverted;
+	private final int parallelism;
+	private final ThreadLocal<RowBuffer> buffers;
+	private final AtomicLong pairs;
+	private final AtomicLong coRatings;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param rows the vectors whose pairwise similarity is computed, one per row
+	 * @param inverted the transpose of @rows, holding the same ratings
+	 * @param parallelism the number of threads to compute with
+	 */
+	SimilarityEngine (	CenteredMatrix rows,
+						CenteredMatrix inverted,
+						int parallelism )
+	{
+		this.rows = rows;
+		this.inverted = inverted;
+		this.parallelism = Math.max(1, parallelism);
+		buffers = new ThreadLocal<RowBuffer>() {
+			protected RowBuffer initialValue ()	{
+				return new RowBuffer(numRows());
+			}
+		};
+		pairs = new AtomicLong();
+		coRatings = new AtomicLong();
+	}
+
+	/**
+	 * @return the number of rows whose pairwise similarity is computed
+	 */
+	int numRows ()
+	{
+		return rows.numRows();
+	}
+
+	/**
+	 * @return the number of similarities computed so far, counting a pair computed from both sides twice
+	 */
+	long pairsComputed ()
+	{
+		return pairs.get();
+	}
+
+	/**
+	 * @return the number of co-ratings accumulated so far, the inner loop iterations of the inverted index
+	 */
+	long coRatingsVisited ()
+	{
+		return coRatings.get();
+	}
+
+	/**
+	 * Sets the gauges "similarity.pairs", "similarity.pairsPerSecond" and "similarity.coRatings" of @metrics
+	 * from the counters, given the @nanos spent computing the similarities.
+	 */
+	void recordGauges (	RecommenderMetrics metrics,
+						long nanos )
+	{
+		metrics.setGauge("similarity.pairs", pairsComputed());
+		metrics.setGauge("similarity.pairsPerSecond", nanos > 0 ? pairsComputed() * 1e9 / nanos : Double.NaN);
+		metrics.setGauge("similarity.coRatings", coRatingsVisited());
+	}
+
+	/**
+	 * Since vector similarity is symmetric, it is computed only for the pairs (u, v), u < v.
+	 * @return the upper triangle of the similarity matrix, where row u holds the similarity of u with each
+	 * v > u at index v - u - 1
+	 */
+	double[][] computeUpperTriangle ()
+	{
+		final int n = numRows();
+		final double[][] similarity = new double[n][];
+		forEachRow(new RowTask() {
+			public void run (	int u,
+								RowBuffer buffer )	{
+				computeRow(u, u + 1, buffer);
+				similarity[u] = Arrays.copyOfRange(buffer.sim, u + 1, n);
+			}
+		});
+		return similarity;
+	}
+
+
+	/**
+	 * Computes, for each row u, the @K rows v != u most similar to u, without ever holding more than one row
+	 * of the similarity matrix per thread. Each row is computed in full, against all other rows, and fed
+	 * through a bounded min-heap; this computes every pair twice, once from each side, in exchange for rows
+	 * that are independent of each other. Of equally similar rows, those with smaller indices are kept.
+	 * @param ids receives, for each row u, the indices of the most similar rows, in no particular order;
+	 * NeighborTable.pack() sorts them by index
+	 * @param sims receives, for each row u, the similarities aligned with @ids[u]
+	 */
+	void computeTopK (	final int K,
+						final int[][] ids,
+						final double[][] sims )
+	{
+		final int n = numRows();
+		forEachRow(new RowTask() {
+			public void run (	int u,
+								RowBuffer buffer )	{
+				computeRow(u, 0, buffer);
+				TopKHeap heap = buffer.heap(K);
+				heap.clear();
+				for (int v = 0; v < n; v++)
+					if (v != u)
+						heap.offer(v, buffer.sim[v]);
+				ids[u] = new int[heap.size()];
+				sims[u] = new double[heap.size()];
+				for (int k = 0; k < heap.size(); k++)	{
+					ids[u][k] = heap.id(k);
+					sims[u][k] = heap.score(k);
+				}
+			}
+		});
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Primitive accumulators for the similarities of one row with all other rows.
+	 */
+	private static final class RowBuffer {
+		final double[] num;
+		final double[] norm_u;
+		final double[] norm_v;
+		final double[] sim;
+		private TopKHeap heap;
+
+		RowBuffer ( int n )
+		{
+			num = new double[n];
+			norm_u = new double[n];
+			norm_v = new double[n];
+			sim = new double[n];
+		}
+
+		/**
+		 * @return this thread's heap of capacity @K
+		 */
+		TopKHeap heap ( int K )
+		{
+			if (heap == null || heap.capacity() != K)
+				heap = new TopKHeap(K);
+			return heap;
+		}
+	}
+
+	/**
+	 * Work done for a single row, given the calling thread's row buffer.
+	 */
+	private interface RowTask {
+		void run (	int u,
+					RowBuffer buffer );
+	}
+
+	/**
+	 * A block of rows [from, to), split in halves until it is small enough to run directly.
+	 */
+	private final class RowBlock extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RowTask task;
+		private final int from;
+		private final int to;
+		private final int minBlock;
+
+		RowBlock (	RowTask task,
+					int from,
+					int to,
+					int minBlock )
+		{
+			this.task = task;
+			this.from = from;
+			this.to = to;
+			this.minBlock = minBlock;
+		}
+
+		protected void compute ()
+		{
+			if (to - from <= minBlock)	{
+				RowBuffer buffer = buffers.get();
+				for (int u = from; u < to; u++)
+					task.run(u, buffer);
+			} else	{
+				int mid = (from + to) >>> 1;
+				invokeAll(new RowBlock(task, from, mid, minBlock), new RowBlock(task, mid, to, minBlock));
+			}
+		}
+	}
+
+	/**
+	 * Runs @task for every row, in parallel over blocks of rows.
+	 */
+	private void forEachRow ( RowTask task )
+	{
+		int n = numRows();
+		int minBlock = Math.max(1, n / (parallelism * BLOCKS_PER_THREAD));
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try	{
+			pool.invoke(new RowBlock(task, 0, n, minBlock));
+		} finally	{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Computes the similarity of row @u with each row v, @from <= v < numRows(), into @buffer.sim[v] and leaves
+	 * the accumulators of @buffer cleared.
+	 */
+	private void computeRow (	int u,
+								int from,
+								RowBuffer buffer )
+	{
+		int n = numRows();
+		double[] num = buffer.num, norm_u = buffer.norm_u, norm_v = buffer.norm_v;
+		long visited = 0;
+
+		for (int k = rows.rowStart(u); k < rows.rowEnd(u); k++)	{
+			int col = rows.col(k);
+			double r_u = rows.value(u, k);
+			double r_u2 = r_u * r_u;
+			int start = lowerBound(col, from), end = inverted.rowEnd(col);
+			visited += end - start;
+			for (int kk = start; kk < end; kk++)	{
+				int v = inverted.col(kk);
+				double r_v = inverted.value(col, kk);
+				num[v] += r_u * r_v;
+				norm_u[v] += r_u2;
+				norm_v[v] += r_v * r_v;
+			}
+		}
+
+		for (int v = from; v < n; v++)	{
+			buffer.sim[v] = (num[v] + 1) / (Math.sqrt(norm_u[v]) * Math.sqrt(norm_v[v]) + 1);
+			num[v] = norm_u[v] = norm_v[v] = 0.0;
+		}
+		// Counted once per row, so the shared counters are not contended in the inner loop
+		pairs.addAndGet(n - from - (from <= u ? 1 : 0));
+		coRatings.addAndGet(visited);
+	}
+
+	/**
+	 * @return the position of the first row >= @from in the inverted row of @col
+	 */
+	private int lowerBound (	int col,
+								int from )
+	{
+		int lo = inverted.rowStart(col), hi = inverted.rowEnd(col);
+		while (lo < hi)	{
+			int mid = (lo + hi) >>> 1;
+			if (inverted.col(mid) < from)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
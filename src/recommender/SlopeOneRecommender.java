@@ -1,121 +1,606 @@
 package recommender;
 
-import java.util.HashMap;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Slope One item-based recommender algorithm
  */
 public class SlopeOneRecommender extends BaseRecommender {
-	
+
 	/*********************************************************************************************************/
 	/* 										Private data members											 */
 	/*********************************************************************************************************/
-	private HashMap<Integer, HashMap<Integer, Double>> itemItemDiff;
-	private HashMap<Integer, HashMap<Integer, Integer>> itemItemFreq;
-	private HashMap<Integer, HashMap<Integer, Double>> predictions;
-	
-	
+	private DeviationTable deviations;
+	private RatingRows ratings;
+	private Map<Integer, Integer> newUsers;
+	private Map<Integer, Integer> newItems;
+	private List<Integer> newItemIds;
+	private PredictionRow[] predictions;
+	private Map<Integer, PredictionRow> cache;
+	private long[] itemVersions;
+	private long version;
+	private ScratchPool<Scratch> scratch;
+	private ReentrantReadWriteLock lock;
+	private boolean LAZY;
+	private int CACHE_SIZE;
+
+
 	/*********************************************************************************************************/
 	/* 											Public methods											 	 */
-	/*********************************************************************************************************/	
-	
+	/*********************************************************************************************************/
+
+	/**
+	 * Predictions for every missing rating of every user are precomputed by train().
+	 *
+	 * @param dao The Data Access Object built on top of the training and test data set.
+	 */
+	public SlopeOneRecommender (DAO dao)
+	{
+		this(dao, false, 0);
+	}
+
 	/**
 	 * @param dao The Data Access Object built on top of the training and test data set.
+	 *
+	 * @param LAZY If true, train() only builds the item-item deviation table and each prediction is computed
+	 * when it is asked for, from the deviation table and the ratings of the user. This takes memory proportional
+	 * to the number of co-rated item pairs instead of users x items, and allows ratings to be added and removed
+	 * after training. If false, the predictions for every missing rating of every user are precomputed by train().
+	 *
+	 * @param CACHE_SIZE In lazy mode, the number of most recently used users whose predictions for all items
+	 * are kept, so that repeated requests for the same user are answered without recomputing. 0 disables the
+	 * cache, in which case only the requested item is predicted. Ignored if @LAZY is false. A rating added or
+	 * removed only discards the cached predictions that depend on it, as explained for addRating().
 	 */
-	public SlopeOneRecommender (DAO dao)	
+	public SlopeOneRecommender (	DAO dao,
+									boolean LAZY,
+									int CACHE_SIZE )
 	{
 		super(dao);
-		
-		itemItemDiff = new HashMap<Integer, HashMap<Integer, Double>>();
-		itemItemFreq = new HashMap<Integer, HashMap<Integer, Integer>>();
-		predictions = new HashMap<Integer, HashMap<Integer, Double>>();
+		this.LAZY = LAZY;
+		this.CACHE_SIZE = CACHE_SIZE;
+
+		lock = new ReentrantReadWriteLock();
+		scratch = new ScratchPool<Scratch>() {
+			Scratch create ()	{
+				return new Scratch(deviations.numItems());
+			}
+			boolean fits ( Scratch s )	{
+				return s.preds.length >= deviations.numItems();
+			}
+		};
 	}
-	
+
 	/**
-	 * This method overrides the train() method in the BaseRecommender class and precomputes predictions
-	 * for each missing rating in the training data set.
+	 * This method overrides the train() method in the BaseRecommender class. It computes the item-item
+	 * deviation table and, unless in lazy mode, precomputes predictions for each missing rating in the
+	 * training data set. The phases "deviations", "predictions" and the whole "train" are timed in
+	 * getMetrics().
 	 */
-	public void train ()	
+	public void train ()
 	{
-		for (int user : dao.getTrainUsers())	{
-			for (int item : dao.getTrainItems(user))	{
-				if (!itemItemDiff.containsKey(item))	{
-					itemItemDiff.put(item, new HashMap<Integer, Double>());
-					itemItemFreq.put(item, new HashMap<Integer, Integer>());
-				}
-				
-				double rating = dao.getTrainRating(user, item);
-				HashMap<Integer, Double> itemDiff = itemItemDiff.get(item);
-				HashMap<Integer, Integer> itemFreq = itemItemFreq.get(item);
-				
-				for (int item2 : dao.getTrainItems(user))	{
-					double rating2 = dao.getTrainRating(user, item2);
-					if (!itemDiff.containsKey(item2))	{
-						itemDiff.put(item2, 0.0);
-						itemFreq.put(item2, 0);
-					}
-					itemDiff.put(item2, itemDiff.get(item2) + rating - rating2);
-					itemFreq.put(item2, itemFreq.get(item2) + 1);										
-				}
+		RatingMatrix byUser = dao.trainMatrix();
+		lock.writeLock().lock();
+		try	{
+			checkNotFrozen();
+			train(byUser);
+		} finally	{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method overrides the freeze() method in the BaseRecommender class. It waits for the updates in
+	 * progress, after which ratings can no longer be added or removed and predict() and recommend() no longer
+	 * take the lock. In lazy mode the cache is dropped, since it is shared by all callers: each prediction is
+	 * then computed on its own.
+	 */
+	public void freeze ()
+	{
+		lock.writeLock().lock();
+		try	{
+			cache = null;
+			super.freeze();
+		} finally	{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method overrides the isTrained() method in the BaseRecommender class.
+	 * @return whether the deviation table and, unless in lazy mode, the predictions have been computed by train()
+	 */
+	public boolean isTrained ()
+	{
+		return deviations != null && (LAZY || predictions != null);
+	}
+
+	/**
+	 * This method overrides the predict() method in the BaseRecommender class. In lazy mode it may be called
+	 * concurrently with addRating() and removeRating(), and then sees the ratings either before or after each
+	 * update, never in between.
+	 * @return the predicted rating that @user will assign to @item, or Double.NEGATIVE_INFINITY
+	 * if a prediction cannot be made, as for any user before train()
+	 */
+	public double predict (	int user,
+							int item )
+	{
+		// Once frozen, the model no longer changes, so there is nothing to lock against
+		boolean locked = !isFrozen();
+		if (locked)
+			lock.readLock().lock();
+		try	{
+			return predictByIndex(userIndex(user, false), itemIndex(item, false));
+		} finally	{
+			if (locked)
+				lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * This method overrides the batch predict() method in the BaseRecommender class. The lock is taken once for
+	 * all of @items and, unless in lazy mode without a cache, the predictions of @user are looked up once.
+	 */
+	public void predict (	int user,
+							int[] items,
+							double[] predictions )
+	{
+		boolean locked = !isFrozen();
+		if (locked)
+			lock.readLock().lock();
+		try	{
+			int u = userIndex(user, false);
+			if (u < 0 || (LAZY && cache == null))	{
+				for (int k = 0; k < items.length; k++)
+					predictions[k] = predictByIndex(u, itemIndex(items[k], false));
+				return;
 			}
-		}	
-		
-		for (int item : itemItemDiff.keySet())	{
-			HashMap<Integer, Double> itemDiff = itemItemDiff.get(item);
-			HashMap<Integer, Integer> itemFreq = itemItemFreq.get(item);
-			
-			for (int item2 : itemDiff.keySet())
-				itemDiff.put(item2, itemDiff.get(item2) / itemFreq.get(item2));
-		}
-		
-		for (int user : dao.getTrainUsers())	{
-			HashMap<Integer, Double> preds = new HashMap<Integer, Double>();
-			HashMap<Integer, Integer> freqs = new HashMap<Integer, Integer>();
-			
-			for (int item : dao.getTrainItems(user))	{
-				double rating = dao.getTrainRating(user, item);
-				for (int diffitem : itemItemDiff.keySet())	{
-					HashMap<Integer, Double> itemDiff = itemItemDiff.get(diffitem);
-					HashMap<Integer, Integer> itemFreq = itemItemFreq.get(diffitem);
-					
-					if (!itemFreq.containsKey(item))
-						continue;
-					int freq = itemFreq.get(item);
-					
-					if (!preds.containsKey(diffitem))	{
-						preds.put(diffitem, 0.0);
-						freqs.put(diffitem, 0);
-					}
-					preds.put(diffitem, preds.get(diffitem) + freq * (itemDiff.get(item) + rating));
-					freqs.put(diffitem, freqs.get(diffitem) + freq);
-				}
+			PredictionRow row = predictionRow(u);
+			for (int k = 0; k < items.length; k++)	{
+				int i = itemIndex(items[k], false);
+				int pos = i < 0 ? -1 : Arrays.binarySearch(row.items, i);
+				predictions[k] = pos < 0 ? Double.NEGATIVE_INFINITY : ceilPrediction(row.ratings[pos]);
 			}
-			
-			for (int item : itemItemDiff.keySet())	{
-				if (dao.containsTrainRating(user, item))
-					preds.remove(item);
-				else if (preds.containsKey(item)) {
-					double val = preds.get(item);
-					int freq = freqs.get(item);
-					if (freq > 0)
-						preds.put(item, val / freq);
-					else
-						preds.remove(item);
+		} finally	{
+			if (locked)
+				lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * This method overrides the recommend() method in the BaseRecommender class. The predictions of @user for
+	 * every item are taken from the precomputed or cached predictions or else computed in a single pass over
+	 * the ratings of @user, and the best @n of them are then selected. Items added after training can be
+	 * recommended too, and the items @user has rated after training are excluded.
+	 */
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
+	{
+		TopKHeap heap = new TopKHeap(Math.max(n, 0));
+		boolean locked = !isFrozen();
+		if (locked)
+			lock.readLock().lock();
+		try	{
+			int u = userIndex(user, false);
+			if (u < 0)
+				return TopNList.of(heap);
+			PredictionRow row = predictionRow(u);
+			for (int k = 0; k < row.items.length; k++)	{
+				int item = itemId(row.items[k]);
+				if (filter == null || !filter.exclude(item))
+					heap.offer(item, ceilPrediction(row.ratings[k]));
+			}
+		} finally	{
+			if (locked)
+				lock.readLock().unlock();
+		}
+		return TopNList.of(heap);
+	}
+
+	/**
+	 * Adds the rating @rating of @user for @item to the model, replacing any rating @user has already given
+	 * @item. Users and items not seen before are added. Only the deviations between @item and the other items
+	 * rated by @user are updated, so this takes time proportional to the number of items rated by @user.
+	 * The cached predictions of @user are discarded, and so are those of every user who has rated @item or an
+	 * item rated by @user, since they depend on the updated deviations: each of these items is stamped with a
+	 * new version, and a cached row older than the version of any item its user rated is recomputed when next
+	 * used. The cached predictions of all other users are kept.
+	 *
+	 * @throws IllegalStateException if the recommender is not in lazy mode, has not been trained or is frozen
+	 */
+	public void addRating (	int user,
+							int item,
+							double rating )
+	{
+		lock.writeLock().lock();
+		try	{
+			checkUpdatable();
+			int u = userIndex(user, true), i = itemIndex(item, true);
+			int k = ratings.find(u, i);
+			if (k >= 0)
+				updateDeviations(u, i, ratings.value(u, k), -1);
+			updateDeviations(u, i, rating, 1);
+			ratings.set(u, i, rating);
+			invalidate(u, i);
+		} finally	{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the rating of @user for @item from the model, in time proportional to the number of items rated
+	 * by @user. Cached predictions are discarded as by addRating().
+	 * @return true if @user had rated @item, false otherwise
+	 *
+	 * @throws IllegalStateException if the recommender is not in lazy mode, has not been trained or is frozen
+	 */
+	public boolean removeRating (	int user,
+									int item )
+	{
+		lock.writeLock().lock();
+		try	{
+			checkUpdatable();
+			int u = userIndex(user, false), i = itemIndex(item, false);
+			int k = u >= 0 && i >= 0 ? ratings.find(u, i) : -1;
+			if (k < 0)
+				return false;
+			updateDeviations(u, i, ratings.value(u, k), -1);
+			ratings.remove(u, i);
+			invalidate(u, i);
+			return true;
+		} finally	{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method overrides the modelBytes() method in the BaseRecommender class.
+	 * @return the bytes taken by the deviation table and the precomputed or cached predictions
+	 */
+	protected long modelBytes ()
+	{
+		lock.readLock().lock();
+		try	{
+			if (deviations == null)
+				return 0L;
+			long bytes = deviations.bytes();
+			if (predictions != null)
+				for (PredictionRow row : predictions)
+					bytes += row.bytes();
+			if (cache != null)
+				synchronized (cache)	{
+					for (PredictionRow row : cache.values())
+						bytes += row.bytes();
 				}
+			return bytes;
+		} finally	{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private void train ( RatingMatrix byUser )
+	{
+		metrics.resetTraining();
+		long start = System.nanoTime();
+		deviations = DeviationTable.build(byUser, dao.transposedTrainMatrix());
+		long t = metrics.endPhase("deviations", start);
+		ratings = new RatingRows(byUser);
+		newUsers = new HashMap<Integer, Integer>();
+		newItems = new HashMap<Integer, Integer>();
+		newItemIds = new ArrayList<Integer>();
+		cache = null;
+		itemVersions = null;
+		version = 0;
+
+		if (LAZY)	{
+			predictions = null;
+			if (CACHE_SIZE > 0)	{
+				itemVersions = new long[deviations.numItems()];
+				cache = Collections.synchronizedMap(new LinkedHashMap<Integer, PredictionRow>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					protected boolean removeEldestEntry ( Map.Entry<Integer, PredictionRow> eldest )	{
+						return size() > CACHE_SIZE;
+					}
+				});
 			}
-			predictions.put(user, preds);
-		}		
+		} else	{
+			predictions = new PredictionRow[byUser.numRows()];
+			for (int u = 0; u < predictions.length; u++)
+				predictions[u] = predictAll(u);
+			metrics.endPhase("predictions", t);
+		}
+		metrics.setModelBytes(modelBytes());
+		metrics.endPhase("train", start);
 	}
-	
+
 	/**
-	 * This method overrides the predict() method in the BaseRecommender class.
-	 * @return the predicted rating that @user will assign to @item, or Double.NEGATIVE_INFINITY 
-	 * if a prediction cannot be made
+	 * @return the prediction of the user with dense index @u for the item with dense index @i, or
+	 * Double.NEGATIVE_INFINITY if a prediction cannot be made
 	 */
-	public double predict(int user, int item)	{
-		if (!predictions.containsKey(user) || !predictions.get(user).containsKey(item))
+	private double predictByIndex (	int u,
+										int i )
+	{
+		if (u < 0 || i < 0)
 			return Double.NEGATIVE_INFINITY;
-		
-		return ceilPrediction(predictions.get(user).get(item));
+
+		if (LAZY && cache == null)
+			return predictOne(u, i);
+
+		PredictionRow row = predictionRow(u);
+		int k = Arrays.binarySearch(row.items, i);
+		if (k < 0)
+			return Double.NEGATIVE_INFINITY;
+		return ceilPrediction(row.ratings[k]);
+	}
+
+	/**
+	 * @return the predictions of the user with dense index @u, precomputed, cached or else computed now
+	 */
+	private PredictionRow predictionRow ( int u )
+	{
+		if (!LAZY)
+			return predictions[u];
+		if (cache == null)
+			return predictAll(u);
+
+		PredictionRow row = cache.get(u);
+		if (row == null || !isCurrent(u, row))	{
+			// Computed outside the cache's lock; two threads missing on the same user both compute the same row
+			row = predictAll(u);
+			cache.put(u, row);
+		}
+		return row;
+	}
+
+	/**
+	 * @return whether @row, cached for the user with dense index @u, was computed after the last update of the
+	 * deviations of every item @u has rated
+	 */
+	private boolean isCurrent (	int u,
+								PredictionRow row )
+	{
+		for (int k = 0; k < ratings.rowLength(u); k++)
+			if (itemVersions[ratings.col(u, k)] > row.version)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Discards the cached predictions that depend on the rating of the user with dense index @u for the item
+	 * with dense index @i, which has just been added, replaced or removed: those of @u, and, through a new
+	 * version of @i and of every item @u has rated, those of every user who rated one of them.
+	 */
+	private void invalidate (	int u,
+								int i )
+	{
+		if (cache == null)
+			return;
+		if (itemVersions.length < deviations.numItems())
+			itemVersions = Arrays.copyOf(itemVersions, Math.max(deviations.numItems(), 2 * itemVersions.length));
+		version++;
+		itemVersions[i] = version;
+		for (int k = 0; k < ratings.rowLength(u); k++)
+			itemVersions[ratings.col(u, k)] = version;
+		cache.remove(u);
+	}
+
+	/**
+	 * The predicted ratings of a user, for the items in @items, sorted by dense item index, as of the update
+	 * @version of the model.
+	 */
+	private static final class PredictionRow {
+		final int[] items;
+		final double[] ratings;
+		final long version;
+
+		PredictionRow (	int[] items,
+						double[] ratings,
+						long version )
+		{
+			this.items = items;
+			this.ratings = ratings;
+			this.version = version;
+		}
+
+		/**
+		 * @return an estimate of the heap taken by the row, in bytes
+		 */
+		long bytes ()
+		{
+			return 24L + 2 * 16L + 12L * items.length;
+		}
+	}
+
+	/**
+	 * Dense accumulators over all items, of which each prediction touches only the items co-rated with an item
+	 * of the user, and leaves them cleared. Pooled, so that each is used by one thread at a time.
+	 */
+	private static final class Scratch {
+		final double[] preds;
+		final int[] freqs;
+		final int[] touched;
+		final boolean[] rated;
+
+		Scratch ( int numItems )
+		{
+			preds = new double[numItems];
+			freqs = new int[numItems];
+			touched = new int[numItems];
+			rated = new boolean[numItems];
+		}
+	}
+
+	/**
+	 * @return the predictions of the user with dense index @u for every item co-rated with an item @u has rated,
+	 * except the items @u has rated
+	 */
+	private PredictionRow predictAll ( int u )
+	{
+		Scratch s = scratch.acquire();
+		double[] preds = s.preds;
+		int[] freqs = s.freqs, touched = s.touched;
+		boolean[] rated = s.rated;
+
+		int numTouched = 0, numRated = ratings.rowLength(u);
+		for (int k = 0; k < numRated; k++)
+			rated[ratings.col(u, k)] = true;
+
+		// Every item co-rated with an item rated by @u is predicted from that item's rating and deviation,
+		// weighted by the number of users the deviation is based on
+		for (int k = 0; k < numRated; k++)	{
+			int item = ratings.col(u, k);
+			double rating = ratings.value(u, k);
+			for (int kk = 0; kk < deviations.rowLength(item); kk++)	{
+				int diffitem = deviations.col(item, kk);
+				if (rated[diffitem])
+					continue;
+				int freq = deviations.count(item, kk);
+				if (freqs[diffitem] == 0)
+					touched[numTouched++] = diffitem;
+				// freq * (diff(diffitem, item) + rating), with diff(diffitem, item) = -sum(item, diffitem) / freq
+				preds[diffitem] += freq * rating - deviations.sum(item, kk);
+				freqs[diffitem] += freq;
+			}
+		}
+
+		Arrays.sort(touched, 0, numTouched);
+		int[] items = Arrays.copyOf(touched, numTouched);
+		double[] predicted = new double[numTouched];
+		for (int t = 0; t < numTouched; t++)	{
+			int item = touched[t];
+			predicted[t] = preds[item] / freqs[item];
+			preds[item] = 0.0;
+			freqs[item] = 0;
+		}
+		for (int k = 0; k < numRated; k++)
+			rated[ratings.col(u, k)] = false;
+		scratch.release(s);
+		return new PredictionRow(items, predicted, version);
+	}
+
+	/**
+	 * @return the prediction of the user with dense index @u for the item with dense index @i, or
+	 * Double.NEGATIVE_INFINITY if @u has rated @i or no item co-rated with @i
+	 */
+	private double predictOne (	int u,
+								int i )
+	{
+		if (ratings.find(u, i) >= 0)
+			return Double.NEGATIVE_INFINITY;
+
+		// Both the items co-rated with @i and the items rated by @u are sorted by item index, so the items
+		// that contribute to the prediction are found by merging the two lists
+		double pred = 0.0;
+		int freq = 0;
+		int n = 0, nEnd = deviations.rowLength(i);
+		int k = 0, kEnd = ratings.rowLength(u);
+		while (n < nEnd && k < kEnd)	{
+			int item = deviations.col(i, n), rated = ratings.col(u, k);
+			if (item < rated)
+				n++;
+			else if (item > rated)
+				k++;
+			else	{
+				// count * (diff(i, item) + rating), with diff(i, item) = sum(i, item) / count
+				int count = deviations.count(i, n);
+				pred += count * ratings.value(u, k) + deviations.sum(i, n);
+				freq += count;
+				n++;
+				k++;
+			}
+		}
+
+		if (freq == 0)
+			return Double.NEGATIVE_INFINITY;
+		return ceilPrediction(pred / freq);
+	}
+
+	/**
+	 * Adds (@sign = 1) or removes (@sign = -1) the contribution of the rating @rating of the user with dense index
+	 * @u for the item with dense index @i to the deviations between @i and every other item rated by @u.
+	 */
+	private void updateDeviations (	int u,
+									int i,
+									double rating,
+									int sign )
+	{
+		for (int k = 0; k < ratings.rowLength(u); k++)	{
+			int j = ratings.col(u, k);
+			if (j != i)
+				deviations.add(i, j, sign * (rating - ratings.value(u, k)), sign);
+		}
+	}
+
+	/**
+	 * @return the dense index of @user, or -1 if @user is unknown and @create is false. If @create is true, an
+	 * unknown user is added without any ratings.
+	 */
+	private int userIndex (	int user,
+							boolean create )
+	{
+		// No user is known before train(), so that nothing is predicted or recommended from a missing model
+		if (!isTrained())
+			return -1;
+		int u = dao.trainUsers().indexOf(user);
+		if (u >= 0 || newUsers == null)
+			return u;
+		Integer index = newUsers.get(user);
+		if (index != null)
+			return index;
+		if (!create)
+			return -1;
+		u = ratings.addRow();
+		newUsers.put(user, u);
+		return u;
+	}
+
+	/**
+	 * @return the dense index of @item, or -1 if @item is unknown and @create is false. If @create is true, an
+	 * unknown item is added without any ratings.
+	 */
+	private int itemIndex (	int item,
+							boolean create )
+	{
+		int i = dao.trainItems().indexOf(item);
+		if (i >= 0 || newItems == null)
+			return i;
+		Integer index = newItems.get(item);
+		if (index != null)
+			return index;
+		if (!create)
+			return -1;
+		i = deviations.numItems();
+		deviations.ensureItems(i + 1);
+		newItems.put(item, i);
+		newItemIds.add(item);
+		return i;
+	}
+
+	/**
+	 * @return the external id of the item with dense index @i
+	 */
+	private int itemId ( int i )
+	{
+		int numTrainItems = dao.numTrainItems();
+		return i < numTrainItems ? dao.trainItems().idAt(i) : newItemIds.get(i - numTrainItems);
+	}
+
+	/**
+	 * @throws IllegalStateException if ratings cannot be added to or removed from the model
+	 */
+	private void checkUpdatable ()
+	{
+		checkNotFrozen();
+		if (!LAZY)
+			throw new IllegalStateException("Ratings can only be added or removed in lazy mode.");
+		if (deviations == null)
+			throw new IllegalStateException("The recommender must be trained before ratings are added or removed.");
 	}
 }
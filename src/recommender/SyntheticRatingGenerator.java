@@ -0,0 +1,323 @@
+package recommender;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates synthetic rating data sets of any size, to find out how the recommenders scale beyond MovieLens
+ * 100K. The training and test files are written in the [user, item, rating] text format the DAO reads, tab
+ * separated, and the binary rating file of the DAO can be written straight from the generator as well.
+ *
+ * Users and items are numbered from 1. How many ratings each user gives and how often each item is rated
+ * both follow power laws: the k-th most active user and the k-th most popular item have weights proportional
+ * to 1 / k^exponent, with the ranks assigned to ids in random order. A rating is the sum of a user bias, an
+ * item bias and noise, cut into the rating levels at the quantiles that give the requested distribution of
+ * ratings. Each rating goes to the test file with a fixed probability.
+ *
+ * The ratings are streamed to the files one user at a time, so the memory used grows with the numbers of
+ * users and items but not with the number of ratings, for the binary rating file too. The same parameters and
+ * seed always give the same files.
+ */
+public class SyntheticRatingGenerator {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// The distribution of ratings 1 to 5 in MovieLens 100K
+	private static final double[] MOVIELENS_DISTRIBUTION = { 0.061, 0.114, 0.271, 0.341, 0.213 };
+	// The number of latent scores drawn to place the thresholds between rating levels
+	private static final int THRESHOLD_SAMPLES = 100000;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+	private static final double USER_BIAS_SD = 0.5;
+	private static final double ITEM_BIAS_SD = 0.5;
+	private static final double NOISE_SD = 1.0;
+
+	private int NUM_USERS;
+	private int NUM_ITEMS;
+	private long NUM_RATINGS;
+	private double USER_EXPONENT;
+	private double ITEM_EXPONENT;
+	private double[] RATING_DISTRIBUTION;
+	private double TEST_FRACTION;
+	private long SEED;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param NUM_USERS The number of users, numbered 1 to NUM_USERS.
+	 *
+	 * @param NUM_ITEMS The number of items, numbered 1 to NUM_ITEMS.
+	 *
+	 * @param NUM_RATINGS The number of ratings to generate, training and test together. The density of the data
+	 * set is NUM_RATINGS / (NUM_USERS x NUM_ITEMS). Since no user rates an item twice, users whose share of the
+	 * ratings would exceed NUM_ITEMS give fewer, so slightly fewer ratings may be generated at high densities.
+	 *
+	 * @param USER_EXPONENT The exponent of the power law of user activity. 0 gives every user about the same
+	 * number of ratings; around 0.5 to 1 gives a few very active users and a long tail of occasional ones.
+	 *
+	 * @param ITEM_EXPONENT The exponent of the power law of item popularity, like @USER_EXPONENT.
+	 *
+	 * @param RATING_DISTRIBUTION The fraction of ratings at each rating level, from 1 up to
+	 * RATING_DISTRIBUTION.length. Need not be normalized. null gives the distribution of MovieLens 100K.
+	 *
+	 * @param TEST_FRACTION The probability that a rating goes to the test file rather than the training file.
+	 *
+	 * @param SEED The seed of the random number generator.
+	 */
+	public SyntheticRatingGenerator (	int NUM_USERS,
+										int NUM_ITEMS,
+										long NUM_RATINGS,
+										double USER_EXPONENT,
+										double ITEM_EXPONENT,
+										double[] RATING_DISTRIBUTION,
+										double TEST_FRACTION,
+										long SEED )
+	{
+		if (NUM_USERS < 1 || NUM_ITEMS < 1)
+			throw new IllegalArgumentException(String.format("There must be at least one user and one item, not %d and %d.", NUM_USERS, NUM_ITEMS));
+		this.NUM_USERS = NUM_USERS;
+		this.NUM_ITEMS = NUM_ITEMS;
+		this.NUM_RATINGS = Math.max(0, NUM_RATINGS);
+		this.USER_EXPONENT = USER_EXPONENT;
+		this.ITEM_EXPONENT = ITEM_EXPONENT;
+		this.RATING_DISTRIBUTION = RATING_DISTRIBUTION != null ? RATING_DISTRIBUTION.clone() : MOVIELENS_DISTRIBUTION.clone();
+		this.TEST_FRACTION = TEST_FRACTION;
+		this.SEED = SEED;
+	}
+
+	/**
+	 * Generates the ratings and writes them to @trainFileName and @testFileName, replacing any existing files.
+	 * @return the number of ratings written, training and test together
+	 * @throws IOException if either file cannot be opened for writing or written to
+	 */
+	public long write (	String trainFileName,
+						String testFileName )
+			throws IOException
+	{
+		final TextBuffer trainText = new TextBuffer(WRITE_BUFFER_BYTES), testText = new TextBuffer(WRITE_BUFFER_BYTES);
+		final OutputStream trainOut = new FileOutputStream(trainFileName);
+		OutputStream testOut = null;
+		try	{
+			testOut = new FileOutputStream(testFileName);
+			final OutputStream testStream = testOut;
+			long written = generate(new BinaryRatingFile.Visitor() {
+				public void rating ( int user, int item, float rating, boolean test )
+						throws IOException	{
+					TextBuffer text = test ? testText : trainText;
+					text.append(user).append('\t').append(item).append('\t').append((int) rating).append('\n');
+					flush(text, test ? testStream : trainOut, false);
+				}
+			});
+			flush(trainText, trainOut, true);
+			flush(testText, testOut, true);
+			return written;
+		} finally	{
+			trainOut.close();
+			if (testOut != null)
+				testOut.close();
+		}
+	}
+
+	/**
+	 * Generates the ratings and writes them to @binaryFileName in the binary rating file format of the DAO,
+	 * replacing any existing file. The file is the one new DAO(train, test, "\t").save(binaryFileName) would
+	 * write after write(train, test), but the ratings are never held in memory: they are generated twice, once
+	 * to count them and once to write them in place.
+	 * @return the number of ratings written, training and test together
+	 * @throws IOException if the file cannot be opened for writing or written to
+	 */
+	public long writeBinary ( String binaryFileName )
+			throws IOException
+	{
+		return BinaryRatingFile.write(new BinaryRatingFile.Source() {
+			public void visit ( BinaryRatingFile.Visitor visitor )
+					throws IOException	{
+				generate(visitor);
+			}
+		}, NUM_USERS + 1, NUM_ITEMS + 1, binaryFileName);
+	}
+
+	/**
+	 * Generates a data set from the command line, as name=value arguments:
+	 * <pre>
+	 * users=N items=N (ratings=N | density=D) [userExponent=E] [itemExponent=E] [distribution=p1,p2,...]
+	 * [testFraction=F] [seed=S] [train=FILE test=FILE] [binary=FILE]
+	 * </pre>
+	 * train=FILE and test=FILE write the text files, binary=FILE the binary rating file, and either or both
+	 * may be given.
+	 */
+	public static void main ( String[] args )
+			throws IOException
+	{
+		Map<String, String> options = CommandLine.parse(args);
+		int numUsers = Integer.parseInt(CommandLine.required(options, "users"));
+		int numItems = Integer.parseInt(CommandLine.required(options, "items"));
+		long numRatings = options.containsKey("ratings") ? Long.parseLong(options.get("ratings"))
+				: Math.round(Double.parseDouble(CommandLine.required(options, "density")) * numUsers * numItems);
+		double[] distribution = null;
+		if (options.containsKey("distribution"))	{
+			String[] parts = options.get("distribution").split(",");
+			distribution = new double[parts.length];
+			for (int k = 0; k < parts.length; k++)
+				distribution[k] = Double.parseDouble(parts[k]);
+		}
+		SyntheticRatingGenerator generator = new SyntheticRatingGenerator(numUsers, numItems, numRatings,
+				Double.parseDouble(CommandLine.value(options, "userExponent", "0.6")),
+				Double.parseDouble(CommandLine.value(options, "itemExponent", "0.8")),
+				distribution,
+				Double.parseDouble(CommandLine.value(options, "testFraction", "0.2")),
+				Long.parseLong(CommandLine.value(options, "seed", "42")));
+
+		if (!options.containsKey("binary") || options.containsKey("train") || options.containsKey("test"))	{
+			String train = CommandLine.required(options, "train"), test = CommandLine.required(options, "test");
+			long start = System.nanoTime();
+			long written = generator.write(train, test);
+			System.out.printf("Wrote %d ratings to %s and %s in %.1f s\n", written, train, test, (System.nanoTime() - start) / 1e9);
+		}
+		if (options.containsKey("binary"))	{
+			long start = System.nanoTime();
+			long written = generator.writeBinary(options.get("binary"));
+			System.out.printf("Wrote %d ratings to %s in %.1f s\n", written, options.get("binary"), (System.nanoTime() - start) / 1e9);
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Generates the ratings, the same every time, and passes them to @visitor one user at a time, in ascending
+	 * order of the user ids.
+	 * @return the number of ratings generated
+	 */
+	private long generate ( BinaryRatingFile.Visitor visitor )
+			throws IOException
+	{
+		Random random = new Random(SEED);
+		double[] itemCdf = powerLawCdf(NUM_ITEMS, ITEM_EXPONENT, random);
+		double[] userWeights = powerLawCdf(NUM_USERS, USER_EXPONENT, random);
+		for (int u = NUM_USERS - 1; u > 0; u--)
+			userWeights[u] -= userWeights[u - 1];
+		double[] itemBias = new double[NUM_ITEMS];
+		for (int i = 0; i < NUM_ITEMS; i++)
+			itemBias[i] = random.nextGaussian() * ITEM_BIAS_SD;
+		double[] thresholds = thresholds(random);
+
+		// stamp[i] == u + 1 marks item i as already rated by user u, without clearing anything between users
+		int[] stamp = new int[NUM_ITEMS];
+		long generated = 0;
+		for (int u = 0; u < NUM_USERS; u++)	{
+			// Randomized rounding keeps the expected total at NUM_RATINGS
+			double expected = NUM_RATINGS * userWeights[u];
+			long count = (long) expected + (random.nextDouble() < expected - Math.floor(expected) ? 1 : 0);
+			count = Math.min(count, NUM_ITEMS);
+			double userBias = random.nextGaussian() * USER_BIAS_SD;
+
+			long drawn = 0, attempts = 0;
+			int sweep = random.nextInt(NUM_ITEMS);
+			while (drawn < count)	{
+				int i;
+				if (attempts++ < 4 * count + 16)
+					i = sample(itemCdf, random.nextDouble());
+				else	{
+					// Too many draws hit items the user has already rated: take the next unrated items in turn
+					i = sweep;
+					sweep = sweep + 1 == NUM_ITEMS ? 0 : sweep + 1;
+				}
+				if (stamp[i] == u + 1)
+					continue;
+				stamp[i] = u + 1;
+				drawn++;
+
+				double score = userBias + itemBias[i] + random.nextGaussian() * NOISE_SD;
+				int rating = 1;
+				while (rating <= thresholds.length && score > thresholds[rating - 1])
+					rating++;
+				visitor.rating(u + 1, i + 1, rating, random.nextDouble() < TEST_FRACTION);
+			}
+			generated += drawn;
+		}
+		return generated;
+	}
+
+	/**
+	 * @return the cumulative distribution over @n ids of a power law with exponent @exponent, whose ranks are
+	 * assigned to the ids in an order shuffled with @random. The last entry is 1.
+	 */
+	private static double[] powerLawCdf (	int n,
+											double exponent,
+											Random random )
+	{
+		int[] rank = new int[n];
+		for (int k = 0; k < n; k++)
+			rank[k] = k;
+		for (int k = n - 1; k > 0; k--)	{
+			int r = random.nextInt(k + 1), tmp = rank[k];
+			rank[k] = rank[r];
+			rank[r] = tmp;
+		}
+
+		double[] cdf = new double[n];
+		double total = 0.0;
+		for (int k = 0; k < n; k++)	{
+			total += Math.pow(rank[k] + 1, -exponent);
+			cdf[k] = total;
+		}
+		for (int k = 0; k < n; k++)
+			cdf[k] /= total;
+		cdf[n - 1] = 1.0;
+		return cdf;
+	}
+
+	/**
+	 * @return the id whose interval of @cdf holds @x, 0 <= @x < 1
+	 */
+	private static int sample (	double[] cdf,
+								double x )
+	{
+		int k = Arrays.binarySearch(cdf, x);
+		return k >= 0 ? Math.min(k + 1, cdf.length - 1) : -k - 1;
+	}
+
+	/**
+	 * @return the latent scores between consecutive rating levels: a score above thresholds[r - 1] and at most
+	 * thresholds[r] gives rating r + 1. They are the quantiles of RATING_DISTRIBUTION over a sample of scores.
+	 */
+	private double[] thresholds ( Random random )
+	{
+		double[] scores = new double[THRESHOLD_SAMPLES];
+		for (int k = 0; k < scores.length; k++)
+			scores[k] = random.nextGaussian() * USER_BIAS_SD + random.nextGaussian() * ITEM_BIAS_SD + random.nextGaussian() * NOISE_SD;
+		Arrays.sort(scores);
+
+		double total = 0.0;
+		for (double p : RATING_DISTRIBUTION)
+			total += p;
+		double[] thresholds = new double[Math.max(0, RATING_DISTRIBUTION.length - 1)];
+		double cumulative = 0.0;
+		for (int r = 0; r < thresholds.length; r++)	{
+			cumulative += RATING_DISTRIBUTION[r] / total;
+			int k = (int) Math.min(scores.length - 1, Math.round(cumulative * scores.length));
+			thresholds[r] = scores[k];
+		}
+		return thresholds;
+	}
+
+	/**
+	 * Writes out @text to @out once it holds most of a write buffer, or whatever it holds if @last.
+	 */
+	private static void flush (	TextBuffer text,
+								OutputStream out,
+								boolean last )
+			throws IOException
+	{
+		if (last || text.length() >= WRITE_BUFFER_BYTES - (WRITE_BUFFER_BYTES >> 3))	{
+			text.writeTo(out);
+			text.clear();
+		}
+	}
+}
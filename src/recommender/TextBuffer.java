@@ -0,0 +1,158 @@
+package recommender;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A growable buffer of ASCII text with number formatting that writes digits straight into a byte[], instead
+ * of going through String.format() and a Writer, which allocate and parse a format string for every number.
+ * Not thread-safe: each thread formats into its own buffer.
+ */
+final class TextBuffer {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	// Doubles below this bound are formatted with long arithmetic; larger ones fall back to String.format()
+	private static final double FAST_FORMAT_BOUND = 1e9;
+
+	private byte[] bytes;
+	private int length;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param capacity the number of bytes initially allocated
+	 */
+	TextBuffer ( int capacity )
+	{
+		bytes = new byte[Math.max(16, capacity)];
+		length = 0;
+	}
+
+	/**
+	 * Appends @c, which must be an ASCII character.
+	 */
+	TextBuffer append ( char c )
+	{
+		ensureCapacity(1);
+		bytes[length++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Appends @value in decimal, as String.valueOf(@value) would.
+	 */
+	TextBuffer append ( long value )
+	{
+		ensureCapacity(20);
+		if (value < 0)	{
+			bytes[length++] = '-';
+			if (value == Long.MIN_VALUE)	{
+				// -Long.MIN_VALUE overflows; its last digit is 8
+				appendDigits(-(value / 10));
+				bytes[length++] = '8';
+				return this;
+			}
+			value = -value;
+		}
+		appendDigits(value);
+		return this;
+	}
+
+	/**
+	 * Appends @value with 6 decimals, exactly as String.format("%f", @value) would. String.format() rounds the
+	 * shortest decimal representation of @value half up, which lies within half an ulp of @value: the binary
+	 * value of @value is rounded instead, unless it is within an ulp of halfway between two 6-decimal numbers,
+	 * where the two could round differently and String.format() is used.
+	 */
+	TextBuffer appendFixed6 ( double value )
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= FAST_FORMAT_BOUND)
+			return appendFormatted(value);
+
+		// The integer part and the fraction are both exact, so only the fraction times 10^6 is rounded
+		double magnitude = Math.abs(value);
+		long integer = (long) magnitude;
+		double scaled = (magnitude - integer) * 1e6;
+		if (Math.abs(scaled - Math.floor(scaled) - 0.5) <= Math.ulp(magnitude) * 1e6 + 1e-9)
+			return appendFormatted(value);
+
+		ensureCapacity(21);
+		if (Double.doubleToRawLongBits(value) < 0)
+			bytes[length++] = '-';
+		long fraction = Math.round(scaled);
+		if (fraction == 1000000)	{
+			integer++;
+			fraction = 0;
+		}
+		appendDigits(integer);
+		bytes[length++] = '.';
+		for (int k = length + 5; k >= length; k--, fraction /= 10)
+			bytes[k] = (byte) ('0' + fraction % 10);
+		length += 6;
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes in the buffer
+	 */
+	int length ()
+	{
+		return length;
+	}
+
+	/**
+	 * Writes the contents of the buffer to @out.
+	 * @throws IOException if @out cannot be written to
+	 */
+	void writeTo ( OutputStream out )
+			throws IOException
+	{
+		out.write(bytes, 0, length);
+	}
+
+	/**
+	 * Empties the buffer so that it can be reused.
+	 */
+	void clear ()
+	{
+		length = 0;
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private TextBuffer appendFormatted ( double value )
+	{
+		String s = String.format("%f", value);
+		ensureCapacity(s.length());
+		for (int k = 0; k < s.length(); k++)
+			bytes[length++] = (byte) s.charAt(k);
+		return this;
+	}
+
+	private void ensureCapacity ( int extra )
+	{
+		if (length + extra > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length + (bytes.length >> 1)));
+	}
+
+	/**
+	 * Appends the digits of @value, which is non-negative. The buffer must have room for 19 bytes.
+	 */
+	private void appendDigits ( long value )
+	{
+		int numDigits = 1;
+		for (long v = value / 10; v > 0; v /= 10)
+			numDigits++;
+		for (int k = length + numDigits - 1; k >= length; k--, value /= 10)
+			bytes[k] = (byte) ('0' + value % 10);
+		length += numDigits;
+	}
+}
@@ -0,0 +1,161 @@
+package recommender;
+
+/**
+ * A bounded min-heap of (id, score) pairs over parallel primitive arrays, used to keep the @capacity
+ * highest-scoring ids seen so far without allocating anything per offered id. The lowest score is at the
+ * root, so an offered id only has to beat the root to be let in. Among equal scores, the larger id counts
+ * as the lower one.
+ */
+final class TopKHeap {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final int[] ids;
+	private final double[] scores;
+	private int size;
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @param capacity the maximum number of ids kept
+	 */
+	TopKHeap ( int capacity )
+	{
+		ids = new int[Math.max(0, capacity)];
+		scores = new double[Math.max(0, capacity)];
+		size = 0;
+	}
+
+	/**
+	 * Empties the heap so that it can be reused.
+	 */
+	void clear ()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Adds @id if the heap is not full, or else replaces the lowest-ranking id if (@score, @id) ranks higher:
+	 * if @score is higher than its score or, for an equal score, @id is smaller than its id. The heap thus ends
+	 * up with the same ids whatever the order in which they are offered.
+	 * @return true if @id was added
+	 */
+	boolean offer (	int id,
+					double score )
+	{
+		if (size < ids.length)	{
+			int k = size++;
+			ids[k] = id;
+			scores[k] = score;
+			siftUp(k);
+			return true;
+		}
+		if (size == 0 || score < scores[0] || (score == scores[0] && id >= ids[0]))
+			return false;
+		ids[0] = id;
+		scores[0] = score;
+		siftDown(0, size);
+		return true;
+	}
+
+	/**
+	 * Sorts the ids by decreasing score, breaking ties by increasing id, so that id(0) is the highest-scoring
+	 * one. This destroys the heap order: the heap must be cleared before anything else is offered.
+	 */
+	void sortDescending ()
+	{
+		for (int end = size - 1; end > 0; end--)	{
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	/**
+	 * @return the maximum number of ids kept
+	 */
+	int capacity ()
+	{
+		return ids.length;
+	}
+
+	/**
+	 * @return the number of ids in the heap
+	 */
+	int size ()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the id at position @k, 0 <= @k < size(), in heap order or, after sortDescending(), in
+	 * order of decreasing score
+	 */
+	int id ( int k )
+	{
+		return ids[k];
+	}
+
+	/**
+	 * @return the score at position @k, 0 <= @k < size(), in the same order as id(@k)
+	 */
+	double score ( int k )
+	{
+		return scores[k];
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return true if the entry at position @a ranks below the entry at position @b
+	 */
+	private boolean lower (	int a,
+							int b )
+	{
+		return scores[a] < scores[b] || (scores[a] == scores[b] && ids[a] > ids[b]);
+	}
+
+	private void siftUp ( int k )
+	{
+		while (k > 0)	{
+			int parent = (k - 1) >>> 1;
+			if (!lower(k, parent))
+				break;
+			swap(k, parent);
+			k = parent;
+		}
+	}
+
+	private void siftDown (	int k,
+							int n )
+	{
+		while (true)	{
+			int child = 2 * k + 1;
+			if (child >= n)
+				break;
+			if (child + 1 < n && lower(child + 1, child))
+				child++;
+			if (!lower(child, k))
+				break;
+			swap(k, child);
+			k = child;
+		}
+	}
+
+	private void swap (	int a,
+						int b )
+	{
+		int id = ids[a];
+		ids[a] = ids[b];
+		ids[b] = id;
+		double score = scores[a];
+		scores[a] = scores[b];
+		scores[b] = score;
+	}
+}
@@ -0,0 +1,76 @@
+package recommender;
+
+/**
+ * A list of recommended items, best first, along with the predicted rating of each. Of items with equal
+ * predicted ratings, those with smaller ids come first.
+ */
+public final class TopNList {
+
+	/*********************************************************************************************************/
+	/* 										Private data members											 */
+	/*********************************************************************************************************/
+	private final int[] items;
+	private final double[] scores;
+
+
+	/*********************************************************************************************************/
+	/* 											Public methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the number of items in the list
+	 */
+	public int size ()
+	{
+		return items.length;
+	}
+
+	/**
+	 * @return the id of the @k-th item, 0 <= @k < size()
+	 */
+	public int item ( int k )
+	{
+		return items[k];
+	}
+
+	/**
+	 * @return the predicted rating of the @k-th item, 0 <= @k < size()
+	 */
+	public double score ( int k )
+	{
+		return scores[k];
+	}
+
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Sorts @heap, whose ids are external item ids, into a list. The heap must be cleared before it is used
+	 * again.
+	 */
+	static TopNList of ( TopKHeap heap )
+	{
+		heap.sortDescending();
+		int[] ids = new int[heap.size()];
+		double[] scores = new double[heap.size()];
+		for (int k = 0; k < heap.size(); k++)	{
+			ids[k] = heap.id(k);
+			scores[k] = heap.score(k);
+		}
+		return new TopNList(ids, scores);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private TopNList (	int[] items,
+						double[] scores )
+	{
+		this.items = items;
+		this.scores = scores;
+	}
+}
@@ -1,8 +1,5 @@
 package recommender;
 
-import java.awt.Point;
-import java.util.*;
-
 /**
  * The User-User Collaborative Filtering Algorithm using Vector Cosine Similarity
  */
@@ -11,10 +8,14 @@ public class UUCollaborativeFiltering extends BaseRecommender {
 	/*********************************************************************************************************/
 	/* 										Private data members											 */
 	/*********************************************************************************************************/
-	private HashMap<Integer, ArrayList<Integer>> neighbors;
-	private HashMap<Integer, HashMap<Integer, Double>> similarity;
+	private NeighborTable neighbors;
+	private ScratchPool<ScoreBuffer> buffers;
+	private double[][] similarity;
+	private RatingView ratings;
 	private int NEIGHBORHOOD_SIZE;
 	private int MIN_NEIGHBORS;
+	private int NUM_THREADS;
+	private boolean TOP_K_ONLY;
 	
 	
 	/*********************************************************************************************************/
@@ -22,6 +23,8 @@ public class UUCollaborativeFiltering extends BaseRecommender {
 	/*********************************************************************************************************/	
 	
 	/**
+	 * The similarities are computed with one thread per available processor.
+	 * 
 	 * @param dao The Data Access Object built on top of the training and test data set.
 	 * 
 	 * @param NEIGHBORHOOD_SIZE The maximum number of neighbors of each user. We used a value of 378 on
@@ -36,29 +39,120 @@ public class UUCollaborativeFiltering extends BaseRecommender {
 	public UUCollaborativeFiltering (	DAO dao, 
 										int NEIGHBORHOOD_SIZE, 
 										int MIN_NEIGHBORS )  
+	{
+		this(dao, NEIGHBORHOOD_SIZE, MIN_NEIGHBORS, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param dao The Data Access Object built on top of the training and test data set.
+	 * 
+	 * @param NEIGHBORHOOD_SIZE The maximum number of neighbors of each user. We used a value of 378 on
+	 * the Movielens 100K dataset. Increasing the neighborhood size increases memory and time requirements
+	 * of the algorithm. Too small neighborhood size may limit the coverage of the algorithm. Both too small
+	 * or too large neighborhood may increase the error.
+	 * 
+	 * @param MIN_NEIGHBORS Minimum number of neighbors that a user must have, which have rated a given item,
+	 * before we can predict a rating for the item. We used a value of 12 on the Movielens 100K dataset.
+	 * Too small a value may increase the error while too large a value may decrease the coverage drastically.
+	 * 
+	 * @param NUM_THREADS The number of threads used to compute the similarities between all pairs of users.
+	 */
+	public UUCollaborativeFiltering (	DAO dao, 
+										int NEIGHBORHOOD_SIZE, 
+										int MIN_NEIGHBORS, 
+										int NUM_THREADS )  
+	{
+		this(dao, NEIGHBORHOOD_SIZE, MIN_NEIGHBORS, NUM_THREADS, false);
+	}
+	
+	/**
+	 * @param dao The Data Access Object built on top of the training and test data set.
+	 * 
+	 * @param NEIGHBORHOOD_SIZE The maximum number of neighbors of each user. We used a value of 378 on
+	 * the Movielens 100K dataset. Increasing the neighborhood size increases memory and time requirements
+	 * of the algorithm. Too small neighborhood size may limit the coverage of the algorithm. Both too small
+	 * or too large neighborhood may increase the error.
+	 * 
+	 * @param MIN_NEIGHBORS Minimum number of neighbors that a user must have, which have rated a given item,
+	 * before we can predict a rating for the item. We used a value of 12 on the Movielens 100K dataset.
+	 * Too small a value may increase the error while too large a value may decrease the coverage drastically.
+	 * 
+	 * @param NUM_THREADS The number of threads used to compute the similarities between all pairs of users.
+	 * 
+	 * @param TOP_K_ONLY If true, only the NEIGHBORHOOD_SIZE highest similarities of each user are kept while the
+	 * similarities are computed, so memory grows as O(users x NEIGHBORHOOD_SIZE) instead of O(users^2). Each
+	 * pair of users is then computed twice, once from each side, so training takes up to twice as long.
+	 */
+	public UUCollaborativeFiltering (	DAO dao, 
+										int NEIGHBORHOOD_SIZE, 
+										int MIN_NEIGHBORS, 
+										int NUM_THREADS, 
+										boolean TOP_K_ONLY )  
 	{
 		super(dao);
 		
 		this.NEIGHBORHOOD_SIZE = NEIGHBORHOOD_SIZE;
 		this.MIN_NEIGHBORS = MIN_NEIGHBORS;
+		this.NUM_THREADS = NUM_THREADS;
+		this.TOP_K_ONLY = TOP_K_ONLY;
 		
-		neighbors = new HashMap<Integer, ArrayList<Integer>>();
-		similarity = new HashMap<Integer, HashMap<Integer, Double>>();
+		ratings = dao.userCenteredView();
+		buffers = new ScratchPool<ScoreBuffer>() {
+			ScoreBuffer create ()	{
+				return new ScoreBuffer(UUCollaborativeFiltering.this.dao.numTrainItems());
+			}
+		};
 	}
 	
 	/**
 	 * This method overrides the train() method in the BaseRecommender class and finds neighbors for each user.
+	 * The phases "similarities", "neighbors", "pack" and the whole "train" are timed in getMetrics(), along
+	 * with the similarity gauges of SimilarityEngine.recordGauges().
 	 */
 	public void train ()	
 	{
-		dao.userMeanNormalize();
-		computeSimilaritybwAllPairs();		
+		checkNotFrozen();
+		metrics.resetTraining();
+		int numUsers = dao.numTrainUsers();
+		int[][] ids = new int[numUsers][];
+		double[][] sims = new double[numUsers][];
 		
-		// Find neighborhood for each user
-		for (Integer user : dao.getTrainUsers())			
-			neighbors.put(user, findNeighbors(user));
+		long start = System.nanoTime(), t = start;
+		SimilarityEngine engine = new SimilarityEngine(ratings.byUser(), ratings.byItem(), NUM_THREADS);
+		if (TOP_K_ONLY)	{
+			// Neighbors are picked while the similarities are computed, so the two phases are one
+			engine.computeTopK(NEIGHBORHOOD_SIZE, ids, sims);
+			t = metrics.endPhase("similarities", t);
+		} else	{
+			computeSimilaritybwAllPairs(engine);
+			t = metrics.endPhase("similarities", t);
+			
+			// Find neighborhood for each user
+			TopKHeap heap = new TopKHeap(NEIGHBORHOOD_SIZE);
+			for (int u = 0; u < numUsers; u++)
+				findNeighbors(u, heap, ids, sims);
+			
+			// Only the similarities to the neighbors are needed from now on
+			similarity = null;
+			t = metrics.endPhase("neighbors", t);
+		}
+		engine.recordGauges(metrics, metrics.phaseNanos("similarities"));
+		
+		neighbors = NeighborTable.pack(ids, sims);
+		metrics.endPhase("pack", t);
+		metrics.setModelBytes(modelBytes());
+		metrics.endPhase("train", start);
 	}
 
+	/**
+	 * This method overrides the isTrained() method in the BaseRecommender class.
+	 * @return whether the neighborhoods have been computed by train()
+	 */
+	public boolean isTrained ()
+	{
+		return neighbors != null;
+	}
+	
 	/**
 	 * This method overrides the predict() method in the BaseRecommender class.
 	 * @return the predicted rating that @user will assign to @item, or Double.NEGATIVE_INFINITY 
@@ -67,16 +161,36 @@ public class UUCollaborativeFiltering extends BaseRecommender {
 	public double predict (	int user, 
 							int item )	
 	{
+		int u = dao.trainUsers().indexOf(user);
+		if (u < 0)
+			return Double.NEGATIVE_INFINITY;
+		
+		int i = dao.trainItems().indexOf(item);
+		if (i < 0)
+			return Double.NEGATIVE_INFINITY;
+		
 		double prediction = 0.0, normalizer = 0.0;
 		int countRatings = 0;
 		
-		for (Integer neighbor : neighbors.get(user))	{
-			if (dao.containsTrainRating(neighbor, item))	{
-				double rating = dao.getTrainRating(neighbor, item);
-				double sim = getUUSimilarity(user, neighbor);
+		// Both the neighbors of @u and the raters of @i are sorted by user index, so the neighbors who have
+		// rated @i are found by merging the two lists
+		CenteredMatrix byItem = ratings.byItem();
+		int n = neighbors.rowStart(u), nEnd = neighbors.rowEnd(u);
+		int k = byItem.rowStart(i), kEnd = byItem.rowEnd(i);
+		while (n < nEnd && k < kEnd)	{
+			int neighbor = neighbors.id(n), rater = byItem.col(k);
+			if (neighbor < rater)
+				n++;
+			else if (neighbor > rater)
+				k++;
+			else	{
+				double rating = byItem.value(i, k);
+				double sim = neighbors.weight(n);
 				prediction += rating * sim;
 				normalizer += Math.abs(sim);
 				countRatings++;
+				n++;
+				k++;
 			}
 		}
 		
@@ -84,34 +198,67 @@ public class UUCollaborativeFiltering extends BaseRecommender {
 			return ceilPrediction(dao.getUserMeanRating(user) + ((prediction + 1) / (normalizer + 1)));
 		return Double.NEGATIVE_INFINITY;
 	}
-	
-	
-	/*********************************************************************************************************/
-	/* 										Private helper methods											 */
-	/*********************************************************************************************************/
-	
+
+
 	/**
-	 * @return the vector cosine similarity between rating vectors of users @u and @v, @u < @v
+	 * This method overrides the recommend() method in the BaseRecommender class. Instead of a merge-join of
+	 * the neighbors of @user with the raters of every candidate item, it walks the neighbors of @user once,
+	 * accumulating each neighbor's weighted ratings into the items that neighbor has rated. Only the items
+	 * rated by at least one neighbor are ever scored. The scores are the same as those of predict().
 	 */
-	private double VectorCosineSimilarity (	int u, 
-											int v )	
+	public TopNList recommend (	int user,
+								int n,
+								ItemFilter filter )
 	{
-		double num = 0.0, norm_u = 0.0, norm_v = 0.0;
+		TopKHeap heap = new TopKHeap(Math.max(n, 0));
+		int u = dao.trainUsers().indexOf(user);
+		if (u < 0)
+			return TopNList.of(heap);
 		
-		for (Integer item : dao.getTrainItems(u))	{
-			if (dao.containsTrainRating(v, item))	{
-				double r_u = dao.getTrainRating(u, item);
-				double r_v = dao.getTrainRating(v, item);
-				num += r_u * r_v;
-				norm_u += r_u * r_u;
-				norm_v += r_v * r_v;
-			}
+		// A buffer left behind by an exception thrown from @filter is simply not returned to the pool
+		ScoreBuffer buffer = buffers.acquire();
+		
+		// Neighbors are visited by increasing index, so each item's sums are accumulated in the same order
+		// as the merge-join of predict() accumulates them
+		CenteredMatrix byUser = ratings.byUser();
+		for (int nb = neighbors.rowStart(u); nb < neighbors.rowEnd(u); nb++)	{
+			int v = neighbors.id(nb);
+			double sim = neighbors.weight(nb);
+			for (int k = byUser.rowStart(v); k < byUser.rowEnd(v); k++)
+				buffer.add(byUser.col(k), byUser.value(v, k) * sim, Math.abs(sim));
 		}
-		norm_u = Math.sqrt(norm_u);
-		norm_v = Math.sqrt(norm_v);
-		return (num + 1) / (norm_u * norm_v + 1);
+		for (int k = byUser.rowStart(u); k < byUser.rowEnd(u); k++)
+			buffer.exclude(byUser.col(k));
+		
+		IdIndex items = dao.trainItems();
+		double mean = dao.userMean(u);
+		for (int t = 0; t < buffer.numTouched(); t++)	{
+			int i = buffer.touched(t);
+			if (buffer.excluded[i] || buffer.count[i] < MIN_NEIGHBORS)
+				continue;
+			int item = items.idAt(i);
+			if (filter == null || !filter.exclude(item))
+				heap.offer(item, ceilPrediction(mean + ((buffer.sum[i] + 1) / (buffer.weight[i] + 1))));
+		}
+		buffer.clear();
+		buffers.release(buffer);
+		return TopNList.of(heap);
 	}
 	
+	/**
+	 * This method overrides the modelBytes() method in the BaseRecommender class.
+	 * @return the bytes taken by the neighbors of all users
+	 */
+	protected long modelBytes ()
+	{
+		return neighbors == null ? 0L : neighbors.bytes();
+	}
+	
+	
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+	
 	/**
 	 * @return the vector cosine similarity between rating vectors of users @u and @v
 	 * Since vector similarity is symmetric, it needs to be calculated only for one half
@@ -121,73 +268,46 @@ public class UUCollaborativeFiltering extends BaseRecommender {
 									int v )	
 	{
 		if (u < v)
-			return similarity.get(u).get(v);
+			return similarity[u][v - u - 1];
 		else if (u == v)
 			return 1.0;
 		else
-			return similarity.get(v).get(u);
+			return similarity[v][u - v - 1];
 	}
 	
 	/**
-	 * Computes and stores vector cosine similarity between all user pairs (u, v).
+	 * Computes and stores vector cosine similarity between all user pairs (u, v) with @engine.
 	 * Since vector similarity is symmetric, it needs to be calculated only for one half
-	 * of all the user pairs (u, v).
+	 * of all the user pairs (u, v). The dot products are accumulated through the item to users
+	 * index, so only pairs of users who have rated a common item are ever visited.
 	 */
-	private void computeSimilaritybwAllPairs ()	
+	private void computeSimilaritybwAllPairs ( SimilarityEngine engine )	
 	{
-		for (Integer u : dao.getTrainUsers())	{
-			for (Integer v : dao.getTrainUsers())	{
-				if (u < v)	{
-					double sim = VectorCosineSimilarity(u, v);
-					if (similarity.containsKey(u))
-						similarity.get(u).put(v, sim);
-					else	{
-						HashMap<Integer, Double> sim_score = new HashMap<Integer, Double>();
-						sim_score.put(v, sim);
-						similarity.put(u, sim_score);
-					}
-				}
-			}
-		}
+		similarity = engine.computeUpperTriangle();
 	}
 	
 	/**
-	 * @return a list, of size at most @NEIGHBORHOOD_SIZE, of most similar neighbors of @user
+	 * Finds the at most @NEIGHBORHOOD_SIZE most similar neighbors of the user with dense index @u and stores them
+	 * in @ids[u], along with their similarities in @sims[u]. Of equally similar users, those with smaller ids are kept.
+	 * @param heap a heap of capacity @NEIGHBORHOOD_SIZE, reused across calls
 	 */
-	private ArrayList<Integer> findNeighbors (int user)	
+	private void findNeighbors (	int u, 
+									TopKHeap heap, 
+									int[][] ids, 
+									double[][] sims )	
 	{
-		// A minimum priority queue to permit replacing a neighbor with the least similar
-		// neighbor already in the priority queue for some @user
-		PriorityQueue<Point> pq = new PriorityQueue<Point>(NEIGHBORHOOD_SIZE, new Comparator<Point>() {
-			public int compare(Point a, Point b)	{
-				double sim_u1 = getUUSimilarity(a.x, a.y);
-				double sim_u2 = getUUSimilarity(b.x, b.y);
-				if (sim_u1 < sim_u2)
-					return -1;
-				else if (sim_u1 == sim_u2)
-					return 0;
-				else
-					return 1;
-			}
-		});
+		// A bounded minimum heap to permit replacing a neighbor with the least similar
+		// neighbor already in the heap for some @u
+		heap.clear();
+		for (int v = 0; v < similarity.length; v++)
+			if (v != u)
+				heap.offer(v, getUUSimilarity(u, v));
 		
-		for (Integer v : dao.getTrainUsers())	{
-			if (v != user)	{
-				if (pq.size() < NEIGHBORHOOD_SIZE) {
-						pq.add(new Point(user, v));
-				} else {
-					Point min = pq.peek();
-					if (getUUSimilarity(min.x, min.y) < getUUSimilarity(user, v))	{
-						pq.remove();
-						pq.add(new Point(user, v));
-					}
-				}
-			}
+		ids[u] = new int[heap.size()];
+		sims[u] = new double[heap.size()];
+		for (int k = 0; k < heap.size(); k++)	{
+			ids[u][k] = heap.id(k);
+			sims[u][k] = heap.score(k);
 		}
-					
-		ArrayList<Integer> nbrs = new ArrayList<Integer>();
-		for (Point a : pq)
-			nbrs.add(a.y);
-		return nbrs;
 	}	
 }
@@ -0,0 +1,91 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * evaluate() and evaluateRanking() only call predict() and recommend() from the calling thread unless given
+ * more threads, and the prediction file does not depend on the number of threads.
+ */
+public class BaseRecommenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO dao;
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		dao = TestRatings.load(TestRatings.write(folder.getRoot(), 100, 80, 1500, 19));
+	}
+
+	@Test
+	public void evaluatesOnTheCallingThreadByDefault ()
+			throws IOException
+	{
+		final Thread caller = Thread.currentThread();
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		BaseRecommender recommender = new BaseRecommender(dao) {
+			public double predict (	int user,
+									int item )	{
+				threads.add(Thread.currentThread());
+				return super.predict(user, item);
+			}
+		};
+		recommender.train();
+		recommender.evaluate(null);
+		recommender.evaluateRanking(10, 4.0);
+		assertEquals(Collections.singleton(caller), threads);
+
+		recommender.evaluate(null, 4);
+		assertTrue(threads.size() > 1);
+	}
+
+	@Test
+	public void writesTheSamePredictionsOnAnyNumberOfThreads ()
+			throws IOException
+	{
+		BaseRecommender recommender = new UUCollaborativeFiltering(dao, 20, 2, 1);
+		recommender.train();
+		File one = folder.newFile("one.predict"), four = folder.newFile("four.predict");
+		recommender.evaluate(one.getPath(), 1);
+		recommender.evaluate(four.getPath(), 4);
+
+		List<String> lines = lines(one);
+		assertEquals(lines, lines(four));
+		assertTrue(lines.size() > 0);
+		for (String line : lines)	{
+			String[] fields = line.split(" ");
+			int user = Integer.parseInt(fields[0]), item = Integer.parseInt(fields[1]);
+			assertEquals(String.format("%f", dao.getTestRating(user, item)), fields[2]);
+			assertEquals(String.format("%f", recommender.predict(user, item)), fields[3]);
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static List<String> lines ( File file )
+			throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try	{
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} finally	{
+			in.close();
+		}
+		return lines;
+	}
+}
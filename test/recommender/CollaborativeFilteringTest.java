@@ -0,0 +1,77 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The user-user and item-item models predict exactly the same whether they keep only the top-K neighbors of
+ * each row while computing the similarities or select them from the full similarity matrix, and on any number
+ * of threads.
+ */
+public class CollaborativeFilteringTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO dao;
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		dao = TestRatings.load(TestRatings.write(folder.getRoot(), 300, 200, 6000, 9));
+	}
+
+	@Test
+	public void userUserTopKMatchesFull ()
+	{
+		BaseRecommender full = new UUCollaborativeFiltering(dao, 30, 3, 1, false);
+		full.train();
+		for (int threads : new int[] { 1, 4 })	{
+			BaseRecommender topK = new UUCollaborativeFiltering(dao, 30, 3, threads, true);
+			topK.train();
+			assertSamePredictions(full, topK);
+			BaseRecommender parallel = new UUCollaborativeFiltering(dao, 30, 3, threads, false);
+			parallel.train();
+			assertSamePredictions(full, parallel);
+		}
+	}
+
+	@Test
+	public void itemItemTopKMatchesFull ()
+	{
+		BaseRecommender full = new IICollaborativeFiltering(dao, 30, 3, 1, false);
+		full.train();
+		for (int threads : new int[] { 1, 4 })	{
+			BaseRecommender topK = new IICollaborativeFiltering(dao, 30, 3, threads, true);
+			topK.train();
+			assertSamePredictions(full, topK);
+			BaseRecommender parallel = new IICollaborativeFiltering(dao, 30, 3, threads, false);
+			parallel.train();
+			assertSamePredictions(full, parallel);
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private void assertSamePredictions (	BaseRecommender expected,
+											BaseRecommender actual )
+	{
+		int predicted = 0;
+		for (int user : dao.getTrainUsers())
+			for (int item : dao.getAllItems())	{
+				double prediction = expected.predict(user, item);
+				assertEquals(prediction, actual.predict(user, item), 0.0);
+				if (prediction != Double.NEGATIVE_INFINITY)
+					predicted++;
+			}
+		assertTrue(predicted > 0);
+	}
+}
@@ -0,0 +1,107 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A DAO saved to a binary rating file and loaded back holds exactly the ratings, means and ids of the DAO
+ * parsed from the text files, and the recommenders trained on either predict the same. Saving over the file
+ * leaves the DAO already open on it untouched.
+ */
+public class DAOBinaryFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO text;
+	private DAO binary;
+	private File file;
+
+	@Before
+	public void saveAndLoad ()
+			throws IOException
+	{
+		text = TestRatings.load(TestRatings.write(folder.getRoot(), 300, 200, 6000, 3));
+		file = new File(folder.getRoot(), "ratings.dao");
+		text.save(file.getPath());
+		binary = new DAO(file.getPath());
+	}
+
+	@Test
+	public void keepsTheTrainingData ()
+	{
+		assertEquals(text.numTrainUsers(), binary.numTrainUsers());
+		assertEquals(text.numTrainItems(), binary.numTrainItems());
+		assertEquals(text.numTrainRatings(), binary.numTrainRatings());
+		assertEquals(ids(text.getTrainUsers()), ids(binary.getTrainUsers()));
+		assertEquals(ids(text.getAllItems()), ids(binary.getAllItems()));
+
+		for (int user : text.getTrainUsers())	{
+			assertEquals(ids(text.getTrainItems(user)), ids(binary.getTrainItems(user)));
+			for (int item : text.getTrainItems(user))
+				assertEquals(text.getTrainRating(user, item), binary.getTrainRating(user, item), 0.0);
+			assertEquals(text.getUserMeanRating(user), binary.getUserMeanRating(user), 0.0);
+		}
+		for (int item : text.getTransposedTrainItems())	{
+			assertEquals(ids(text.getTransposedTrainUsers(item)), ids(binary.getTransposedTrainUsers(item)));
+			assertEquals(text.getItemMeanRating(item), binary.getItemMeanRating(item), 0.0);
+		}
+	}
+
+	@Test
+	public void keepsTheTestData ()
+	{
+		assertEquals(ids(text.getTestUsers()), ids(binary.getTestUsers()));
+		for (int user : text.getTestUsers())	{
+			assertEquals(ids(text.getTestItems(user)), ids(binary.getTestItems(user)));
+			for (int item : text.getTestItems(user))
+				assertEquals(text.getTestRating(user, item), binary.getTestRating(user, item), 0.0);
+		}
+	}
+
+	@Test
+	public void givesTheSamePredictions ()
+	{
+		BaseRecommender[] fromText = { new UUCollaborativeFiltering(text, 30, 3), new SlopeOneRecommender(text) };
+		BaseRecommender[] fromBinary = { new UUCollaborativeFiltering(binary, 30, 3), new SlopeOneRecommender(binary) };
+		for (int r = 0; r < fromText.length; r++)	{
+			fromText[r].train();
+			fromBinary[r].train();
+			for (int user : text.getTestUsers())
+				for (int item : text.getTestItems(user))
+					assertEquals(fromText[r].predict(user, item), fromBinary[r].predict(user, item), 0.0);
+		}
+	}
+
+	@Test
+	public void savingOverTheFileKeepsOpenDAOs ()
+			throws IOException
+	{
+		File smaller = folder.newFolder("smaller");
+		DAO other = TestRatings.load(TestRatings.write(smaller, 50, 40, 500, 4));
+		other.save(file.getPath());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		assertEquals(other.numTrainRatings(), new DAO(file.getPath()).numTrainRatings());
+
+		keepsTheTrainingData();
+		keepsTheTestData();
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static List<Integer> ids ( Iterable<Integer> iterable )
+	{
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id : iterable)
+			ids.add(id);
+		return ids;
+	}
+}
@@ -0,0 +1,123 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * evaluateRanking() reports the precision, recall, NDCG and MAP at K computed by hand for fixed top-K lists,
+ * on one thread and on several.
+ */
+public class EvaluateRankingTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO dao;
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		File train = folder.newFile("ranking.base"), test = folder.newFile("ranking.test");
+		write(train, "1 50 3", "2 50 3", "3 50 3", "4 50 3");
+		// Relevant items, rated 4 or more: user 1 has 10, 11 and 13, user 2 has 20, user 3 has none and user 4 has 40
+		write(test, "1 10 5", "1 11 4", "1 12 2", "1 13 4", "2 20 4", "2 21 1", "3 30 3", "4 40 5");
+		dao = new DAO(train.getPath(), test.getPath(), " ");
+	}
+
+	@Test
+	public void computesTheMetricsByHand ()
+	{
+		final Map<Integer, int[]> lists = new HashMap<Integer, int[]>();
+		lists.put(1, new int[] { 10, 12, 11 });
+		lists.put(2, new int[] { 21, 22, 20 });
+		lists.put(3, new int[] { 30 });
+		lists.put(4, new int[0]);
+		BaseRecommender recommender = new BaseRecommender(dao) {
+			public TopNList recommend (	int user,
+										int n,
+										ItemFilter filter )	{
+				TopKHeap heap = new TopKHeap(n);
+				int[] items = lists.get(user);
+				for (int k = 0; k < items.length; k++)
+					heap.offer(items[k], 5.0 - k);
+				return TopNList.of(heap);
+			}
+		};
+
+		// User 1 hits at ranks 1 and 3 of 3 relevant items, user 2 at rank 3 of 1, user 4 never; user 3 is skipped
+		double ndcg1 = (1 + 1 / log2(4)) / (1 + 1 / log2(3) + 1 / log2(4)), ndcg2 = (1 / log2(4)) / 1;
+		double[] expected = {
+			(2.0 / 3 + 1.0 / 3 + 0) / 3,					// precision@3
+			(2.0 / 3 + 1.0 / 1 + 0) / 3,					// recall@3
+			(ndcg1 + ndcg2 + 0) / 3,						// NDCG@3
+			((1.0 / 1 + 2.0 / 3) / 3 + (1.0 / 3) / 1 + 0) / 3	// MAP@3
+		};
+		for (int threads : new int[] { 1, 3 })	{
+			Map<String, String> report = report(recommender, 3, threads);
+			assertEquals("3", report.get("Users"));
+			assertEquals(expected[0], Double.parseDouble(report.get("Precision@3")), 1e-6);
+			assertEquals(expected[1], Double.parseDouble(report.get("Recall@3")), 1e-6);
+			assertEquals(expected[2], Double.parseDouble(report.get("NDCG@3")), 1e-6);
+			assertEquals(expected[3], Double.parseDouble(report.get("MAP@3")), 1e-6);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyLists ()
+	{
+		new BaseRecommender(dao).evaluateRanking(0, 4.0);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the "name : value" lines printed by evaluateRanking(@K, 4.0, @threads), by name
+	 */
+	private static Map<String, String> report (	BaseRecommender recommender,
+												int K,
+												int threads )
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(bytes, true));
+		try	{
+			recommender.evaluateRanking(K, 4.0, threads);
+		} finally	{
+			System.setOut(out);
+		}
+		Map<String, String> report = new HashMap<String, String>();
+		for (String line : bytes.toString().split("\n"))	{
+			int colon = line.indexOf(" : ");
+			if (colon >= 0)
+				report.put(line.substring(0, colon), line.substring(colon + 3).trim());
+		}
+		return report;
+	}
+
+	private static double log2 ( double x )
+	{
+		return Math.log(x) / Math.log(2);
+	}
+
+	private static void write (	File file,
+								String... lines )
+			throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try	{
+			for (String line : lines)
+				out.print(line + "\n");
+		} finally	{
+			out.close();
+		}
+	}
+}
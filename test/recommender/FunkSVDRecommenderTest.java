@@ -0,0 +1,115 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A FunkSVD model predicts exactly the same once written out and read back, even after another model is
+ * trained into the same files, and DSGD training learns the same model on every run.
+ */
+public class FunkSVDRecommenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO dao;
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		dao = TestRatings.load(TestRatings.write(folder.getRoot(), 300, 200, 6000, 5));
+	}
+
+	@Test
+	public void predictsTheSameOnceReadBack ()
+			throws IOException
+	{
+		FunkSVDRecommender trained = train(1, false, "trained");
+		FunkSVDRecommender read = new FunkSVDRecommender(dao, file("trained.users"), file("trained.items"));
+		read.train();
+		assertSamePredictions(trained, read);
+
+		for (int user : dao.getTrainUsers())	{
+			TopNList expected = trained.recommend(user, 10, null), actual = read.recommend(user, 10, null);
+			assertEquals(expected.size(), actual.size());
+			for (int k = 0; k < expected.size(); k++)	{
+				assertEquals(expected.item(k), actual.item(k));
+				assertEquals(expected.score(k), actual.score(k), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void retrainingKeepsALoadedModel ()
+			throws IOException
+	{
+		FunkSVDRecommender trained = train(1, false, "shared");
+		FunkSVDRecommender read = new FunkSVDRecommender(dao, file("shared.users"), file("shared.items"));
+		read.train();
+
+		// A smaller model in the same files, as when a retrained model is swapped in for the one served
+		FunkSVDRecommender retrained = new FunkSVDRecommender(dao, 2, 5, 0.1, 0.0001, 0.001, 0.015,
+				1, false, file("shared.users"), file("shared.items"));
+		retrained.train();
+		assertFalse(new File(file("shared.users.tmp")).exists());
+		assertSamePredictions(trained, read);
+		assertSamePredictions(retrained, new FunkSVDRecommender(dao, file("shared.users"), file("shared.items")));
+	}
+
+	@Test
+	public void learnsTheSameModelWithDSGD ()
+	{
+		assertSamePredictions(train(3, true, "first"), train(3, true, "second"));
+	}
+
+	@Test
+	public void batchPredictMatchesPredict ()
+	{
+		FunkSVDRecommender recommender = train(1, false, "batch");
+		int[] items = new int[dao.numTrainItems() + 1];
+		int k = 0;
+		for (int item : dao.getAllItems())
+			items[k++] = item;
+		items[k] = Integer.MAX_VALUE;
+
+		double[] predictions = new double[items.length];
+		for (int user : dao.getTrainUsers())	{
+			recommender.predict(user, items, predictions);
+			for (k = 0; k < items.length; k++)
+				assertEquals(recommender.predict(user, items[k]), predictions[k], 0.0);
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private FunkSVDRecommender train (	int NUM_THREADS,
+										boolean DETERMINISTIC,
+										String name )
+	{
+		FunkSVDRecommender recommender = new FunkSVDRecommender(dao, 4, 20, 0.1, 0.0001, 0.001, 0.015,
+				NUM_THREADS, DETERMINISTIC, file(name + ".users"), file(name + ".items"));
+		recommender.train();
+		return recommender;
+	}
+
+	private String file ( String name )
+	{
+		return new File(folder.getRoot(), name).getPath();
+	}
+
+	private void assertSamePredictions (	BaseRecommender expected,
+											BaseRecommender actual )
+	{
+		for (int user : dao.getTrainUsers())
+			for (int item : dao.getAllItems())
+				assertEquals(expected.predict(user, item), actual.predict(user, item), 0.0);
+	}
+}
@@ -0,0 +1,177 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The IVF index holds every vector in exactly one list, finds exactly the best vectors when every list is
+ * probed, and finds more of them the more lists it probes, most of them from a quarter of the lists on
+ * clustered vectors. A FunkSVD model recommends the same with the index probing every list as without it.
+ */
+public class InnerProductIndexTest {
+
+	private static final int DIM = 8;
+	private static final int NUM_VECTORS = 4000;
+	private static final int NUM_LISTS = 32;
+	private static final int N = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FloatBuffer vectors;
+	private double[] offsets;
+	private double[][] queries;
+	private InnerProductIndex index;
+
+	@Before
+	public void buildIndex ()
+	{
+		// Vectors around 64 random centers, as item features are, with offsets like item biases
+		Random random = new Random(5);
+		double[][] centers = new double[64][DIM];
+		for (double[] center : centers)
+			for (int f = 0; f < DIM; f++)
+				center[f] = random.nextGaussian();
+		float[] values = new float[NUM_VECTORS * DIM];
+		offsets = new double[NUM_VECTORS];
+		for (int v = 0; v < NUM_VECTORS; v++)	{
+			double[] center = centers[random.nextInt(centers.length)];
+			for (int f = 0; f < DIM; f++)
+				values[v * DIM + f] = (float) (center[f] + 0.2 * random.nextGaussian());
+			offsets[v] = 0.3 * random.nextGaussian();
+		}
+		vectors = FloatBuffer.wrap(values);
+		queries = new double[200][DIM];
+		for (double[] query : queries)
+			for (int f = 0; f < DIM; f++)
+				query[f] = random.nextGaussian();
+		index = InnerProductIndex.build(vectors, offsets, DIM, NUM_LISTS);
+	}
+
+	@Test
+	public void holdsEveryVectorOnce ()
+	{
+		assertEquals(NUM_LISTS, index.numLists());
+		assertEquals(0, index.listStart(0));
+		assertEquals(NUM_VECTORS, index.listEnd(NUM_LISTS - 1));
+		boolean[] seen = new boolean[NUM_VECTORS];
+		for (int list = 0; list < NUM_LISTS; list++)	{
+			assertEquals(index.listEnd(list), list + 1 < NUM_LISTS ? index.listStart(list + 1) : NUM_VECTORS);
+			for (int k = index.listStart(list); k < index.listEnd(list); k++)	{
+				int v = index.id(k);
+				assertFalse(seen[v]);
+				seen[v] = true;
+				for (int f = 0; f < DIM; f++)
+					assertEquals(vectors.get(v * DIM + f), index.component(k, f), 0.0f);
+			}
+		}
+	}
+
+	@Test
+	public void findsTheBestWithEveryListProbed ()
+	{
+		for (double[] query : queries)
+			assertArrayEquals(exact(query), search(query, NUM_LISTS));
+	}
+
+	@Test
+	public void findsMoreWithMoreProbes ()
+	{
+		double previous = 0.0;
+		for (int probes : new int[] { 1, 2, 4, 8, 16, NUM_LISTS })	{
+			double recall = recall(probes);
+			assertTrue(probes + " probes: " + recall, recall >= previous);
+			previous = recall;
+		}
+		assertTrue(recall(NUM_LISTS / 4) >= 0.9);
+		assertEquals(1.0, recall(NUM_LISTS), 0.0);
+	}
+
+	@Test
+	public void recommendsTheSameWithEveryListProbed ()
+			throws IOException
+	{
+		DAO dao = TestRatings.load(TestRatings.write(folder.getRoot(), 300, 200, 6000, 5));
+		FunkSVDRecommender recommender = new FunkSVDRecommender(dao, 4, 20, 0.1, 0.0001, 0.001, 0.015, 1, false,
+				new File(folder.getRoot(), "index.users").getPath(), new File(folder.getRoot(), "index.items").getPath());
+		recommender.train();
+		recommender.buildItemIndex(8, 8);
+		for (int user : dao.getTrainUsers())	{
+			TopNList expected = recommender.recommend(user, N, null, 0), actual = recommender.recommend(user, N, null);
+			assertEquals(expected.size(), actual.size());
+			for (int k = 0; k < expected.size(); k++)	{
+				assertEquals(expected.item(k), actual.item(k));
+				assertEquals(expected.score(k), actual.score(k), 0.0);
+			}
+		}
+		assertEquals(1.0, recommender.measureIndexRecall(N, 8), 0.0);
+		assertTrue(recommender.measureIndexRecall(N, 1) < 1.0);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return the fraction of the best N vectors of each query found by probing @probes lists, on average
+	 */
+	private double recall ( int probes )
+	{
+		double recall = 0.0;
+		for (double[] query : queries)	{
+			Set<Integer> best = new HashSet<Integer>();
+			for (int v : exact(query))
+				best.add(v);
+			int found = 0;
+			for (int v : search(query, probes))
+				if (best.contains(v))
+					found++;
+			recall += (double) found / N;
+		}
+		return recall / queries.length;
+	}
+
+	private int[] exact ( double[] query )
+	{
+		TopKHeap heap = new TopKHeap(N);
+		for (int v = 0; v < NUM_VECTORS; v++)	{
+			double score = offsets[v];
+			for (int f = 0; f < DIM; f++)
+				score += query[f] * vectors.get(v * DIM + f);
+			heap.offer(v, score);
+		}
+		return sorted(heap);
+	}
+
+	private int[] search (	double[] query,
+							int probes )
+	{
+		int[] lists = new int[probes];
+		int numLists = index.probe(query, lists);
+		TopKHeap heap = new TopKHeap(N);
+		for (int l = 0; l < numLists; l++)
+			for (int k = index.listStart(lists[l]); k < index.listEnd(lists[l]); k++)	{
+				double score = offsets[index.id(k)];
+				for (int f = 0; f < DIM; f++)
+					score += query[f] * index.component(k, f);
+				heap.offer(index.id(k), score);
+			}
+		return sorted(heap);
+	}
+
+	private static int[] sorted ( TopKHeap heap )
+	{
+		heap.sortDescending();
+		int[] ids = new int[heap.size()];
+		for (int k = 0; k < ids.length; k++)
+			ids[k] = heap.id(k);
+		return ids;
+	}
+}
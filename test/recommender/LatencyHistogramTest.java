@@ -0,0 +1,101 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * A LatencyHistogram reports small latencies exactly and every percentile of any latencies within half a bucket,
+ * 1/64 of the true value, keeps exact counts, means and maxima, and loses no value recorded concurrently.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void reportsSmallLatenciesExactly ()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 1; nanos <= 60; nanos++)
+			histogram.record(nanos);
+		assertEquals(30, histogram.percentile(50));
+		assertEquals(54, histogram.percentile(90));
+		assertEquals(1, histogram.percentile(0));
+		assertEquals(60, histogram.percentile(100));
+		assertEquals(60, histogram.count());
+		assertEquals(30.5, histogram.mean(), 0.0);
+		assertEquals(60, histogram.max());
+	}
+
+	@Test
+	public void reportsPercentilesWithinHalfABucket ()
+	{
+		Random random = new Random(7);
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = new long[100000];
+		long sum = 0;
+		for (int k = 0; k < values.length; k++)	{
+			// From a microsecond to a second, evenly over the orders of magnitude
+			values[k] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+			histogram.record(values[k]);
+			sum += values[k];
+		}
+		Arrays.sort(values);
+
+		for (double percentile : new double[] { 1, 25, 50, 75, 90, 99, 99.9, 99.99, 100 })	{
+			long exact = values[(int) Math.ceil(values.length * percentile / 100.0) - 1];
+			long reported = histogram.percentile(percentile);
+			assertTrue(percentile + ": " + reported + " for " + exact, Math.abs(reported - exact) <= exact / 64 + 1);
+		}
+		assertEquals(values.length, histogram.count());
+		assertEquals((double) sum / values.length, histogram.mean(), 1e-6);
+		assertEquals(values[values.length - 1], histogram.max());
+		assertTrue(histogram.percentile(100) <= histogram.max());
+	}
+
+	@Test
+	public void handlesTheEdgesOfTheRange ()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.percentile(50));
+		assertEquals(0.0, histogram.mean(), 0.0);
+
+		histogram.record(-5);
+		assertEquals(0, histogram.percentile(100));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.max());
+		assertTrue(histogram.percentile(100) > Long.MAX_VALUE / 64 * 63);
+		assertEquals(0, histogram.percentile(50));
+
+		histogram.reset();
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.percentile(99));
+	}
+
+	@Test
+	public void losesNothingRecordedConcurrently ()
+			throws InterruptedException
+	{
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final int perThread = 100000;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)	{
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run ()	{
+					for (int k = 0; k < perThread; k++)
+						histogram.record(1000 + k % 100 + offset);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(threads.length * perThread, histogram.count());
+		assertEquals(1102, histogram.max());
+		// (1000 + 1099) / 2 over the values, plus the mean of the offsets 0 to 3
+		assertEquals(1049.5 + 1.5, histogram.mean(), 1e-9);
+	}
+}
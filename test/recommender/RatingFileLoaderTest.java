@@ -0,0 +1,154 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A file large enough to be split into many chunks, loaded on several threads, gives exactly the ratings and
+ * means of a plain line-by-line parse, whatever the line endings, extra fields and blank lines, and the later
+ * of two ratings of the same pair wins.
+ */
+public class RatingFileLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void loadsManyChunks ()
+			throws IOException
+	{
+		File file = write(40000, false, 13);
+		assertTrue(file.length() > 4 * (1 << 16));
+		for (int threads : new int[] { 1, 3, 7 })
+			assertLoaded(file, threads);
+	}
+
+	@Test
+	public void keepsTheLaterOfDuplicateRatings ()
+			throws IOException
+	{
+		File file = write(40000, true, 17);
+		for (int threads : new int[] { 1, 3, 7 })
+			assertLoaded(file, threads);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Writes about @numRatings ratings of 2000 users and 500 items with every kind of line the loader accepts,
+	 * repeating some pairs with a different rating if @duplicates.
+	 */
+	private File write (	int numRatings,
+							boolean duplicates,
+							long seed )
+			throws IOException
+	{
+		Random random = new Random(seed);
+		File file = new File(folder.getRoot(), "ratings-" + seed);
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try	{
+			Set<Long> written = new HashSet<Long>();
+			List<Long> pairs = new ArrayList<Long>();
+			for (int k = 0; k < numRatings; k++)	{
+				long pair;
+				if (duplicates && !pairs.isEmpty() && random.nextInt(10) == 0)
+					pair = pairs.get(random.nextInt(pairs.size()));
+				else	{
+					do
+						pair = ((long) (1 + random.nextInt(2000)) << 32) | (1 + random.nextInt(500));
+					while (!written.add(pair));
+					pairs.add(pair);
+				}
+				String rating = random.nextBoolean() ? Integer.toString(1 + random.nextInt(5)) : (1 + random.nextInt(40) / 10.0) + "";
+				String line = (pair >>> 32) + "\t" + (int) pair + "\t" + rating;
+				switch (random.nextInt(4))	{
+					case 0:
+						line += "\t" + (880000000 + random.nextInt(10000000));
+						break;
+					case 1:
+						line += "\r";
+						break;
+					case 2:
+						if (random.nextInt(20) == 0)
+							line = "\n" + line;
+						break;
+				}
+				out.write(line + "\n");
+			}
+		} finally	{
+			out.close();
+		}
+		return file;
+	}
+
+	private void assertLoaded (	File file,
+								int threads )
+			throws IOException
+	{
+		SortedMap<Integer, SortedMap<Integer, Float>> byUser = new TreeMap<Integer, SortedMap<Integer, Float>>();
+		SortedMap<Integer, SortedMap<Integer, Float>> byItem = new TreeMap<Integer, SortedMap<Integer, Float>>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try	{
+			String line;
+			while ((line = in.readLine()) != null)	{
+				String[] fields = line.trim().split("\t");
+				if (fields.length < 3)
+					continue;
+				int user = Integer.parseInt(fields[0]), item = Integer.parseInt(fields[1]);
+				float rating = Float.parseFloat(fields[2]);
+				put(byUser, user, item, rating);
+				put(byItem, item, user, rating);
+			}
+		} finally	{
+			in.close();
+		}
+
+		RatingFileLoader.Ratings ratings = new RatingFileLoader(file.getPath(), "\t", threads).load(true);
+		assertRows(byUser, ratings.users, ratings.items, ratings.byUser, ratings.userMeans);
+		assertRows(byItem, ratings.items, ratings.users, ratings.byItem, ratings.itemMeans);
+	}
+
+	private static void put (	SortedMap<Integer, SortedMap<Integer, Float>> rows,
+								int row,
+								int col,
+								float value )
+	{
+		SortedMap<Integer, Float> cols = rows.get(row);
+		if (cols == null)
+			rows.put(row, cols = new TreeMap<Integer, Float>());
+		cols.put(col, value);
+	}
+
+	private static void assertRows (	SortedMap<Integer, SortedMap<Integer, Float>> expected,
+										IdIndex rowIds,
+										IdIndex colIds,
+										RatingMatrix matrix,
+										double[] means )
+	{
+		assertEquals(expected.size(), rowIds.size());
+		assertEquals(expected.size(), matrix.numRows());
+		int r = 0;
+		for (Map.Entry<Integer, SortedMap<Integer, Float>> row : expected.entrySet())	{
+			assertEquals(row.getKey().intValue(), rowIds.idAt(r));
+			assertEquals(row.getValue().size(), matrix.rowLength(r));
+			int k = matrix.rowStart(r);
+			double sum = 0.0;
+			for (Map.Entry<Integer, Float> rating : row.getValue().entrySet())	{
+				assertEquals(rating.getKey().intValue(), colIds.idAt(matrix.col(k)));
+				assertEquals(rating.getValue(), matrix.value(k), 0.0f);
+				sum += rating.getValue();
+				k++;
+			}
+			assertEquals(sum / row.getValue().size(), means[r], 1e-9);
+			r++;
+		}
+	}
+}
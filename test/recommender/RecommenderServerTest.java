@@ -0,0 +1,293 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The server answers each endpoint, predicts the requests queued behind a busy worker in one batch with one
+ * predict() per user, answers 503 at once when the queue is full and after the timeout when a prediction is not
+ * made in time, skips the requests that timed out, and keeps serving after a batch throws an Error.
+ */
+public class RecommenderServerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO dao;
+	private GatedRecommender recommender;
+	private RecommenderServer server;
+	private ExecutorService clients;
+
+	@BeforeClass
+	public static void setNoDelay ()
+	{
+		// Read once, when the first server is created; without it each response may wait for a delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		dao = TestRatings.load(TestRatings.write(folder.getRoot(), 50, 40, 600, 31));
+		recommender = new GatedRecommender(dao);
+		clients = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void stopServer ()
+	{
+		recommender.open();
+		if (server != null)
+			server.stop(0);
+		clients.shutdownNow();
+	}
+
+	@Test
+	public void answersEveryEndpoint ()
+			throws Exception
+	{
+		start(2, 16, 1024, 5000);
+		assertEquals("200 {\"user\":3,\"item\":7,\"prediction\":3.007000}", get("/predict?user=3&item=7"));
+		assertEquals("200 {\"user\":3,\"items\":[7,12],\"predictions\":[3.007000,3.012000]}", get("/predict?user=3&items=7,12"));
+
+		int user = dao.getTrainUsers().iterator().next();
+		TopNList top = recommender.recommend(user, 2, null);
+		assertEquals(String.format("200 {\"user\":%d,\"items\":[%d,%d],\"scores\":[%f,%f]}", user, top.item(0), top.item(1),
+				top.score(0), top.score(1)), get("/recommend?user=" + user + "&n=2"));
+
+		assertTrue(get("/predict?user=x&item=7").startsWith("400 "));
+		assertTrue(get("/recommend?user=3&n=-1").startsWith("400 "));
+		String metrics = get("/metrics");
+		assertTrue(metrics, metrics.startsWith("200 {\"server\":") && metrics.contains("\"rejected\"") && metrics.contains("\"recommender\":"));
+		server.toJson();
+		assertEquals(2, server.metrics().gauge("errors"), 0.0);
+	}
+
+	@Test
+	public void batchesTheRequestsQueuedBehindABusyWorker ()
+			throws Exception
+	{
+		start(1, 64, 1024, 10000);
+		recommender.close();
+		Future<String> first = request("/predict?user=1&item=1");
+		awaitCalls(1);
+
+		// Queued while the only worker waits on the gate
+		int[][] queued = { { 1, 2 }, { 2, 5 }, { 1, 3 }, { 3, 8 }, { 2, 6 }, { 1, 4 } };
+		List<Future<String>> answers = new ArrayList<Future<String>>();
+		for (int[] request : queued)
+			answers.add(request("/predict?user=" + request[0] + "&item=" + request[1]));
+		awaitRequests(1 + queued.length);
+		Thread.sleep(200);
+		recommender.open();
+
+		assertEquals("200 {\"user\":1,\"item\":1,\"prediction\":1.001000}", first.get(10, TimeUnit.SECONDS));
+		for (int k = 0; k < queued.length; k++)
+			assertEquals(String.format("200 {\"user\":%d,\"item\":%d,\"prediction\":%f}", queued[k][0], queued[k][1],
+					queued[k][0] + queued[k][1] / 1000.0), answers.get(k).get(10, TimeUnit.SECONDS));
+
+		// The first request alone, then the six others in one batch with one predict() per user
+		assertEquals(Arrays.asList("1:1", "1:3", "2:2", "3:1"), recommender.calls());
+		server.toJson();
+		assertEquals(2, server.metrics().gauge("batches"), 0.0);
+		assertEquals(3.5, server.metrics().gauge("meanBatchSize"), 0.0);
+	}
+
+	@Test
+	public void rejectsPredictionsBeyondTheQueue ()
+			throws Exception
+	{
+		start(1, 64, 2, 10000);
+		recommender.close();
+		Future<String> first = request("/predict?user=1&item=1");
+		awaitCalls(1);
+		Future<String> second = request("/predict?user=1&item=2"), third = request("/predict?user=1&item=3");
+		awaitRequests(3);
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		assertEquals("503 {\"error\":\"Too many predictions are queued.\"}", get("/predict?user=1&item=4"));
+		assertTrue((System.nanoTime() - start) / 1e9 < 5);
+		recommender.open();
+		assertTrue(first.get(10, TimeUnit.SECONDS).startsWith("200 "));
+		assertTrue(second.get(10, TimeUnit.SECONDS).startsWith("200 "));
+		assertTrue(third.get(10, TimeUnit.SECONDS).startsWith("200 "));
+
+		server.toJson();
+		assertEquals(1, server.metrics().gauge("rejected"), 0.0);
+		assertEquals(0, server.metrics().gauge("timedOut"), 0.0);
+	}
+
+	@Test
+	public void timesOutPredictionsNotMadeInTime ()
+			throws Exception
+	{
+		start(1, 64, 1024, 300);
+		recommender.close();
+		Future<String> first = request("/predict?user=1&item=1");
+		awaitCalls(1);
+		Future<String> second = request("/predict?user=2&item=2");
+		assertEquals("503 {\"error\":\"The prediction timed out.\"}", first.get(10, TimeUnit.SECONDS));
+		assertEquals("503 {\"error\":\"The prediction timed out.\"}", second.get(10, TimeUnit.SECONDS));
+
+		// The worker finishes the first batch and skips the second request, which nobody waits for any more
+		recommender.open();
+		assertEquals("200 {\"user\":3,\"item\":3,\"prediction\":3.003000}", get("/predict?user=3&item=3"));
+		assertEquals(Arrays.asList("1:1", "3:1"), recommender.calls());
+		server.toJson();
+		assertEquals(2, server.metrics().gauge("timedOut"), 0.0);
+		assertEquals(2, server.metrics().gauge("batches"), 0.0);
+	}
+
+	@Test
+	public void keepsServingAfterABatchThrowsAnError ()
+			throws Exception
+	{
+		start(1, 64, 1024, 10000);
+		recommender.failing = true;
+		assertEquals("503 {\"error\":\"The prediction failed or the server is stopping.\"}", get("/predict?user=1&item=1"));
+		recommender.failing = false;
+		assertEquals("200 {\"user\":1,\"item\":2,\"prediction\":1.002000}", get("/predict?user=1&item=2"));
+		server.toJson();
+		assertEquals(1, server.metrics().gauge("errors"), 0.0);
+		assertEquals(0, server.metrics().gauge("timedOut"), 0.0);
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Predicts user + item / 1000 for every user and item, records the user and the number of items of each batch
+	 * predict(), and makes batch predict() wait while the gate is closed or throw an Error while failing.
+	 */
+	private static final class GatedRecommender extends BaseRecommender {
+
+		private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+		volatile boolean failing;
+
+		GatedRecommender ( DAO dao )
+		{
+			super(dao);
+		}
+
+		public double predict (	int user,
+								int item )
+		{
+			return user + item / 1000.0;
+		}
+
+		public void predict (	int user,
+								int[] items,
+								double[] predictions )
+		{
+			calls.add(user + ":" + items.length);
+			try	{
+				gate.await();
+			} catch (InterruptedException e)	{
+				throw new RuntimeException(e);
+			}
+			if (failing)
+				throw new AssertionError("Failing on purpose");
+			super.predict(user, items, predictions);
+		}
+
+		void close ()
+		{
+			gate = new CountDownLatch(1);
+		}
+
+		void open ()
+		{
+			gate.countDown();
+		}
+
+		List<String> calls ()
+		{
+			synchronized (calls)	{
+				return new ArrayList<String>(calls);
+			}
+		}
+	}
+
+	private void start (	int workers,
+							int maxBatch,
+							int maxQueued,
+							long timeoutMillis )
+			throws IOException
+	{
+		server = new RecommenderServer(new RecommenderService(recommender), new InetSocketAddress(0),
+				workers, maxBatch, 0, maxQueued, 16, timeoutMillis);
+		server.start();
+	}
+
+	/**
+	 * Waits until batch predict() has been called @count times, the last of them maybe still waiting on the gate.
+	 */
+	private void awaitCalls ( int count )
+			throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (recommender.calls().size() < count)	{
+			assertTrue("Waiting for " + count + " calls", System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Waits until the server has taken @count requests.
+	 */
+	private void awaitRequests ( int count )
+			throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (true)	{
+			server.toJson();
+			if (server.metrics().gauge("requests") >= count)
+				return;
+			assertTrue("Waiting for " + count + " requests", System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private Future<String> request ( final String path )
+	{
+		return clients.submit(new Callable<String>() {
+			public String call ()
+					throws IOException	{
+				return get(path);
+			}
+		});
+	}
+
+	/**
+	 * @return the status and body of the answer to GET @path
+	 */
+	private String get ( String path )
+			throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + path).openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try	{
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) >= 0; )
+				body.write(buffer, 0, n);
+		} finally	{
+			in.close();
+		}
+		return status + " " + body.toString("UTF-8");
+	}
+}
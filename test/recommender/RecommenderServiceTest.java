@@ -0,0 +1,181 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * swap() freezes the new recommender and serves it from then on, while the snapshot it replaces keeps
+ * answering from the old one; an untrained recommender is refused and the current one kept. Concurrent swaps
+ * take consecutive versions, and readers never see a snapshot answer from two models or a version go back.
+ */
+public class RecommenderServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DAO dao;
+	private int user;
+	private int item;
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		dao = TestRatings.load(TestRatings.write(folder.getRoot(), 100, 80, 1500, 23));
+		user = dao.getTrainUsers().iterator().next();
+		for (int candidate : dao.getAllItems())
+			if (!dao.containsTrainRating(user, candidate))	{
+				item = candidate;
+				break;
+			}
+	}
+
+	@Test
+	public void swapsInTheNewModel ()
+	{
+		BaseRecommender first = constant(1.0), second = constant(2.0);
+		RecommenderService service = new RecommenderService(first);
+		RecommenderSnapshot old = service.snapshot();
+		assertEquals(1, old.version());
+		assertTrue(first.isFrozen());
+		assertEquals(1.0, service.predict(user, item), 0.0);
+
+		assertSame(old, service.swap(second));
+		assertTrue(second.isFrozen());
+		assertEquals(2, service.snapshot().version());
+		assertSame(second, service.snapshot().recommender());
+		assertEquals(2.0, service.predict(user, item), 0.0);
+		assertEquals(2.0, service.recommend(user, 5, null).score(0), 0.0);
+
+		// The snapshot taken before the swap still answers from the old model
+		assertSame(first, old.recommender());
+		assertEquals(1.0, old.predict(user, item), 0.0);
+		assertEquals(1.0, old.recommend(user, 5, null).score(0), 0.0);
+	}
+
+	@Test
+	public void freezesTheServedModel ()
+	{
+		SlopeOneRecommender recommender = new SlopeOneRecommender(dao, true, 16);
+		recommender.train();
+		recommender.addRating(user, item, 4.0);
+		RecommenderService service = new RecommenderService(constant(1.0));
+		service.swap(recommender);
+
+		assertTrue(recommender.isFrozen());
+		try	{
+			recommender.addRating(user, item, 5.0);
+			fail();
+		} catch (IllegalStateException e)	{	}
+		try	{
+			recommender.train();
+			fail();
+		} catch (IllegalStateException e)	{	}
+		assertEquals(recommender.predict(user, item), service.predict(user, item), 0.0);
+	}
+
+	@Test
+	public void refusesUntrainedModels ()
+	{
+		RecommenderService service = new RecommenderService(constant(1.0));
+		BaseRecommender untrained = new UUCollaborativeFiltering(dao, 20, 2, 1);
+		try	{
+			service.swap(untrained);
+			fail();
+		} catch (IllegalStateException e)	{	}
+		try	{
+			service.swap(null);
+			fail();
+		} catch (IllegalArgumentException e)	{	}
+		assertFalse(untrained.isFrozen());
+		assertEquals(1, service.snapshot().version());
+		assertEquals(1.0, service.predict(user, item), 0.0);
+
+		try	{
+			new RecommenderService(untrained);
+			fail();
+		} catch (IllegalStateException e)	{	}
+	}
+
+	@Test
+	public void servesConsistentlyWhileSwapping ()
+			throws InterruptedException
+	{
+		final RecommenderService service = new RecommenderService(constant(0.0));
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int swapsPerThread = 200;
+		final Set<Long> replaced = Collections.synchronizedSet(new HashSet<Long>());
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++)
+			threads.add(new Thread() {
+				public void run ()	{
+					try	{
+						long last = 0;
+						while (!done.get())	{
+							RecommenderSnapshot snapshot = service.snapshot();
+							assertTrue(snapshot.version() >= last);
+							last = snapshot.version();
+							double prediction = snapshot.predict(user, item);
+							assertEquals(prediction, snapshot.recommend(user, 3, null).score(0), 0.0);
+						}
+					} catch (Throwable e)	{
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		for (int t = 0; t < 2; t++)	{
+			final int offset = t;
+			threads.add(new Thread() {
+				public void run ()	{
+					try	{
+						for (int k = 0; k < swapsPerThread; k++)
+							replaced.add(service.swap(constant(2 * k + offset)).version());
+					} catch (Throwable e)	{
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads.subList(4, threads.size()))
+			thread.join();
+		done.set(true);
+		for (Thread thread : threads)
+			thread.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(1 + 2 * swapsPerThread, service.snapshot().version());
+		// Every version but the last was replaced exactly once
+		assertEquals(2 * swapsPerThread, replaced.size());
+		for (long version = 1; version <= 2 * swapsPerThread; version++)
+			assertTrue(replaced.contains(version));
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * @return a recommender that predicts @value for every user and item
+	 */
+	private BaseRecommender constant ( final double value )
+	{
+		return new BaseRecommender(dao) {
+			public double predict (	int user,
+									int item )	{
+				return value;
+			}
+		};
+	}
+}
@@ -0,0 +1,195 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Ratings added to and removed from a lazy SlopeOne model give the same predictions as a model trained from
+ * scratch on the updated ratings, and an untrained model predicts nothing.
+ */
+public class SlopeOneRecommenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File[] files;
+	private DAO dao;
+
+	@Before
+	public void writeRatings ()
+			throws IOException
+	{
+		files = TestRatings.write(folder.getRoot(), 300, 200, 6000, 7);
+		dao = TestRatings.load(files);
+	}
+
+	@Test
+	public void updatesMatchRetraining ()
+			throws IOException
+	{
+		SlopeOneRecommender uncached = new SlopeOneRecommender(dao, true, 0);
+		SlopeOneRecommender cached = new SlopeOneRecommender(dao, true, 50);
+		uncached.train();
+		cached.train();
+		// Predictions are cached before and between the updates, which must discard those they change
+		for (int user : dao.getTrainUsers())
+			cached.recommend(user, 10, null);
+		final List<Integer> users = new ArrayList<Integer>();
+		for (int user : dao.getTrainUsers())
+			users.add(user);
+
+		Map<Long, Double> ratings = readRatings(files[0]);
+		Random random = new Random(11);
+		List<Long> pairs = new ArrayList<Long>(ratings.keySet());
+		Collections.shuffle(pairs, random);
+
+		// New ratings of known users and items, replaced ratings, and a new user rating a new item
+		Map<Long, Double> test = readRatings(files[1]);
+		Iterator<Long> added = test.keySet().iterator();
+		for (int k = 0; k < 100 && added.hasNext(); k++)
+			update(ratings, added.next(), 1 + random.nextInt(5), uncached, cached);
+		for (int k = 0; k < 50; k++)
+			update(ratings, pairs.get(k), 1 + random.nextInt(5), uncached, cached);
+		for (int item = 1; item <= 5; item++)
+			update(ratings, pair(1000, item), item, uncached, cached);
+		for (int user = 1; user <= 5; user++)
+			update(ratings, pair(user, 1000), 6 - user, uncached, cached);
+
+		// Removed ratings, of users and items that keep others
+		Map<Integer, Integer> userCounts = new HashMap<Integer, Integer>(), itemCounts = new HashMap<Integer, Integer>();
+		for (long pair : ratings.keySet())	{
+			increment(userCounts, user(pair), 1);
+			increment(itemCounts, item(pair), 1);
+		}
+		int removed = 0;
+		for (int k = 50; k < pairs.size() && removed < 100; k++)	{
+			long pair = pairs.get(k);
+			if (userCounts.get(user(pair)) < 3 || itemCounts.get(item(pair)) < 3)
+				continue;
+			increment(userCounts, user(pair), -1);
+			increment(itemCounts, item(pair), -1);
+			ratings.remove(pair);
+			assertTrue(uncached.removeRating(user(pair), item(pair)));
+			assertTrue(cached.removeRating(user(pair), item(pair)));
+			cached.recommend(users.get(random.nextInt(users.size())), 10, null);
+			removed++;
+		}
+		assertFalse(uncached.removeRating(1000, 1000));
+
+		File updated = new File(folder.getRoot(), "updated.base");
+		writeRatings(ratings, updated);
+		DAO updatedDao = new DAO(updated.getPath(), files[1].getPath(), "\t");
+		SlopeOneRecommender retrained = new SlopeOneRecommender(updatedDao);
+		retrained.train();
+
+		for (int user : updatedDao.getTrainUsers())
+			for (int item : updatedDao.getAllItems())	{
+				double expected = retrained.predict(user, item);
+				assertEquals(expected, uncached.predict(user, item), 1e-9);
+				assertEquals(expected, cached.predict(user, item), 1e-9);
+			}
+	}
+
+	@Test
+	public void predictsNothingBeforeTraining ()
+	{
+		BaseRecommender[] untrained = { new SlopeOneRecommender(dao), new SlopeOneRecommender(dao, true, 0),
+										new SlopeOneRecommender(dao, true, 50) };
+		for (BaseRecommender recommender : untrained)	{
+			assertFalse(recommender.isTrained());
+			assertEquals(Double.NEGATIVE_INFINITY, recommender.predict(1, 1), 0.0);
+			assertEquals(0, recommender.recommend(1, 10, null).size());
+			try	{
+				new RecommenderService(recommender);
+				fail("An untrained recommender was served");
+			} catch (IllegalStateException e)	{
+				assertFalse(recommender.isFrozen());
+			}
+		}
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Adds @rating to @ratings and both recommenders, then has @cached cache the predictions of @user(pair)
+	 * and of another user who rated @item(pair), if any, which the next updates may change.
+	 */
+	private static void update (	Map<Long, Double> ratings,
+									long pair,
+									double rating,
+									SlopeOneRecommender uncached,
+									SlopeOneRecommender cached )
+	{
+		ratings.put(pair, rating);
+		uncached.addRating(user(pair), item(pair), rating);
+		cached.addRating(user(pair), item(pair), rating);
+		cached.recommend(user(pair), 10, null);
+		for (long other : ratings.keySet())
+			if (item(other) == item(pair) && other != pair)	{
+				cached.predict(user(other), 1);
+				break;
+			}
+	}
+
+	private static Map<Long, Double> readRatings ( File file )
+			throws IOException
+	{
+		Map<Long, Double> ratings = new LinkedHashMap<Long, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try	{
+			String line;
+			while ((line = in.readLine()) != null)	{
+				String[] fields = line.split("\t");
+				ratings.put(pair(Integer.parseInt(fields[0]), Integer.parseInt(fields[1])), Double.parseDouble(fields[2]));
+			}
+		} finally	{
+			in.close();
+		}
+		return ratings;
+	}
+
+	private static void writeRatings (	Map<Long, Double> ratings,
+										File file )
+			throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try	{
+			for (Map.Entry<Long, Double> rating : ratings.entrySet())
+				out.print(user(rating.getKey()) + "\t" + item(rating.getKey()) + "\t" + rating.getValue() + "\n");
+		} finally	{
+			out.close();
+		}
+	}
+
+	private static void increment (	Map<Integer, Integer> counts,
+									int key,
+									int by )
+	{
+		Integer count = counts.get(key);
+		counts.put(key, (count == null ? 0 : count) + by);
+	}
+
+	private static long pair (	int user,
+								int item )
+	{
+		return ((long) user << 32) | item;
+	}
+
+	private static int user ( long pair )
+	{
+		return (int) (pair >>> 32);
+	}
+
+	private static int item ( long pair )
+	{
+		return (int) pair;
+	}
+}
@@ -0,0 +1,76 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The binary rating file the generator writes straight from its ratings is byte for byte the one a DAO over its
+ * text files saves, and ratings out of order or rated twice are refused.
+ */
+public class SyntheticRatingGeneratorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writesTheBinaryFileTheDAOSaves ()
+			throws IOException
+	{
+		// Dense enough that some users run out of unrated items to draw, and sparse at the other end
+		SyntheticRatingGenerator generator = new SyntheticRatingGenerator(400, 150, 12000, 0.9, 0.8, null, 0.2, 11);
+		File train = folder.newFile("synthetic.base"), test = folder.newFile("synthetic.test");
+		File saved = new File(folder.getRoot(), "saved.dao"), streamed = new File(folder.getRoot(), "streamed.dao");
+		long written = generator.write(train.getPath(), test.getPath());
+		new DAO(train.getPath(), test.getPath(), "\t").save(saved.getPath());
+
+		assertEquals(written, generator.writeBinary(streamed.getPath()));
+		assertArrayEquals(Files.readAllBytes(saved.toPath()), Files.readAllBytes(streamed.toPath()));
+		assertFalse(new File(streamed.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void refusesUsersOutOfOrder ()
+			throws IOException
+	{
+		assertRefused(new int[][] { { 2, 1 }, { 1, 3 } });
+	}
+
+	@Test
+	public void refusesItemsRatedTwice ()
+			throws IOException
+	{
+		assertRefused(new int[][] { { 1, 1 }, { 2, 4 }, { 2, 3 }, { 2, 4 } });
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Asserts that writing the training ratings @ratings, as (user, item) pairs, fails and leaves no file behind.
+	 */
+	private void assertRefused ( final int[][] ratings )
+			throws IOException
+	{
+		File file = new File(folder.getRoot(), "refused.dao");
+		try	{
+			BinaryRatingFile.write(new BinaryRatingFile.Source() {
+				public void visit ( BinaryRatingFile.Visitor visitor )
+						throws IOException	{
+					for (int[] rating : ratings)
+						visitor.rating(rating[0], rating[1], 3.0f, false);
+				}
+			}, 5, 5, file.getPath());
+			fail();
+		} catch (IllegalArgumentException e)	{
+			assertFalse(file.exists());
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package recommender;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Small random rating data sets for the tests, written as tab-separated training and test files. Each rating
+ * is the rounded sum of a user bias, an item bias and some noise, so the models have something to learn, and
+ * every user and item has at least one training rating.
+ */
+final class TestRatings {
+
+	/*********************************************************************************************************/
+	/* 											Package methods											 	 */
+	/*********************************************************************************************************/
+
+	/**
+	 * Writes about @numRatings ratings of users 1..@numUsers for items 1..@numItems, one in five of them to the
+	 * test file, and returns the files as { train, test }.
+	 */
+	static File[] write (	File dir,
+							int numUsers,
+							int numItems,
+							int numRatings,
+							long seed )
+			throws IOException
+	{
+		Random random = new Random(seed);
+		double[] userBias = new double[numUsers], itemBias = new double[numItems];
+		for (int u = 0; u < numUsers; u++)
+			userBias[u] = random.nextGaussian() * 0.5;
+		for (int i = 0; i < numItems; i++)
+			itemBias[i] = random.nextGaussian() * 0.5;
+
+		// One training rating per user and per item first, then random pairs
+		Set<Long> pairs = new LinkedHashSet<Long>();
+		for (int u = 0; u < numUsers; u++)
+			pairs.add(pair(u, u % numItems));
+		for (int i = 0; i < numItems; i++)
+			pairs.add(pair(i % numUsers, i));
+		int numFixed = pairs.size();
+		while (pairs.size() < Math.max(numRatings, numFixed))
+			pairs.add(pair(random.nextInt(numUsers), random.nextInt(numItems)));
+
+		File train = new File(dir, "ratings.base"), test = new File(dir, "ratings.test");
+		PrintWriter trainOut = new PrintWriter(new FileWriter(train)), testOut = new PrintWriter(new FileWriter(test));
+		try	{
+			int k = 0;
+			for (long pair : pairs)	{
+				int u = (int) (pair >>> 32), i = (int) pair;
+				long rating = Math.max(1, Math.min(5, Math.round(3.5 + userBias[u] + itemBias[i] + random.nextGaussian() * 0.7)));
+				PrintWriter out = k++ >= numFixed && random.nextInt(5) == 0 ? testOut : trainOut;
+				out.print((u + 1) + "\t" + (i + 1) + "\t" + rating + "\n");
+			}
+		} finally	{
+			trainOut.close();
+			testOut.close();
+		}
+		return new File[] { train, test };
+	}
+
+	/**
+	 * @return the DAO of the files written by write()
+	 */
+	static DAO load ( File[] files )
+			throws IOException
+	{
+		return new DAO(files[0].getPath(), files[1].getPath(), "\t");
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static long pair (	int u,
+								int i )
+	{
+		return ((long) u << 32) | i;
+	}
+}
@@ -0,0 +1,79 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * TextBuffer formats longs as String.valueOf() and doubles as String.format("%f") does, including the doubles
+ * whose shortest representation, which String.format() rounds, is halfway between two 6-decimal numbers.
+ */
+public class TextBufferTest {
+
+	@Test
+	public void formatsLongs ()
+	{
+		long[] values = { 0, 1, -1, 9, 10, 99, 100, 123456789, -987654321, Integer.MAX_VALUE, Integer.MIN_VALUE,
+							Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+		for (long value : values)
+			assertEquals(String.valueOf(value), text(new TextBuffer(1).append(value)));
+	}
+
+	@Test
+	public void formatsDoublesLikeStringFormat ()
+	{
+		List<Double> values = new ArrayList<Double>(Arrays.asList(0.0, -0.0, 1.0, -1.0, 5.0, 0.5, 3.141592653589793,
+				1e-7, -1e-7, 4.9999995, 0.0000004, 999999.9999996, 1e12 - 1, 1e12, -1e12, 1e15, Double.MAX_VALUE,
+				Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY));
+		Random random = new Random(19);
+		for (int k = 0; k < 100000; k++)	{
+			// Predicted ratings, their 6-decimal roundings, small and large values of either sign
+			values.add(1 + 4 * random.nextDouble());
+			values.add(Math.round((1 + 4 * random.nextDouble()) * 1e6) / 1e6);
+			values.add((random.nextDouble() - 0.5) * 1e-3);
+			values.add((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12)));
+		}
+		// Halfway in their shortest representations, but not in binary
+		values.addAll(Arrays.asList(3.5640625 - Math.ulp(3.5640625), 1155241.0797155, -402463530.6586965, 0.0000005,
+				2.0000005, 0.0078125));
+		for (double value : values)
+			assertEquals(String.format("%f", value), text(new TextBuffer(1).appendFixed6(value)));
+	}
+
+	@Test
+	public void appendsAndClears ()
+			throws IOException
+	{
+		TextBuffer text = new TextBuffer(1);
+		for (int k = 0; k < 1000; k++)
+			text.append(k).append(' ').appendFixed6(k / 8.0).append('\n');
+		StringBuilder expected = new StringBuilder();
+		for (int k = 0; k < 1000; k++)
+			expected.append(k).append(' ').append(String.format("%f", k / 8.0)).append('\n');
+		assertEquals(expected.toString(), text(text));
+		assertEquals(expected.length(), text.length());
+
+		text.clear();
+		assertEquals(0, text.length());
+		assertEquals("7", text(text.append(7)));
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static String text ( TextBuffer buffer )
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try	{
+			buffer.writeTo(out);
+		} catch (IOException e)	{
+			throw new AssertionError(e);
+		}
+		return new String(out.toByteArray());
+	}
+}
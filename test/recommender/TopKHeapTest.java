@@ -0,0 +1,88 @@
+package recommender;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * A TopKHeap keeps the highest scores, the smallest ids first among equal scores, whatever the order in which
+ * they are offered, and sorts them by decreasing score and then increasing id.
+ */
+public class TopKHeapTest {
+
+	@Test
+	public void keepsTheSmallestIdsOfEqualScores ()
+	{
+		TopKHeap heap = new TopKHeap(4);
+		for (int id : new int[] { 9, 3, 7, 1, 5 })
+			heap.offer(id, 2.0);
+		assertFalse(heap.offer(8, 2.0));
+		assertTrue(heap.offer(4, 2.0));
+		assertTrue(heap.offer(10, 2.5));
+		heap.sortDescending();
+		assertArrayEquals(new int[] { 10, 1, 3, 4 }, ids(heap));
+		assertEquals(2.5, heap.score(0), 0.0);
+		assertEquals(2.0, heap.score(3), 0.0);
+	}
+
+	@Test
+	public void matchesASortInAnyOrder ()
+	{
+		Random random = new Random(3);
+		for (int trial = 0; trial < 200; trial++)	{
+			int n = 1 + random.nextInt(300), K = 1 + random.nextInt(40);
+			final int[] offered = new int[n];
+			final double[] scores = new double[n];
+			List<Integer> order = new ArrayList<Integer>();
+			for (int k = 0; k < n; k++)	{
+				offered[k] = random.nextInt(1000);
+				// Few distinct scores, so that most comparisons are ties
+				scores[k] = random.nextInt(8) / 2.0;
+				order.add(k);
+			}
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare ( Integer a, Integer b )	{
+					if (scores[a] != scores[b])
+						return scores[a] > scores[b] ? -1 : 1;
+					return offered[a] < offered[b] ? -1 : offered[a] > offered[b] ? 1 : 0;
+				}
+			});
+
+			TopKHeap heap = new TopKHeap(K);
+			List<Integer> shuffled = new ArrayList<Integer>(order);
+			Collections.shuffle(shuffled, random);
+			for (int k : shuffled)
+				heap.offer(offered[k], scores[k]);
+			heap.sortDescending();
+
+			assertEquals(Math.min(n, K), heap.size());
+			for (int k = 0; k < heap.size(); k++)	{
+				assertEquals(scores[order.get(k)], heap.score(k), 0.0);
+				assertEquals(offered[order.get(k)], heap.id(k));
+			}
+		}
+	}
+
+	@Test
+	public void keepsNothingWithoutCapacity ()
+	{
+		TopKHeap heap = new TopKHeap(0);
+		assertFalse(heap.offer(1, 5.0));
+		assertEquals(0, heap.size());
+	}
+
+
+	/*********************************************************************************************************/
+	/* 										Private helper methods											 */
+	/*********************************************************************************************************/
+
+	private static int[] ids ( TopKHeap heap )
+	{
+		int[] ids = new int[heap.size()];
+		for (int k = 0; k < ids.length; k++)
+			ids[k] = heap.id(k);
+		return ids;
+	}
+}